@@ -1,14 +1,15 @@
 package compiler;
 
+import iloc.BinaryFormat;
 import iloc.Simulator;
 import iloc.model.Program;
+import iloc.model.ProgramWriter;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
 
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.CharStream;
@@ -41,10 +42,11 @@ public class TempNameCompiler {
 
 	/** Compiles and runs the program named in the argument. */
 	public static void main(String[] args) {
-		if (args.length != 2) {
-			System.err.println("Usage: filename mode");
+		if (args.length != 2 && (args.length != 3 || !args[1].equals(mode2))) {
+			System.err.println("Usage: filename mode [target]");
 			System.err.println("Mode 1 : \"" + mode1 + "\" compiles and runs the program");
-			System.err.println("Mode 2 : \"" + mode2 + "\" compiles the program and stores it in <filename>.iloc");
+			System.err.println("Mode 2 : \"" + mode2 + "\" compiles the program and stores it in <filename>.iloc,");
+			System.err.println("         or in target; a target ending on " + BinaryFormat.EXTENSION + " is written in binary format");
 			return;
 		}
 		if (args[1].equals(mode1)) {
@@ -65,18 +67,25 @@ public class TempNameCompiler {
 		} else if (args[1].equals(mode2)) {
 			try {
 				File tmp = new File(args[0]);
-				File res = new File(tmp.getPath().substring(0, tmp.getPath().length() - 4) + ".iloc");
-				PrintWriter writer = new PrintWriter(res, "UTF-8");
+				File res;
+				if (args.length == 3) {
+					res = new File(args[2]);
+				} else {
+					res = new File(tmp.getPath().substring(0, tmp.getPath().length() - 4) + ".iloc");
+				}
 				System.out.println("--- Compiling");
 				Program prog = instance().compile(new File(args[0]));
 				System.out.println("--- Writing");
-				writer.println(prog.prettyPrint());
-				writer.close();
+				if (BinaryFormat.isBinary(res.getPath())) {
+					BinaryFormat.write(prog, res.toPath());
+				} else {
+					try (ProgramWriter writer = new ProgramWriter(new FileOutputStream(res))) {
+						writer.write(prog);
+					}
+				}
 				System.out.println("--- Compiled and written to "+res.getPath());
 			} catch (FileNotFoundException e) {
 				e.printStackTrace();
-			} catch (UnsupportedEncodingException e) {
-				e.printStackTrace();
 			} catch (ParseException e) {
 				e.print();
 			} catch (IOException e) {
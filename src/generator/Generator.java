@@ -15,12 +15,12 @@ import grammar.TempNameParser.*;
 
 public class Generator extends TempNameBaseVisitor<String> {
 	/** The representation of the boolean value <code>false</code>. */
-	public final static Num FALSE_VALUE = new Num(Simulator.FALSE);
+	public final static Num FALSE_VALUE = Num.of(Simulator.FALSE);
 	/** The representation of the boolean value <code>true</code>. */
-	public final static Num TRUE_VALUE = new Num(Simulator.TRUE);
+	public final static Num TRUE_VALUE = Num.of(Simulator.TRUE);
 
 	/** The base register. */
-	private Reg arp = new Reg("r_arp");
+	private Reg arp;
 	/** The outcome of the checker phase. */
 	private Result checkResult;
 	/** Association of statement nodes to labels. */
@@ -29,6 +29,12 @@ public class Generator extends TempNameBaseVisitor<String> {
 	private Program prog;
 	/** The memory manager of this generator */
 	private MemoryManager mM;
+	/** The canonical operands of the program being built. */
+	private OperandTable operands;
+	/** The number of bytes currently pushed onto the stack. */
+	private int stackDepth;
+	/** The maximum number of bytes pushed onto the stack. */
+	private int maxStackDepth;
 
 	/**
 	 * Generates ILOC code for a given parse tree, given a pre-computed checker
@@ -36,10 +42,16 @@ public class Generator extends TempNameBaseVisitor<String> {
 	 */
 	public Program generate(ParseTree tree, Result checkResult) {
 		this.prog = new Program();
+		this.operands = new OperandTable();
+		this.arp = this.operands.reg(Machine.ARP);
 		this.checkResult = checkResult;
 		this.labels = new ParseTreeProperty<>();
 		this.mM = new MemoryManager();
+		this.stackDepth = 0;
+		this.maxStackDepth = 0;
 		tree.accept(this);
+		this.prog.setSymb(operands.symb(Program.FRAME_SIZE), mM.getMaxExtent());
+		this.prog.setSymb(operands.symb(Program.STACK_SIZE), this.maxStackDepth);
 		return this.prog;
 	}
 
@@ -53,13 +65,43 @@ public class Generator extends TempNameBaseVisitor<String> {
 			mM.closeScope();
 		}
 		int parentoff = mM.getOffset(to, stringData[0], toid);
-		Reg helpreg = new Reg(mM.getConstReg());
 
 		// MOVE ALL CHARS
-		for (int i = 0; i < stringData[0]; i = i + Machine.DEFAULT_CHAR_SIZE) {
-			emit(OpCode.cloadAI, arp, new Num(i + stringData[1]), helpreg);
-			emit(OpCode.cstoreAI, helpreg, arp, new Num(i + parentoff));
+		copyChars(stringData[1], parentoff, stringData[0]);
+	}
+
+	/**
+	 * Copies a block of chars within the frame, using a single block copy
+	 * 
+	 * @param from offset of the source block
+	 * @param to offset of the target block
+	 * @param size size of the block, in bytes
+	 */
+	private void copyChars(int from, int to, int size) {
+		if (size == 0) {
+			return;
 		}
+		Reg fromReg = operands.reg(mM.getConstReg());
+		Reg sizeReg = operands.reg(mM.getConstReg());
+		Reg toReg = operands.reg(mM.getConstReg());
+		emit(OpCode.addI, arp, operands.num(from), fromReg);
+		emit(OpCode.loadI, operands.num(size / Machine.DEFAULT_CHAR_SIZE), sizeReg);
+		emit(OpCode.addI, arp, operands.num(to), toReg);
+		emit(OpCode.ccopy, fromReg, sizeReg, toReg);
+	}
+
+	/**
+	 * Prints a string stored in the frame, directly from memory
+	 * 
+	 * @param ctx the printed node
+	 * @param stringData the size and offset of the string
+	 */
+	private void printString(ParseTree ctx, int[] stringData) {
+		Reg addrReg = operands.reg(mM.getConstReg());
+		Reg sizeReg = operands.reg(mM.getConstReg());
+		emit(OpCode.addI, arp, operands.num(stringData[1]), addrReg);
+		emit(OpCode.loadI, operands.num(stringData[0] / Machine.DEFAULT_CHAR_SIZE), sizeReg);
+		emit(OpCode.coutA, new Str(ctx.getText() + ": "), addrReg, sizeReg);
 	}
 
 	/**
@@ -165,9 +207,48 @@ public class Generator extends TempNameBaseVisitor<String> {
 	private Op emit(Label label, OpCode opCode, Operand... args) {
 		Op result = new Op(label, opCode, args);
 		this.prog.addInstr(result);
+		trackStack(opCode);
 		return result;
 	}
 
+	/**
+	 * Keeps track of the stack depth reached by the generated code.
+	 * The depth is followed in the order in which the code is emitted,
+	 * which gives the depth in execution order because every statement
+	 * leaves the stack as it found it, without jumps in between: a char
+	 * is printed by pushing it and its length and popping both with cout,
+	 * and a char is read by popping the entire string pushed by cin.
+	 * Only the length pushed by cin is counted, as the number of chars
+	 * depends on the input; see {@link Simulator#getMemorySize}.
+	 */
+	private void trackStack(OpCode opCode) {
+		switch (opCode) {
+		case push:
+			this.stackDepth += Machine.INT_SIZE;
+			break;
+		case cpush:
+			this.stackDepth += Machine.DEFAULT_CHAR_SIZE;
+			break;
+		case pop:
+			this.stackDepth = Math.max(0, this.stackDepth - Machine.INT_SIZE);
+			break;
+		case cpop:
+			this.stackDepth = Math.max(0, this.stackDepth - Machine.DEFAULT_CHAR_SIZE);
+			break;
+		case cin:
+			this.stackDepth += Machine.INT_SIZE;
+			break;
+		case cout:
+			// pops the pushed char and its length
+			this.stackDepth = Math.max(0, this.stackDepth - Machine.INT_SIZE
+					- Machine.DEFAULT_CHAR_SIZE);
+			break;
+		default:
+			// no stack change
+		}
+		this.maxStackDepth = Math.max(this.maxStackDepth, this.stackDepth);
+	}
+
 	/**
 	 * Constructs an operation from the parameters and adds it to the program
 	 * under construction.
@@ -197,7 +278,7 @@ public class Generator extends TempNameBaseVisitor<String> {
 		int line = token.getLine();
 		int column = token.getCharPositionInLine();
 		String result = prefix + "_" + line + "_" + column;
-		return new Label(result);
+		return operands.label(result);
 	}
 
 	/**
@@ -217,7 +298,7 @@ public class Generator extends TempNameBaseVisitor<String> {
 		} else if (checkResult.getType(node).equals(Type.CHAR)) {
 			size = Machine.DEFAULT_CHAR_SIZE;
 		}
-		Num offset = new Num(mM.getOffset(node, size, id));
+		Num offset = operands.num(mM.getOffset(node, size, id));
 		return offset;
 	}
 
@@ -241,7 +322,7 @@ public class Generator extends TempNameBaseVisitor<String> {
 		// register before use
 
 		if (mM.hasMemory(node) && !mM.hasReg(node)) {
-			reg = new Reg(mM.getNodeReg(node));
+			reg = operands.reg(mM.getNodeReg(node));
 			Type type = checkResult.getType(node);
 			if (type.equals(Type.CHAR)) {
 				emit(OpCode.cloadAI, arp, offset(node), reg);
@@ -253,7 +334,7 @@ public class Generator extends TempNameBaseVisitor<String> {
 			}
 
 		} else {
-			reg = new Reg(mM.getNodeReg(node));
+			reg = operands.reg(mM.getNodeReg(node));
 		}
 
 		return reg;
@@ -263,7 +344,7 @@ public class Generator extends TempNameBaseVisitor<String> {
 
 	@Override
 	public String visitProgram(ProgramContext ctx) {
-		emit(new Label("Program"), OpCode.nop);
+		emit(operands.label("Program"), OpCode.nop);
 		mM.openScope();
 		visit(ctx.expr());
 		mM.closeScope();
@@ -368,23 +449,13 @@ public class Generator extends TempNameBaseVisitor<String> {
 				}
 				type = checkResult.getType(ctx.expr(i));
 				if (type.equals(Type.CHAR)) {
-					emit(OpCode.loadI, new Num(1), reg(ctx));
+					emit(OpCode.loadI, operands.num(1), reg(ctx));
 					emit(OpCode.cpush, reg(ctx.expr(i)));
 					emit(OpCode.push, reg(ctx));
 					emit(OpCode.cout, new Str(ctx.expr(i).getText() + ": "));
 				} else if (type.equals(Type.STRING)) {
 					int[] stringData = mM.getSizeAndOffset(ctx.expr(i), id);
-					// Push chars
-					for (int j = stringData[0]; j > 0; j--) {
-						emit(OpCode.cloadAI, arp, new Num(stringData[1] + j * Machine.DEFAULT_CHAR_SIZE - 1), reg(ctx));
-
-						emit(OpCode.cpush, reg(ctx));
-					}
-					// Push size
-					emit(OpCode.loadI, new Num(stringData[0]), reg(ctx));
-					emit(OpCode.push, reg(ctx));
-
-					emit(OpCode.cout, new Str(ctx.expr(i).getText() + ": "));
+					printString(ctx.expr(i), stringData);
 				} else {
 					emit(OpCode.out, new Str(ctx.expr(i).getText() + ": "), reg(ctx.expr(i)));
 					storeString(ctx.expr(0), ctx, false, id, null);
@@ -397,24 +468,14 @@ public class Generator extends TempNameBaseVisitor<String> {
 			}
 			type = checkResult.getType(ctx.expr(0));
 			if (type.equals(Type.CHAR)) {
-				emit(OpCode.loadI, new Num(1), reg(ctx));
+				emit(OpCode.loadI, operands.num(1), reg(ctx));
 				emit(OpCode.cpush, reg(ctx.expr(0)));
 				emit(OpCode.push, reg(ctx));
 				emit(OpCode.cout, new Str(ctx.expr(0).getText() + ": "));
 				returnResult(ctx.expr(0), ctx, null, null);
 			} else if (type.equals(Type.STRING)) {
 				int[] stringData = mM.getSizeAndOffset(ctx.expr(0), id);
-				// Push chars
-				for (int j = stringData[0]; j > 0; j--) {
-					emit(OpCode.cloadAI, arp, new Num(stringData[1] + j * Machine.DEFAULT_CHAR_SIZE - 1), reg(ctx));
-
-					emit(OpCode.cpush, reg(ctx));
-				}
-				// Push size
-				emit(OpCode.loadI, new Num(stringData[0]), reg(ctx));
-				emit(OpCode.push, reg(ctx));
-
-				emit(OpCode.cout, new Str(ctx.expr(0).getText() + ": "));
+				printString(ctx.expr(0), stringData);
 
 				storeString(ctx.expr(0), ctx, false, id, null);
 			} else {
@@ -431,8 +492,12 @@ public class Generator extends TempNameBaseVisitor<String> {
 		for (int i = 0; i < ctx.ID().size(); i++) {
 			if (types[i].equals(Type.CHAR)) {
 				emit(OpCode.cin, new Str(ctx.ID(i).getText() + "? : "));
-				emit(OpCode.pop, reg(ctx));
+				Reg len = operands.reg(mM.getConstReg());
+				emit(OpCode.pop, len);
 				emit(OpCode.cpop, reg(ctx));
+				// drop the remaining chars of the input line
+				emit(OpCode.subI, len, operands.num(1), len);
+				emit(OpCode.add, Machine.SP_REG, len, Machine.SP_REG);
 				emit(OpCode.cstoreAI, reg(ctx), arp, offset(ctx, ctx.ID(i).getText()));
 			} else if (types[i].equals(Type.STRING)) {
 				// Not supported by our memory/registry manager, too much
@@ -468,7 +533,7 @@ public class Generator extends TempNameBaseVisitor<String> {
 		} else {
 			// Modulo
 			String str1 = mM.getConstReg();
-			Reg r1 = new Reg(str1);
+			Reg r1 = operands.reg(str1);
 			emit(OpCode.div, reg(ctx.expr(0)), reg(ctx.expr(1)), r1);
 			emit(OpCode.mult, r1, reg(ctx.expr(1)), r1);
 			emit(OpCode.sub, reg(ctx.expr(0)), r1, reg(ctx));
@@ -497,14 +562,8 @@ public class Generator extends TempNameBaseVisitor<String> {
 			int[] stringData1 = mM.getSizeAndOffset(ctx.expr(0), id1);
 			int[] stringData2 = mM.getSizeAndOffset(ctx.expr(1), id2);
 			int offset = mM.getOffset(ctx, stringData1[0] + stringData2[0], null);
-			for (int i = 0; i < stringData1[0]; i += Machine.DEFAULT_CHAR_SIZE, offset += Machine.DEFAULT_CHAR_SIZE) {
-				emit(OpCode.cloadAI, arp, new Num(stringData1[1] + i), reg(ctx));
-				emit(OpCode.cstoreAI, reg(ctx), arp, new Num(offset));
-			}
-			for (int i = 0; i < stringData2[0]; i += Machine.DEFAULT_CHAR_SIZE, offset += Machine.DEFAULT_CHAR_SIZE) {
-				emit(OpCode.cloadAI, arp, new Num(stringData2[1] + i), reg(ctx));
-				emit(OpCode.cstoreAI, reg(ctx), arp, new Num(offset));
-			}
+			copyChars(stringData1[1], offset, stringData1[0]);
+			copyChars(stringData2[1], offset + stringData1[0], stringData2[0]);
 		}
 		return null;
 	}
@@ -517,10 +576,10 @@ public class Generator extends TempNameBaseVisitor<String> {
 		}
 
 		if (ctx.prfOp().getText().equals("-")) {
-			emit(OpCode.rsubI, reg(ctx.expr()), new Num(0), reg(ctx));
+			emit(OpCode.rsubI, reg(ctx.expr()), operands.num(0), reg(ctx));
 		} else {
-			emit(OpCode.addI, reg(ctx.expr()), new Num(1), reg(ctx));
-			emit(OpCode.rsubI, reg(ctx), new Num(0), reg(ctx));
+			emit(OpCode.addI, reg(ctx.expr()), operands.num(1), reg(ctx));
+			emit(OpCode.rsubI, reg(ctx), operands.num(0), reg(ctx));
 		}
 		return null;
 	}
@@ -599,14 +658,14 @@ public class Generator extends TempNameBaseVisitor<String> {
 
 	@Override
 	public String visitNumExpr(NumExprContext ctx) {
-		emit(OpCode.loadI, new Num(Integer.parseInt(ctx.NUM().getText())), reg(ctx));
+		emit(OpCode.loadI, operands.num(Integer.parseInt(ctx.NUM().getText())), reg(ctx));
 		return null;
 	}
 
 	@Override
 	public String visitCharExpr(CharExprContext ctx) {
 		int chara = (int) ctx.CHR().getText().charAt(1);
-		emit(OpCode.loadI, new Num(chara), reg(ctx));
+		emit(OpCode.loadI, operands.num(chara), reg(ctx));
 		emit(OpCode.i2c, reg(ctx), reg(ctx));
 		return null;
 	}
@@ -618,9 +677,9 @@ public class Generator extends TempNameBaseVisitor<String> {
 		int offset = mM.getOffset(ctx, Machine.DEFAULT_CHAR_SIZE * str.length(), null);
 		for (int i = 0; i < str.length(); i++) {
 			int chara = (int) str.charAt(i);
-			emit(OpCode.loadI, new Num(chara), reg(ctx));
+			emit(OpCode.loadI, operands.num(chara), reg(ctx));
 			emit(OpCode.i2c, reg(ctx), reg(ctx));
-			emit(OpCode.cstoreAI, reg(ctx), arp, new Num(offset + i * Machine.DEFAULT_CHAR_SIZE));
+			emit(OpCode.cstoreAI, reg(ctx), arp, operands.num(offset + i * Machine.DEFAULT_CHAR_SIZE));
 		}
 		return null;
 	}
@@ -57,6 +57,8 @@ public class MemoryManager {
 	private final Deque<ArrayList<String>> idScopes = new ArrayDeque<ArrayList<String>>();
 	private final ArrayList<Block> memory;
 	private final RegisterManager regman;
+	/** Highest end offset of any block reserved so far */
+	private int maxExtent;
 
 	public MemoryManager() {
 		memory = new ArrayList<Block>();
@@ -116,6 +118,7 @@ public class MemoryManager {
 		// if not returned we need to add at the tail.
 		// offset calculated in the last for loop
 		memory.add(new Block(offset, size, ctx, null));
+		maxExtent = Math.max(maxExtent, offset + size);
 		return offset;
 	}
 
@@ -146,9 +149,18 @@ public class MemoryManager {
 		// if not returned we need to add at the tail.
 		// offset calculated in the last for loop
 		memory.add(new Block(offset, size, ctx, id));
+		maxExtent = Math.max(maxExtent, offset + size);
 		return offset;
 	}
 
+	/**
+	 * Returns the size of the frame needed for all blocks reserved so far,
+	 * i.e., the highest end offset of any block
+	 */
+	public int getMaxExtent() {
+		return maxExtent;
+	}
+
 	/**
 	 * Get the offset of an variable or reserve new memory.
 	 * 
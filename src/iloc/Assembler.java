@@ -1,13 +1,27 @@
 package iloc;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.CharStream;
@@ -27,9 +41,9 @@ import iloc.model.Op;
 import iloc.model.OpCode;
 import iloc.model.OpList;
 import iloc.model.Operand;
+import iloc.model.OperandTable;
 import iloc.model.Operand.Type;
 import iloc.model.Program;
-import iloc.model.Reg;
 import iloc.model.Str;
 import iloc.parse.ErrorListener;
 import iloc.parse.FormatException;
@@ -48,13 +62,18 @@ import iloc.parse.ILOCParser.SingleInstrContext;
 import iloc.parse.ILOCParser.SourcesContext;
 import iloc.parse.ILOCParser.TargetsContext;
 
-/** Assembler for the ILOC language. */
+/** Assembler for the ILOC language.
+ * The assembler is reentrant: every call builds its program with
+ * its own walker, so the singleton instance may be shared by threads.
+ * Programs given as strings or files are first parsed by the
+ * hand-written {@link FastParser}; if that fails, they are parsed again
+ * with the ANTLR parser, which serves as the reference and provides
+ * the error messages.
+ */
 public class Assembler {
-	private final ILOCWalker walker;
-
 	/** Constructor for the singleton instance. */
 	private Assembler() {
-		this.walker = new ILOCWalker();
+		// empty
 	}
 
 	/** Parses a given ILOC program given as a string, 
@@ -62,15 +81,86 @@ public class Assembler {
 	 * @throws FormatException if there was an error parsing the program
 	 */
 	public Program assemble(String program) throws FormatException {
-		return assemble(new ANTLRInputStream(program));
+		byte[] bytes;
+		try {
+			ByteBuffer buffer = StandardCharsets.UTF_8.newEncoder().encode(
+					CharBuffer.wrap(program));
+			bytes = Arrays.copyOf(buffer.array(), buffer.limit());
+		} catch (CharacterCodingException exc) {
+			return assemble(new ANTLRInputStream(program));
+		}
+		Program result = FastParser.parse(bytes, StandardCharsets.UTF_8);
+		if (result == null) {
+			return assemble(new ANTLRInputStream(program));
+		}
+		result.check();
+		return result;
 	}
 
 	/** Parses a given ILOC program given as a file, 
-	 * and returns the parsed program. 
+	 * and returns the parsed program.
+	 * The file is read in the platform's default charset. 
 	 * @throws FormatException if there was an error parsing the program
 	 */
 	public Program assemble(File file) throws FormatException, IOException {
-		return assemble(new ANTLRInputStream(new FileReader(file)));
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		Charset charset = Charset.defaultCharset();
+		Program result = null;
+		if (FastParser.isSupported(charset)) {
+			result = FastParser.parse(bytes, charset);
+		}
+		if (result == null) {
+			return assemble(new ANTLRInputStream(new String(bytes, charset)));
+		}
+		result.check();
+		return result;
+	}
+
+	/** Parses a collection of ILOC files in parallel, using the
+	 * common fork/join pool, and returns the parsed programs.
+	 * @return a mapping from the given files to their programs,
+	 * in the iteration order of the collection
+	 * @throws FormatException if there was an error parsing one of
+	 * the programs; the error of the first such file is thrown
+	 * @throws IOException if one of the files could not be read;
+	 * the error of the first such file is thrown
+	 */
+	public Map<File, Program> assembleAll(Collection<File> files)
+			throws FormatException, IOException {
+		List<Callable<Program>> tasks = new ArrayList<>(files.size());
+		for (final File file : files) {
+			tasks.add(new Callable<Program>() {
+				@Override
+				public Program call() throws FormatException, IOException {
+					return assemble(file);
+				}
+			});
+		}
+		List<Future<Program>> results = ForkJoinPool.commonPool().invokeAll(
+				tasks);
+		Map<File, Program> result = new LinkedHashMap<>();
+		Iterator<Future<Program>> resultIter = results.iterator();
+		for (File file : files) {
+			try {
+				result.put(file, resultIter.next().get());
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Assembly of " + file
+						+ " interrupted");
+			} catch (ExecutionException exc) {
+				Throwable cause = exc.getCause();
+				if (cause instanceof FormatException) {
+					throw (FormatException) cause;
+				} else if (cause instanceof IOException) {
+					throw (IOException) cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else {
+					throw (Error) cause;
+				}
+			}
+		}
+		return result;
 	}
 
 	/** Parses a given ILOC program given as a character stream, 
@@ -98,7 +188,7 @@ public class Assembler {
 	 * @throws FormatException if there was an error parsing the program
 	 */
 	public Program assemble(ParseTree tree) throws FormatException {
-		Program result = this.walker.walk(tree);
+		Program result = new ILOCWalker().walk(tree);
 		result.check();
 		return result;
 	}
@@ -129,6 +219,8 @@ public class Assembler {
 		private Map<Num, Token> symbolMap;
 		/** The error listener of this walker. */
 		private ErrorListener errors;
+		/** The canonical operands of the program. */
+		private OperandTable table;
 
 		public Program walk(ParseTree tree) throws FormatException {
 			// initialise the data structures
@@ -140,6 +232,7 @@ public class Assembler {
 			this.targets = new ParseTreeProperty<>();
 			this.labelMap = new HashMap<>();
 			this.symbolMap = new HashMap<>();
+			this.table = new OperandTable();
 			this.errors = new ErrorListener();
 			new ParseTreeWalker().walk(this, tree);
 			if (this.errors.hasErrors()) {
@@ -150,7 +243,7 @@ public class Assembler {
 
 		@Override
 		public void exitDecl(DeclContext ctx) {
-			Num symbol = new Num(ctx.ID().getText());
+			Num symbol = this.table.symb(ctx.ID().getText());
 			if (addSymbol(ctx.getStart(), symbol)) {
 				this.program.setSymb(symbol,
 						Integer.parseInt(ctx.NUM().getText()));
@@ -161,7 +254,7 @@ public class Assembler {
 		public void exitInstrList(InstrListContext ctx) {
 			OpList result = new OpList();
 			if (ctx.label() != null) {
-				Label label = new Label(ctx.label().getText());
+				Label label = this.table.label(ctx.label().getText());
 				if (addLabel(ctx.getStart(), label)) {
 					result.setLabel(label);
 				}
@@ -182,7 +275,7 @@ public class Assembler {
 			// op may be null if there was a format error
 			if (result != null) {
 				if (ctx.label() != null) {
-					Label label = new Label(ctx.label().getText());
+					Label label = this.table.label(ctx.label().getText());
 					if (addLabel(ctx.getStart(), label)) {
 						result.setLabel(label);
 					}
@@ -258,7 +351,7 @@ public class Assembler {
 				Type actualType = opnd.getType();
 				Type expectedType = sig.get(i);
 				if (expectedType == Type.REG && actualType == Type.LABEL) {
-					opnd = new Reg(((Label) opnd).getValue());
+					opnd = this.table.reg(((Label) opnd).getValue());
 				} else if (expectedType != actualType) {
 					throw new FormatException(
 							"Opcode '%s' %s operand %d should be %s but is %s",
@@ -306,14 +399,13 @@ public class Assembler {
 				result = new Str(str.substring(1, str.length() - 1).replaceAll(
 						"\\\"", "\""));
 			} else if (ctx.NUM() != null) {
-				result = new Num(Integer.parseInt(ctx.NUM().getText()));
+				result = this.table.num(Integer.parseInt(ctx.NUM().getText()));
 			} else if (ctx.SYMB() != null) {
-				result = new Num(ctx.SYMB().getText().substring(1));
+				result = this.table.symb(ctx.SYMB().getText().substring(1));
 			} else if (ctx.LAB() != null) {
-				result = new Num(
-						new Label(ctx.LAB().getText().substring(1)));
+				result = this.table.labelNum(ctx.LAB().getText().substring(1));
 			} else {
-				result = new Label(ctx.ID().getText());
+				result = this.table.label(ctx.ID().getText());
 			}
 			addOperand(ctx, result);
 		}
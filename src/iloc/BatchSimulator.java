@@ -0,0 +1,547 @@
+package iloc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import iloc.SimulationService.Result;
+import iloc.eval.Machine;
+import iloc.model.LinkedProgram;
+import iloc.model.OpCode;
+import iloc.model.Program;
+
+/**
+ * Simulator running a single program over many inputs.
+ * The program is decoded once, and the decoded form is shared by all
+ * runs (called lanes); every lane has its own {@link Simulator} and
+ * {@link Machine}. Lanes are distributed over a fork/join pool in
+ * chunks of {@link #CHUNK_SIZE}.
+ * <p>
+ * In lockstep mode, the lanes of a chunk are executed together:
+ * every operation is executed for all lanes of a group before the next
+ * operation, with registers stored per register slot across lanes.
+ * A group is split when its lanes take different branches. Pending groups
+ * are kept ordered by line, and the group at the lowest line runs first;
+ * it stops as soon as it reaches the line of another group, with which
+ * it is then merged. This lets groups that diverged at a branch run
+ * together again once their paths join. Lanes reaching an operation
+ * that is not supported in lockstep continue on their own.
+ * <p>
+ * Lockstep mode does not use SIMD instructions explicitly: every operation
+ * is a plain loop over the lane indices of a group, which the JIT compiler
+ * does not vectorise because of the indirection. The gain comes from
+ * dispatching every operation once per group rather than once per lane.
+ * The vector API ({@code jdk.incubator.vector}) is not used, as it is an
+ * incubator module that has to be added explicitly at compile and run time.
+ */
+public class BatchSimulator {
+	/** Number of lanes per parallel task. */
+	public static final int CHUNK_SIZE = 64;
+	/** The program run by this batch simulator. */
+	private final LinkedProgram prg;
+	/** The shared decoded form of the program. */
+	private final DecodedProgram decoded;
+	/** The engine used by lanes that run on their own. */
+	private Simulator.Engine engine = Simulator.DEFAULT_ENGINE;
+	/** Flag indicating that lanes are executed in lockstep. */
+	private boolean lockstep;
+	/** The pool on which the lanes are run. */
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/** Constructs a batch simulator for a given program. */
+	public BatchSimulator(Program program) {
+		this(program.link());
+	}
+
+	/** Constructs a batch simulator for a given linked program. */
+	public BatchSimulator(LinkedProgram program) {
+		this.prg = program;
+		this.decoded = DecodedProgram.decode(program);
+	}
+
+	/** Returns the program run by this batch simulator. */
+	public LinkedProgram getProgram() {
+		return this.prg;
+	}
+
+	/** Changes the engine used by lanes that run on their own. */
+	public void setEngine(Simulator.Engine engine) {
+		this.engine = engine;
+	}
+
+	/** Indicates if lanes are executed in lockstep. */
+	public boolean isLockstep() {
+		return this.lockstep;
+	}
+
+	/** Changes the lockstep mode. */
+	public void setLockstep(boolean lockstep) {
+		this.lockstep = lockstep;
+	}
+
+	/** Changes the pool on which lanes are run. */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Runs the program once for every input, and returns the results
+	 * in the order of the inputs. A failing lane does not affect the
+	 * other lanes; its failure is reported in its result.
+	 * @param inputs the bytes read by the input operations of every lane
+	 */
+	public List<Result> run(List<byte[]> inputs) {
+		Lane[] lanes = new Lane[inputs.size()];
+		this.pool.invoke(new Task(inputs, lanes, 0, lanes.length));
+		List<Result> result = new ArrayList<>(lanes.length);
+		for (Lane lane : lanes) {
+			result.add(lane.getResult());
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/** Runs a range of lanes on the current thread. */
+	private void run(List<byte[]> inputs, Lane[] lanes, int from, int to) {
+		for (int i = from; i < to; i++) {
+			lanes[i] = new Lane(inputs.get(i));
+		}
+		if (this.lockstep) {
+			new Lockstep(Arrays.copyOfRange(lanes, from, to)).run();
+		} else {
+			for (int i = from; i < to; i++) {
+				lanes[i].run(0);
+			}
+		}
+	}
+
+	/** Fork/join task running a range of lanes. */
+	private class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<byte[]> inputs;
+		private final Lane[] lanes;
+		private final int from;
+		private final int to;
+
+		Task(List<byte[]> inputs, Lane[] lanes, int from, int to) {
+			this.inputs = inputs;
+			this.lanes = lanes;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.to - this.from <= CHUNK_SIZE) {
+				run(this.inputs, this.lanes, this.from, this.to);
+			} else {
+				int mid = (this.from + this.to) >>> 1;
+				invokeAll(new Task(this.inputs, this.lanes, this.from, mid),
+						new Task(this.inputs, this.lanes, mid, this.to));
+			}
+		}
+	}
+
+	/** State of a single run. */
+	private class Lane {
+		/** The simulator of this lane. */
+		final Simulator sim;
+		/** The captured output of this lane. */
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		/** The exception that stopped this lane, if any. */
+		RuntimeException error;
+
+		Lane(byte[] input) {
+			this.sim = new Simulator(BatchSimulator.this.prg);
+			this.sim.setDebug(false);
+			this.sim.setEngine(BatchSimulator.this.engine);
+			this.sim.setIn(new ByteArrayInputStream(input),
+					SimulationService.CHARSET);
+			this.sim.setOut(this.out, SimulationService.CHARSET);
+		}
+
+		/** Runs this lane on its own, from a given line. */
+		void run(int pc) {
+			try {
+				this.sim.getVM().setPC(pc);
+				this.sim.run(BatchSimulator.this.decoded);
+			} catch (RuntimeException exc) {
+				this.error = exc;
+			}
+		}
+
+		/** Records a failure of this lane at a given line. */
+		void fail(int pc, RuntimeException exc) {
+			this.sim.getVM().setPC(pc);
+			this.error = exc;
+		}
+
+		Result getResult() {
+			return new Result(this.out.toByteArray(), this.error, this.sim
+					.getVM().getPC());
+		}
+	}
+
+	/** Lockstep execution of a number of lanes. */
+	private class Lockstep {
+		/** The lanes. */
+		private final Lane[] lanes;
+		/** The bound code, shared by all lanes. */
+		private final int[] code;
+		/** The VM register slots of every lane, indexed by lane
+		 * and array slot. */
+		private final int[][] slots;
+		/** The register values, indexed by slot and lane. */
+		private final int[][] regs;
+		/** Groups of lanes that are yet to be executed, indexed by line. */
+		private final TreeMap<Integer,Group> groups = new TreeMap<>();
+
+		Lockstep(Lane[] lanes) {
+			this.lanes = lanes;
+			DecodedProgram decoded = BatchSimulator.this.decoded;
+			int count = lanes.length;
+			// all lanes start from equal, fresh machines
+			Machine vm = count == 0 ? new Machine() : lanes[0].sim.getVM();
+			this.code = decoded.bind(vm);
+			this.slots = new int[count][];
+			this.regs = new int[decoded.getRegCount()][count];
+			int[] all = new int[count];
+			for (int lane = 0; lane < count; lane++) {
+				all[lane] = lane;
+				Machine laneVM = lanes[lane].sim.getVM();
+				int[] slots = decoded.bindRegs(laneVM);
+				this.slots[lane] = slots;
+				for (int slot = 0; slot < slots.length; slot++) {
+					this.regs[slot][lane] = laneVM.getReg(slots[slot]);
+				}
+			}
+			if (count > 0) {
+				add(all, 0);
+			}
+		}
+
+		/** Executes all groups of lanes, lowest line first. */
+		void run() {
+			while (!this.groups.isEmpty()) {
+				Group group = this.groups.pollFirstEntry().getValue();
+				run(group.lanes, group.pc);
+			}
+		}
+
+		/** Adds a group of lanes at a given line to the pending groups,
+		 * merging it with the group already pending at that line, if any. */
+		private void add(int[] lanes, int pc) {
+			Group other = this.groups.get(pc);
+			if (other != null) {
+				int[] merged = Arrays.copyOf(other.lanes, other.lanes.length
+						+ lanes.length);
+				System.arraycopy(lanes, 0, merged, other.lanes.length,
+						lanes.length);
+				Arrays.sort(merged);
+				lanes = merged;
+			}
+			this.groups.put(pc, new Group(lanes, pc));
+		}
+
+		/** Executes a group of lanes, starting at a given line,
+		 * until the group ends, splits, leaves lockstep or reaches
+		 * a line at or beyond the first pending group. */
+		private void run(int[] lanes, int pc) {
+			DecodedProgram decoded = BatchSimulator.this.decoded;
+			int size = decoded.size();
+			int[] code = this.code;
+			int[][] regs = this.regs;
+			int n = lanes.length;
+			// the line of the first pending group
+			int waiting = this.groups.isEmpty() ? Integer.MAX_VALUE
+					: this.groups.firstKey();
+			while (pc < size) {
+				int ix = pc * DecodedProgram.STRIDE;
+				int opCode = code[ix];
+				if (opCode == DecodedProgram.SLOW) {
+					leave(lanes, pc);
+					return;
+				}
+				int a = code[ix + 1];
+				int b = code[ix + 2];
+				int c = code[ix + 3];
+				int next = pc + 1;
+				int i = 0;
+				try {
+					switch (OPCODES[opCode]) {
+					case add:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] + regs[b][l];
+						}
+						break;
+					case sub:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] - regs[b][l];
+						}
+						break;
+					case mult:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] * regs[b][l];
+						}
+						break;
+					case div:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] / regs[b][l];
+						}
+						break;
+					case addI:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] + b;
+						}
+						break;
+					case subI:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] - b;
+						}
+						break;
+					case rsubI:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = b - regs[a][l];
+						}
+						break;
+					case multI:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] * b;
+						}
+						break;
+					case divI:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] / b;
+						}
+						break;
+					case rdivI:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = b / regs[a][l];
+						}
+						break;
+					case loadI:
+						for (i = 0; i < n; i++) {
+							regs[b][lanes[i]] = a;
+						}
+						break;
+					case load:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[b][l] = vm(l).load(regs[a][l]);
+						}
+						break;
+					case loadAI:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = vm(l).load(regs[a][l] + b);
+						}
+						break;
+					case loadAO:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = vm(l).load(regs[a][l] + regs[b][l]);
+						}
+						break;
+					case store:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							vm(l).store(regs[a][l], regs[b][l]);
+						}
+						break;
+					case storeAI:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							vm(l).store(regs[a][l], regs[b][l] + c);
+						}
+						break;
+					case storeAO:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							vm(l).store(regs[a][l], regs[b][l] + regs[c][l]);
+						}
+						break;
+					case i2i:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[b][l] = regs[a][l];
+						}
+						break;
+					case cmp_LT:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] < regs[b][l] ? Simulator.TRUE
+									: Simulator.FALSE;
+						}
+						break;
+					case cmp_LE:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] <= regs[b][l] ? Simulator.TRUE
+									: Simulator.FALSE;
+						}
+						break;
+					case cmp_EQ:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] == regs[b][l] ? Simulator.TRUE
+									: Simulator.FALSE;
+						}
+						break;
+					case cmp_GE:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] >= regs[b][l] ? Simulator.TRUE
+									: Simulator.FALSE;
+						}
+						break;
+					case cmp_GT:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] > regs[b][l] ? Simulator.TRUE
+									: Simulator.FALSE;
+						}
+						break;
+					case cmp_NE:
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[c][l] = regs[a][l] != regs[b][l] ? Simulator.TRUE
+									: Simulator.FALSE;
+						}
+						break;
+					case cbr:
+						int taken = 0;
+						for (i = 0; i < n; i++) {
+							if (regs[a][lanes[i]] != 0) {
+								taken++;
+							}
+						}
+						if (taken == n) {
+							next = b;
+						} else if (taken == 0) {
+							next = c;
+						} else {
+							// the lanes diverge
+							int[] yes = new int[taken];
+							int[] no = new int[n - taken];
+							int y = 0;
+							for (i = 0; i < n; i++) {
+								int l = lanes[i];
+								if (regs[a][l] != 0) {
+									yes[y++] = l;
+								} else {
+									no[i - y] = l;
+								}
+							}
+							add(yes, b);
+							add(no, c);
+							return;
+						}
+						break;
+					case jumpI:
+						next = a;
+						break;
+					case in:
+						String prompt = decoded.getText(pc);
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							regs[b][l] = this.lanes[l].sim.readInt(prompt);
+						}
+						break;
+					case out:
+						String message = decoded.getText(pc);
+						for (i = 0; i < n; i++) {
+							int l = lanes[i];
+							this.lanes[l].sim.output(message,
+									Integer.toString(regs[b][l]));
+						}
+						break;
+					case nop:
+					case tbl:
+					case comment:
+						break;
+					default:
+						// not supported in lockstep
+						leave(lanes, pc);
+						return;
+					}
+				} catch (RuntimeException exc) {
+					// lane i failed; the lanes before it have executed the operation
+					this.lanes[lanes[i]].fail(pc, exc);
+					if (i > 0) {
+						add(Arrays.copyOfRange(lanes, 0, i), pc + 1);
+					}
+					if (i + 1 < n) {
+						add(Arrays.copyOfRange(lanes, i + 1, n), pc);
+					}
+					return;
+				}
+				if (next >= waiting && next < size) {
+					// let the lower groups catch up, or join the group there
+					add(lanes, next);
+					return;
+				}
+				pc = next;
+			}
+			for (int l : lanes) {
+				storeRegs(l);
+				vm(l).setPC(pc);
+			}
+		}
+
+		/** Continues a group of lanes on their own, from a given line. */
+		private void leave(int[] lanes, int pc) {
+			for (int l : lanes) {
+				storeRegs(l);
+				this.lanes[l].run(pc);
+			}
+		}
+
+		/** Copies the register values of a lane into its VM. */
+		private void storeRegs(int lane) {
+			Machine vm = vm(lane);
+			int[] slots = this.slots[lane];
+			for (int slot = 0; slot < slots.length; slot++) {
+				if (BatchSimulator.this.decoded.isRegDef(slot)
+						|| vm.hasReg(slots[slot])) {
+					vm.setReg(slots[slot], this.regs[slot][lane]);
+				}
+			}
+		}
+
+		/** Returns the VM of a given lane. */
+		private Machine vm(int lane) {
+			return this.lanes[lane].sim.getVM();
+		}
+	}
+
+	/** Group of lanes at the same line. */
+	private static class Group {
+		/** The lane indices. */
+		final int[] lanes;
+		/** The current line. */
+		final int pc;
+
+		Group(int[] lanes, int pc) {
+			this.lanes = lanes;
+			this.pc = pc;
+		}
+	}
+
+	/** All opcodes, indexed by ordinal. */
+	private static final OpCode[] OPCODES = OpCode.values();
+}
@@ -0,0 +1,383 @@
+package iloc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import iloc.model.Instr;
+import iloc.model.Label;
+import iloc.model.Num;
+import iloc.model.Op;
+import iloc.model.OpCode;
+import iloc.model.OpList;
+import iloc.model.Operand;
+import iloc.model.OperandTable;
+import iloc.model.Operand.Type;
+import iloc.model.Program;
+import iloc.model.Reg;
+import iloc.model.Str;
+
+/**
+ * Compact binary format for ILOC programs, conventionally stored in
+ * files with extension {@link #EXTENSION}.
+ * All names, strings, comments and opcodes are stored once, in a string
+ * table, and referred to by index; indices and numbers are stored
+ * as variable-length integers. Reading a program requires neither
+ * parsing nor ANTLR.
+ * <p>
+ * Layout: magic number, version, string table, symbolic constants,
+ * and instructions. An instruction is an operation or an operation list,
+ * with an optional label; an operation consists of its opcode,
+ * optional comment and operands.
+ */
+public final class BinaryFormat {
+	/** File extension of binary ILOC programs. */
+	public static final String EXTENSION = ".ilocb";
+	/** Magic number at the start of a binary ILOC program. */
+	private static final int MAGIC = 0x494C4342;
+	/** Version of the binary format. */
+	private static final int VERSION = 1;
+	/** Instruction kind of a single operation. */
+	private static final int KIND_OP = 0;
+	/** Instruction kind of an operation list. */
+	private static final int KIND_LIST = 1;
+
+	private BinaryFormat() {
+		// no instances
+	}
+
+	/** Indicates if a given file name has the binary format extension. */
+	public static boolean isBinary(String fileName) {
+		return fileName.endsWith(EXTENSION);
+	}
+
+	/** Writes a program to a file in binary format. */
+	public static void write(Program program, Path file) throws IOException {
+		try (OutputStream out = Files.newOutputStream(file)) {
+			write(program, out);
+		}
+	}
+
+	/** Writes a program to an output stream in binary format.
+	 * The stream is not closed. */
+	public static void write(Program program, OutputStream out)
+			throws IOException {
+		Writer writer = new Writer();
+		writer.write(program);
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeShort(VERSION);
+		ByteArrayOutputStream table = new ByteArrayOutputStream();
+		writeVarInt(table, writer.strings.size());
+		for (String string : writer.strings.keySet()) {
+			byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(table, bytes.length);
+			table.write(bytes);
+		}
+		table.writeTo(data);
+		writer.body.writeTo(data);
+		data.flush();
+	}
+
+	/** Reads a program in binary format from a file,
+	 * with a single read of the entire file. */
+	public static Program read(Path file) throws IOException {
+		return read(ByteBuffer.wrap(Files.readAllBytes(file)));
+	}
+
+	/** Reads a program in binary format from a memory-mapped file. */
+	public static Program map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0,
+					channel.size());
+			return read(buffer);
+		}
+	}
+
+	/** Reads a program in binary format from a buffer, starting at
+	 * its current position.
+	 * @throws IOException if the buffer does not contain a well-formed
+	 * binary ILOC program
+	 */
+	public static Program read(ByteBuffer buffer) throws IOException {
+		try {
+			return new Reader(buffer).read();
+		} catch (BufferUnderflowException | IllegalArgumentException
+				| IndexOutOfBoundsException | NegativeArraySizeException exc) {
+			throw new IOException("Malformed binary ILOC program", exc);
+		}
+	}
+
+	/** Writes a non-negative variable-length integer:
+	 * seven bits per byte, least significant first. */
+	private static void writeVarInt(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/** Reads a non-negative variable-length integer. */
+	private static int readVarInt(ByteBuffer in) throws IOException {
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.get();
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new IOException("Malformed variable-length integer");
+	}
+
+	/** Collects the string table and writes the body of a program. */
+	private static class Writer {
+		/** Mapping from strings to their indices in the string table. */
+		final Map<String, Integer> strings = new LinkedHashMap<>();
+		/** The program body, referring to the string table. */
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		void write(Program program) {
+			Map<Num, Integer> symbs = program.getSymbMap();
+			writeVarInt(this.body, symbs.size());
+			for (Map.Entry<Num, Integer> e : symbs.entrySet()) {
+				writeString(e.getKey().getName());
+				writeSigned(e.getValue());
+			}
+			List<Instr> instrs = program.getInstr();
+			writeVarInt(this.body, instrs.size());
+			for (Instr instr : instrs) {
+				if (instr instanceof Op) {
+					this.body.write(KIND_OP);
+				} else {
+					this.body.write(KIND_LIST);
+				}
+				writeOptString(instr.hasLabel() ? instr.getLabel().getValue()
+						: null);
+				if (instr instanceof OpList) {
+					writeVarInt(this.body, instr.size());
+				}
+				for (Op op : instr) {
+					writeOp(op);
+				}
+			}
+		}
+
+		private void writeOp(Op op) {
+			writeString(op.getOpCode().name());
+			writeOptString(op.hasComment() ? op.getComment() : null);
+			for (Operand arg : op.getArgs()) {
+				switch (arg.getType()) {
+				case REG:
+					writeString(((Reg) arg).getName());
+					break;
+				case LABEL:
+					writeString(((Label) arg).getValue());
+					break;
+				case STR:
+					writeString(((Str) arg).getText());
+					break;
+				case NUM:
+					Num num = (Num) arg;
+					this.body.write(num.getKind().ordinal());
+					switch (num.getKind()) {
+					case LIT:
+						writeSigned(num.getValue());
+						break;
+					case SYMB:
+						writeString(num.getName());
+						break;
+					case LAB:
+						writeString(num.getLabel().getValue());
+						break;
+					}
+				}
+			}
+		}
+
+		/** Writes a signed integer in zigzag encoding. */
+		private void writeSigned(int value) {
+			writeVarInt(this.body, (value << 1) ^ (value >> 31));
+		}
+
+		/** Writes the index of a string. */
+		private void writeString(String string) {
+			writeVarInt(this.body, index(string));
+		}
+
+		/** Writes the index of an optional string, shifted by one
+		 * so that 0 stands for no string. */
+		private void writeOptString(String string) {
+			writeVarInt(this.body, string == null ? 0 : index(string) + 1);
+		}
+
+		/** Returns the index of a string in the string table,
+		 * adding the string if it is new. */
+		private int index(String string) {
+			Integer result = this.strings.get(string);
+			if (result == null) {
+				result = this.strings.size();
+				this.strings.put(string, result);
+			}
+			return result;
+		}
+	}
+
+	/** Reads a program from a buffer. */
+	private static class Reader {
+		private final ByteBuffer in;
+		/** The string table. */
+		private String[] strings;
+		/** Registers, labels and strings created so far, by string index. */
+		private Operand[] regs, labels, strs;
+		/** The canonical operands of the program being read. */
+		private final OperandTable table = new OperandTable();
+
+		Reader(ByteBuffer in) {
+			this.in = in;
+		}
+
+		Program read() throws IOException {
+			if (this.in.getInt() != MAGIC) {
+				throw new IOException("Not a binary ILOC program");
+			}
+			int version = this.in.getShort();
+			if (version != VERSION) {
+				throw new IOException("Unsupported binary ILOC version "
+						+ version);
+			}
+			int count = readVarInt(this.in);
+			this.strings = new String[count];
+			for (int i = 0; i < count; i++) {
+				byte[] bytes = new byte[readVarInt(this.in)];
+				this.in.get(bytes);
+				this.strings[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			this.regs = new Operand[count];
+			this.labels = new Operand[count];
+			this.strs = new Operand[count];
+			Program result = new Program();
+			int symbCount = readVarInt(this.in);
+			for (int i = 0; i < symbCount; i++) {
+				result.setSymb(this.table.symb(readString()), readSigned());
+			}
+			int instrCount = readVarInt(this.in);
+			for (int i = 0; i < instrCount; i++) {
+				int kind = this.in.get();
+				String label = readOptString();
+				Instr instr;
+				if (kind == KIND_OP) {
+					instr = readOp();
+				} else if (kind == KIND_LIST) {
+					OpList list = new OpList();
+					int size = readVarInt(this.in);
+					for (int o = 0; o < size; o++) {
+						list.addOp(readOp());
+					}
+					instr = list;
+				} else {
+					throw new IOException("Unknown instruction kind " + kind);
+				}
+				if (label != null) {
+					instr.setLabel(this.table.label(label));
+				}
+				result.addInstr(instr);
+			}
+			return result;
+		}
+
+		private Op readOp() throws IOException {
+			OpCode opCode = OpCode.valueOf(readString());
+			String comment = readOptString();
+			List<Type> sig = opCode.getSig();
+			List<Operand> args = new ArrayList<>(sig.size());
+			for (Type type : sig) {
+				switch (type) {
+				case REG:
+					args.add(readOperand(this.regs, type));
+					break;
+				case LABEL:
+					args.add(readOperand(this.labels, type));
+					break;
+				case STR:
+					args.add(readOperand(this.strs, type));
+					break;
+				case NUM:
+					args.add(readNum());
+					break;
+				}
+			}
+			Op result = new Op(opCode, args);
+			if (comment != null) {
+				result.setComment(comment);
+			}
+			return result;
+		}
+
+		/** Reads a register, label or string operand, reusing the
+		 * operand read earlier for the same string. */
+		private Operand readOperand(Operand[] cache, Type type)
+				throws IOException {
+			int index = readVarInt(this.in);
+			Operand result = cache[index];
+			if (result == null) {
+				String string = this.strings[index];
+				switch (type) {
+				case REG:
+					result = this.table.reg(string);
+					break;
+				case LABEL:
+					result = this.table.label(string);
+					break;
+				default:
+					result = new Str(string);
+				}
+				cache[index] = result;
+			}
+			return result;
+		}
+
+		private Num readNum() throws IOException {
+			int kind = this.in.get();
+			switch (Num.NumKind.values()[kind]) {
+			case LIT:
+				return this.table.num(readSigned());
+			case SYMB:
+				return this.table.symb(readString());
+			default:
+				return this.table.labelNum(readString());
+			}
+		}
+
+		/** Reads a signed integer in zigzag encoding. */
+		private int readSigned() throws IOException {
+			int value = readVarInt(this.in);
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private String readString() throws IOException {
+			return this.strings[readVarInt(this.in)];
+		}
+
+		private String readOptString() throws IOException {
+			int index = readVarInt(this.in);
+			return index == 0 ? null : this.strings[index - 1];
+		}
+	}
+}
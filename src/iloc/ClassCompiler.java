@@ -0,0 +1,865 @@
+package iloc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import iloc.eval.Machine;
+import iloc.model.Op;
+import iloc.model.OpCode;
+import iloc.model.Operand.Type;
+
+/**
+ * Ahead-of-time translator from decoded ILOC programs to JVM classes.
+ * The program is split into regions of consecutive lines, and every
+ * region is translated into a method in which the registers used in the
+ * region are local variables and every line is a case of a
+ * {@code switch} on the program counter; consecutive lines fall through,
+ * and jumps set the program counter and restart the switch.
+ * Jumps out of a region return to a dispatching method, which calls
+ * the method of the region containing the new program counter.
+ * Regions are kept below the size up to which HotSpot JIT-compiles
+ * methods (see {@link #METHOD_BYTES}), and are preferably ended at
+ * labels, so that a loop usually runs within one compiled method.
+ * The class is compiled in memory by the platform Java compiler
+ * and loaded through a private class loader. This requires a JDK rather
+ * than a JRE, and the classes of this package on the system class path;
+ * otherwise, the program is not compiled (see {@link Simulator.Engine#CLASS}).
+ * Input and output go through the same {@link Simulator} methods
+ * as in the interpreters, so the output is identical.
+ */
+public class ClassCompiler {
+	/**
+	 * Maximum number of operations in a compiled program.
+	 * The time taken by the Java compiler grows linearly with the
+	 * program size, by roughly 0.15 ms per operation; this limit keeps
+	 * it in the order of seconds.
+	 */
+	public static final int MAX_SIZE = 20000;
+	/**
+	 * Estimated maximum bytecode size of a region method.
+	 * HotSpot does not JIT-compile methods larger than 8000 bytes
+	 * ({@code -XX:HugeMethodLimit}), and its client compiler already
+	 * gives up on a switch of a few hundred operations.
+	 */
+	static final int METHOD_BYTES = 1500;
+	/** Estimated bytecode size of a translated operation,
+	 * including the increment of the operation count. */
+	private static final int OP_BYTES = 18;
+	/** Estimated bytecode size of a copy between a register local
+	 * and the register array. */
+	private static final int REG_BYTES = 8;
+	/** Package of the generated classes. */
+	private static final String PACKAGE = "iloc.gen";
+	/**
+	 * Compiled code, by the source text of its methods.
+	 * Decoded programs are only cached as long as memory permits,
+	 * and a modified program is decoded anew, so this avoids
+	 * compiling the same code more than once.
+	 * The values are tasks, which are run outside the lock on the cache,
+	 * so that different programs can be compiled at the same time.
+	 */
+	private static final Map<String, FutureTask<Code>> cache = new LinkedHashMap<String, FutureTask<Code>>(
+			16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, FutureTask<Code>> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+	/** Maximum number of cached compiled programs. */
+	private static final int CACHE_SIZE = 64;
+	/** Counter to generate unique class names. */
+	private static final AtomicInteger classCount = new AtomicInteger();
+
+	/**
+	 * Translates a decoded program into a JVM class and returns
+	 * an instance of it.
+	 * If the program cannot be compiled, the reason is reported
+	 * on {@link System#err}. A failed compilation is cached like a
+	 * successful one, so it is not retried for the same code.
+	 * @return the compiled code, or {@code null} if the program is larger
+	 * than {@link #MAX_SIZE}, no Java compiler is available, or the
+	 * generated class fails to compile
+	 * @throws InterruptedException if the current thread is interrupted
+	 * while waiting for another thread compiling the same code
+	 */
+	static Code compile(DecodedProgram decoded) throws InterruptedException {
+		final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			System.err.println("No Java compiler available; running "
+					+ Simulator.Engine.SWITCH + " instead of "
+					+ Simulator.Engine.CLASS);
+			return null;
+		}
+		if (decoded.size() > MAX_SIZE) {
+			System.err.printf("Program of %d operations exceeds the maximum "
+					+ "of %d for %s; running %s instead%n", decoded.size(),
+					MAX_SIZE, Simulator.Engine.CLASS, Simulator.Engine.SWITCH);
+			return null;
+		}
+		final String methods = new ClassCompiler(decoded).translate();
+		FutureTask<Code> task;
+		boolean owner = false;
+		synchronized (cache) {
+			task = cache.get(methods);
+			if (task == null) {
+				task = new FutureTask<>(new Callable<Code>() {
+					@Override
+					public Code call() {
+						try {
+							return compile(compiler, methods);
+						} catch (IllegalStateException exc) {
+							System.err.printf("%s; running %s instead of %s%n",
+									exc.getMessage(), Simulator.Engine.SWITCH,
+									Simulator.Engine.CLASS);
+							return null;
+						}
+					}
+				});
+				cache.put(methods, task);
+				owner = true;
+			}
+		}
+		if (owner) {
+			task.run();
+		}
+		try {
+			return task.get();
+		} catch (ExecutionException exc) {
+			// an unexpected failure of the compiler; allow a retry
+			synchronized (cache) {
+				if (cache.get(methods) == task) {
+					cache.remove(methods);
+				}
+			}
+			if (exc.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) exc.getCause();
+			}
+			throw new IllegalStateException(exc.getCause());
+		}
+	}
+
+	/** Compiles a class consisting of given methods,
+	 * and returns an instance of it. */
+	private static Code compile(JavaCompiler compiler, String methods) {
+		String name = "Program" + classCount.incrementAndGet();
+		String source = String.format("package %s;%n"
+				+ "public final class %s implements %s {%n%s}%n", PACKAGE,
+				name, Code.class.getCanonicalName(), methods);
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		StandardJavaFileManager standard = compiler.getStandardFileManager(
+				diagnostics, null, null);
+		ClassFileManager files = new ClassFileManager(standard);
+		List<String> options = Arrays.asList("-classpath",
+				System.getProperty("java.class.path"), "-g:none");
+		JavaFileObject unit = new SourceFile(PACKAGE + "." + name, source);
+		boolean success = compiler.getTask(null, files, diagnostics, options,
+				null, Collections.singleton(unit)).call();
+		if (!success) {
+			StringBuilder message = new StringBuilder(
+					"Generated class does not compile:");
+			for (Diagnostic<?> d : diagnostics.getDiagnostics()) {
+				message.append('\n');
+				message.append(d.getMessage(null));
+			}
+			throw new IllegalStateException(message.toString());
+		}
+		try {
+			ClassLoader loader = new CodeLoader(files.getClasses());
+			return (Code) loader.loadClass(PACKAGE + "." + name)
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException exc) {
+			throw new IllegalStateException(exc);
+		}
+	}
+
+	/** The program to be translated. */
+	private final DecodedProgram decoded;
+	/** The source text under construction. */
+	private final StringBuilder source;
+
+	private ClassCompiler(DecodedProgram decoded) {
+		this.decoded = decoded;
+		this.source = new StringBuilder();
+	}
+
+	/**
+	 * Returns the source text of the methods for the program:
+	 * a dispatching run method, and one method per region.
+	 */
+	private String translate() {
+		List<int[]> regions = split();
+		emit("public void run(int[] regs, int[] code, %s vm, %s host, int pc) {",
+				Machine.class.getCanonicalName(),
+				Host.class.getCanonicalName());
+		emit("while (pc < %d) {", this.decoded.size());
+		emitDispatch(regions, 0, regions.size());
+		emit("}");
+		emit("vm.setPC(pc);");
+		emit("}");
+		for (int i = 0; i < regions.size(); i++) {
+			int[] region = regions.get(i);
+			emitRegion(i, region[0], region[1]);
+		}
+		return this.source.toString();
+	}
+
+	/**
+	 * Splits the program into regions of consecutive lines, each of which
+	 * is small enough to be translated into a method that the JIT
+	 * compiles. Where possible, a region is ended just before the target
+	 * of a label, so that loops tend to stay within a single region.
+	 * @return the regions, as pairs of start line (inclusive) and
+	 * end line (exclusive)
+	 */
+	private List<int[]> split() {
+		List<int[]> result = new ArrayList<>();
+		int size = this.decoded.size();
+		int start = 0;
+		while (start < size) {
+			Set<Integer> regs = new HashSet<>();
+			int bytes = 0;
+			int slowCount = 0;
+			int end = start;
+			while (end < size) {
+				Set<Integer> lineRegs = new HashSet<>(regs);
+				lineRegs.addAll(getRegs(end));
+				int lineSlow = isSlow(end) ? 1 : 0;
+				int lineBytes = estimate(bytes + OP_BYTES, slowCount + lineSlow,
+						lineRegs.size());
+				if (end > start && (lineBytes > METHOD_BYTES
+						|| this.decoded.isTarget(end)
+						&& 2 * estimate(bytes, slowCount, regs.size()) > METHOD_BYTES)) {
+					break;
+				}
+				regs = lineRegs;
+				bytes += OP_BYTES;
+				slowCount += lineSlow;
+				end++;
+			}
+			result.add(new int[] { start, end });
+			start = end;
+		}
+		return result;
+	}
+
+	/** Estimates the bytecode size of a region method.
+	 * @param opBytes the estimated size of the operations
+	 * @param slowCount the number of operations that may be slow
+	 * @param regCount the number of registers used in the region
+	 */
+	private static int estimate(int opBytes, int slowCount, int regCount) {
+		// registers are loaded on entry, stored on exit (twice, by the
+		// finally clause) and spilled around the slow operations
+		return opBytes + (slowCount > 0 ? 5 : 3) * REG_BYTES * regCount;
+	}
+
+	/** Indicates if the operation at a given line is, or may become,
+	 * a slow operation. */
+	private boolean isSlow(int line) {
+		return this.decoded.getCode()[line * DecodedProgram.STRIDE] == DecodedProgram.SLOW
+				|| this.decoded.isBindSlow(line);
+	}
+
+	/** Returns the register slots used by the operation at a given line. */
+	private Set<Integer> getRegs(int line) {
+		Set<Integer> result = new HashSet<>();
+		Op op = this.decoded.getProgram().getOpAt(line);
+		for (int i = 0; i < op.getArgCount(); i++) {
+			if (op.arg(i).getType() == Type.REG) {
+				result.add(this.decoded.getCode()[line * DecodedProgram.STRIDE
+						+ 1 + i]);
+			}
+		}
+		switch (op.getOpCode()) {
+		case push:
+		case pop:
+		case cpush:
+		case cpop:
+		case cin:
+		case cout:
+			result.add(Machine.SP_SLOT);
+			break;
+		default:
+			// no implicit registers
+		}
+		return result;
+	}
+
+	/** Emits a binary search over a range of regions, calling the
+	 * method of the region containing the program counter. */
+	private void emitDispatch(List<int[]> regions, int from, int to) {
+		if (to - from == 1) {
+			emit("pc = region%d(regs, code, vm, host, pc);", from);
+		} else {
+			int mid = (from + to) / 2;
+			emit("if (pc < %d) {", regions.get(mid)[0]);
+			emitDispatch(regions, from, mid);
+			emit("} else {");
+			emitDispatch(regions, mid, to);
+			emit("}");
+		}
+	}
+
+	/**
+	 * Emits the method for a region of the program.
+	 * The registers used in the region are local variables of the method;
+	 * the method returns the line at which execution continues
+	 * when control leaves the region.
+	 */
+	private void emitRegion(int index, int start, int end) {
+		Set<Integer> regs = new TreeSet<>();
+		for (int line = start; line < end; line++) {
+			regs.addAll(getRegs(line));
+		}
+		emit("private static int region%d(int[] regs, int[] code, %s vm, %s host, int pc) {",
+				index, Machine.class.getCanonicalName(),
+				Host.class.getCanonicalName());
+		for (int slot : regs) {
+			emit("int r%d = regs[%d];", slot, slot);
+		}
+		boolean slow = false;
+		for (int line = start; line < end; line++) {
+			slow |= isSlow(line);
+		}
+		emit("long s = host.getSteps();");
+		emit("long check = host.getStepCheck();");
+		emit("try {");
+		emit("while (pc >= %d && pc < %d) {", start, end);
+		if (slow) {
+			emit("slow: {");
+		}
+		emit("switch (pc) {");
+		int[] code = this.decoded.getCode();
+		for (int line = start; line < end; line++) {
+			emit("case %d:", line);
+			emit("s++;");
+			int ix = line * DecodedProgram.STRIDE;
+			if (code[ix] == DecodedProgram.SLOW) {
+				emitSlow(line);
+				continue;
+			}
+			if (this.decoded.isBindSlow(line)) {
+				// the operation becomes slow if a constant is unresolved
+				// or a register is undefined
+				emit("if (code[%d] == %d) {", ix, DecodedProgram.SLOW);
+				emitSlow(line);
+				emit("}");
+			}
+			emitOp(line);
+		}
+		emit("}");
+		emit("pc = %d;", end);
+		if (slow) {
+			emit("continue;");
+			emit("}");
+			// slow operation at pc; the other registers are not held in
+			// locals of this region
+			for (int slot : regs) {
+				emit("regs[%d] = r%d;", slot, slot);
+			}
+			emit("pc = host.slowStep(pc);");
+			for (int slot : regs) {
+				emit("r%d = regs[%d];", slot, slot);
+			}
+		}
+		emit("}");
+		emit("return pc;");
+		emit("} finally {");
+		emit("vm.setPC(pc);");
+		emit("host.setSteps(s);");
+		for (int slot : regs) {
+			emit("regs[%d] = r%d;", slot, slot);
+		}
+		emit("}");
+		emit("}");
+	}
+
+	/** Emits the statements for a normally decoded operation. */
+	private void emitOp(int line) {
+		int ix = line * DecodedProgram.STRIDE;
+		int[] code = this.decoded.getCode();
+		String a = operand(ix + 1);
+		String b = operand(ix + 2);
+		String c = operand(ix + 3);
+		String ra = "r" + code[ix + 1];
+		String rb = "r" + code[ix + 2];
+		String rc = "r" + code[ix + 3];
+		String sp = "r" + Machine.SP_SLOT;
+		switch (OPCODES[code[ix]]) {
+		case add:
+			emit("%s = %s + %s;", rc, ra, rb);
+			break;
+		case sub:
+			emit("%s = %s - %s;", rc, ra, rb);
+			break;
+		case mult:
+			emit("%s = %s * %s;", rc, ra, rb);
+			break;
+		case div:
+			emitLine(line);
+			emit("%s = %s / %s;", rc, ra, rb);
+			break;
+		case addI:
+			emit("%s = %s + %s;", rc, ra, b);
+			break;
+		case subI:
+			emit("%s = %s - %s;", rc, ra, b);
+			break;
+		case rsubI:
+			emit("%s = %s - %s;", rc, b, ra);
+			break;
+		case multI:
+			emit("%s = %s * %s;", rc, ra, b);
+			break;
+		case divI:
+			emitLine(line);
+			emit("%s = %s / %s;", rc, ra, b);
+			break;
+		case rdivI:
+			emitLine(line);
+			emit("%s = %s / %s;", rc, b, ra);
+			break;
+		case lshift:
+			emit("%s = %s << %s;", rc, ra, rb);
+			break;
+		case lshiftI:
+			emit("%s = %s << %s;", rc, ra, b);
+			break;
+		case rshift:
+			emit("%s = %s >>> %s;", rc, ra, rb);
+			break;
+		case rshiftI:
+			emit("%s = %s >>> %s;", rc, ra, b);
+			break;
+		case and:
+			emit("%s = -1 * %s * %s;", rc, ra, rb);
+			break;
+		case andI:
+			emit("%s = -1 * %s * %s;", rc, ra, b);
+			break;
+		case or:
+			emit("%s = Math.max(-1, %s + %s);", rc, ra, rb);
+			break;
+		case orI:
+			emit("%s = Math.max(-1, %s + %s);", rc, ra, b);
+			break;
+		case xor:
+			emit("%s = Math.max(-1, %s ^ %s);", rc, ra, rb);
+			break;
+		case xorI:
+			emit("%s = Math.max(-1, %s ^ %s);", rc, ra, b);
+			break;
+		case load:
+			emitLine(line);
+			emit("%s = vm.load(%s);", rb, ra);
+			break;
+		case loadI:
+			emit("%s = %s;", rb, a);
+			break;
+		case loadAI:
+			emitLine(line);
+			emit("%s = vm.load(%s + %s);", rc, ra, b);
+			break;
+		case loadAO:
+			emitLine(line);
+			emit("%s = vm.load(%s + %s);", rc, ra, rb);
+			break;
+		case store:
+			emitLine(line);
+			emit("vm.store(%s, %s);", ra, rb);
+			break;
+		case storeAI:
+			emitLine(line);
+			emit("vm.store(%s, %s + %s);", ra, rb, c);
+			break;
+		case storeAO:
+			emitLine(line);
+			emit("vm.store(%s, %s + %s);", ra, rb, rc);
+			break;
+		case cload:
+			emitLine(line);
+			emit("%s = vm.loadC(%s);", rb, ra);
+			break;
+		case cloadAI:
+			emitLine(line);
+			emit("%s = vm.loadC(%s + %s);", rc, ra, b);
+			break;
+		case cloadAO:
+			emitLine(line);
+			emit("%s = vm.loadC(%s + %s);", rc, ra, rb);
+			break;
+		case cstore:
+			emitLine(line);
+			emit("vm.storeC(%s, %s);", ra, rb);
+			break;
+		case cstoreAI:
+			emitLine(line);
+			emit("vm.storeC(%s, %s + %s);", ra, rb, c);
+			break;
+		case cstoreAO:
+			emitLine(line);
+			emit("vm.storeC(%s, %s + %s);", ra, rb, rc);
+			break;
+		case ccopy:
+			emitLine(line);
+			emit("vm.copyC(%s, %s, %s);", ra, rc, rb);
+			break;
+		case i2i:
+			emit("%s = %s;", rb, ra);
+			break;
+		case i2c:
+		case c2i:
+		case c2c:
+			emit("%s = (byte) %s;", rb, ra);
+			break;
+		case cmp_LT:
+			emitCmp(rc, ra, "<", rb);
+			break;
+		case cmp_LE:
+			emitCmp(rc, ra, "<=", rb);
+			break;
+		case cmp_EQ:
+			emitCmp(rc, ra, "==", rb);
+			break;
+		case cmp_GE:
+			emitCmp(rc, ra, ">=", rb);
+			break;
+		case cmp_GT:
+			emitCmp(rc, ra, ">", rb);
+			break;
+		case cmp_NE:
+			emitCmp(rc, ra, "!=", rb);
+			break;
+		case cbr:
+			emit("pc = %s == 0 ? %s : %s;", ra, c, b);
+			if (isBackward(line, ix + 2) || isBackward(line, ix + 3)) {
+				emitCheck();
+			}
+			emit("continue;");
+			break;
+		case jumpI:
+			emit("pc = %s;", a);
+			if (isBackward(line, ix + 1)) {
+				emitCheck();
+			}
+			emit("continue;");
+			break;
+		case jump:
+			emitLine(line);
+			emit("if (%s < 0) {", ra);
+			emit("throw new IllegalArgumentException(\"Trying to jump to line \" + %s);",
+					ra);
+			emit("}");
+			emit("pc = %s;", ra);
+			emitCheck();
+			emit("continue;");
+			break;
+		case push:
+			emitLine(line);
+			emit("%s -= %d;", sp, Machine.INT_SIZE);
+			emit("vm.store(%s, %s);", ra, sp);
+			break;
+		case pop:
+			emitLine(line);
+			emit("%s += %d;", sp, Machine.INT_SIZE);
+			emit("%s = vm.load(%s - %d);", ra, sp, Machine.INT_SIZE);
+			break;
+		case cpush:
+			emitLine(line);
+			emit("%s -= vm.getCharSize();", sp);
+			emit("vm.storeC(%s, %s);", ra, sp);
+			break;
+		case cpop:
+			emitLine(line);
+			emit("%s += vm.getCharSize();", sp);
+			emit("%s = vm.loadC(%s - vm.getCharSize());", ra, sp);
+			break;
+		case in:
+			emitLine(line);
+			emit("%s = host.readInt(%d);", rb, line);
+			break;
+		case out:
+			emitLine(line);
+			emit("host.output(%d, %s);", line, rb);
+			break;
+		case cin:
+			emitLine(line);
+			emit("%s = host.readString(%d, %s);", sp, line, sp);
+			break;
+		case cout:
+			emitLine(line);
+			emit("%s = host.outputString(%d, %s);", sp, line, sp);
+			break;
+		case coutA:
+			emitLine(line);
+			emit("host.outputMemory(%d, %s, %s);", line, rb, rc);
+			break;
+		default:
+			// nop, tbl, comment: do nothing
+		}
+	}
+
+	/** Emits the statements for an operation executed by
+	 * {@link Simulator#step()}, which jump to the slow path of the
+	 * region method. */
+	private void emitSlow(int line) {
+		// the cases fall through, so pc need not be up to date yet
+		emit("pc = %d;", line);
+		emit("break slow;");
+	}
+
+	/** Emits a comparison, resulting in {@link Simulator#TRUE} or
+	 * {@link Simulator#FALSE}. */
+	private void emitCmp(String target, String left, String op, String right) {
+		emit("%s = %s %s %s ? %d : %d;", target, left, op, right,
+				Simulator.TRUE, Simulator.FALSE);
+	}
+
+	/** Indicates if the jump target at a given code array index may
+	 * lie at or before a given line. */
+	private boolean isBackward(int line, int ix) {
+		return this.decoded.isSymb(ix) || this.decoded.getCode()[ix] <= line;
+	}
+
+	/** Emits a check of the operation count, to be emitted at every
+	 * backward jump after the program counter is set to its target.
+	 * @see Simulator#setStepLimit(long)
+	 */
+	private void emitCheck() {
+		emit("if (s >= check) {");
+		emit("check = host.checkSteps(s);");
+		emit("}");
+	}
+
+	/** Emits an update of the program counter to a given line,
+	 * to be emitted before any statement that may throw an exception. */
+	private void emitLine(int line) {
+		emit("pc = %d;", line);
+	}
+
+	/** Returns the expression for a numeric operand at a given
+	 * code array index. */
+	private String operand(int ix) {
+		if (this.decoded.isSymb(ix)) {
+			return "code[" + ix + "]";
+		} else {
+			return Integer.toString(this.decoded.getCode()[ix]);
+		}
+	}
+
+	/** Appends a formatted line to the source text. */
+	private void emit(String format, Object... args) {
+		this.source.append(String.format(format, args));
+		this.source.append('\n');
+	}
+
+	/** All opcodes, indexed by ordinal. */
+	private static final OpCode[] OPCODES = OpCode.values();
+
+	/** Interface implemented by the generated classes. */
+	public interface Code {
+		/**
+		 * Runs the program from a given line until it falls off the end.
+		 * At the end, the program counter of the VM is set to the
+		 * final line or, if an exception is thrown, to the failing line.
+		 * @param regs the register array, which is updated at the end
+		 * @param code the bound code array, from which symbolic
+		 * constants are read
+		 * @param vm the VM on which the program runs
+		 * @param host callback for input, output and slow operations
+		 * @param pc the line at which to start
+		 */
+		void run(int[] regs, int[] code, Machine vm, Host host, int pc);
+	}
+
+	/** Callback from the generated classes to the {@link Simulator}. */
+	public static class Host {
+		/** The simulator in which the program is run. */
+		private final Simulator sim;
+		/** The program being run. */
+		private final DecodedProgram decoded;
+		/** The VM register slots, indexed by register array slot. */
+		private final int[] slots;
+		/** The register array of the run. */
+		private final int[] regs;
+
+		Host(Simulator sim, DecodedProgram decoded, int[] slots, int[] regs) {
+			this.sim = sim;
+			this.decoded = decoded;
+			this.slots = slots;
+			this.regs = regs;
+		}
+
+		/** Returns the number of operations executed so far in the run. */
+		public long getSteps() {
+			return this.sim.steps;
+		}
+
+		/** Stores the number of operations executed so far in the run. */
+		public void setSteps(long steps) {
+			this.sim.steps = steps;
+		}
+
+		/** Returns the number of operations after which
+		 * {@link #checkSteps(long)} should next be called. */
+		public long getStepCheck() {
+			return this.sim.stepCheck;
+		}
+
+		/** Checks the step limit and interrupt status of the run,
+		 * and returns the new value of {@link #getStepCheck()}.
+		 * @see Simulator#setStepLimit(long)
+		 */
+		public long checkSteps(long steps) {
+			return this.sim.checkSteps(steps);
+		}
+
+		/** Executes the {@link OpCode#in} operation at a given line. */
+		public int readInt(int line) {
+			return this.sim.readInt(this.decoded.getText(line));
+		}
+
+		/** Executes the {@link OpCode#out} operation at a given line. */
+		public void output(int line, int value) {
+			this.sim.output(this.decoded.getText(line), Integer.toString(value));
+		}
+
+		/** Executes the {@link OpCode#cin} operation at a given line,
+		 * and returns the new stack pointer. */
+		public int readString(int line, int sp) {
+			return this.sim.pushString(sp,
+					this.sim.readLine(this.decoded.getText(line)));
+		}
+
+		/** Executes the {@link OpCode#cout} operation at a given line,
+		 * and returns the new stack pointer. */
+		public int outputString(int line, int sp) {
+			StringBuilder result = new StringBuilder();
+			sp = this.sim.popString(sp, result);
+			this.sim.output(this.decoded.getText(line), result.toString());
+			return sp;
+		}
+
+		/** Executes the {@link OpCode#coutA} operation at a given line. */
+		public void outputMemory(int line, int loc, int count) {
+			this.sim.output(this.decoded.getText(line),
+					this.sim.getVM().loadString(loc, count));
+		}
+
+		/** Executes the operation at a given line through
+		 * {@link Simulator#step()}, and returns the next line.
+		 * The register array should be up to date. */
+		public int slowStep(int line) {
+			return this.sim.slowStep(this.decoded, this.slots, this.regs, line);
+		}
+	}
+
+	/** Source file object for the generated class. */
+	private static class SourceFile extends SimpleJavaFileObject {
+		private final String source;
+
+		SourceFile(String className, String source) {
+			super(URI.create("string:///" + className.replace('.', '/')
+					+ Kind.SOURCE.extension), Kind.SOURCE);
+			this.source = source;
+		}
+
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return this.source;
+		}
+	}
+
+	/** Class file object for compiler output, kept in memory. */
+	private static class ClassFile extends SimpleJavaFileObject {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		ClassFile(String className) {
+			super(URI.create("bytes:///" + className.replace('.', '/')
+					+ Kind.CLASS.extension), Kind.CLASS);
+		}
+
+		@Override
+		public OutputStream openOutputStream() {
+			return this.bytes;
+		}
+	}
+
+	/** File manager that keeps the compiled classes in memory. */
+	private static class ClassFileManager extends
+			ForwardingJavaFileManager<StandardJavaFileManager> {
+		/** The compiled classes, by class name. */
+		private final Map<String, ClassFile> classes = new HashMap<>();
+
+		ClassFileManager(StandardJavaFileManager standard) {
+			super(standard);
+		}
+
+		@Override
+		public JavaFileObject getJavaFileForOutput(
+				JavaFileManager.Location location, String className,
+				Kind kind, FileObject sibling) throws IOException {
+			ClassFile result = new ClassFile(className);
+			this.classes.put(className, result);
+			return result;
+		}
+
+		/** Returns the bytecode of the compiled classes, by class name. */
+		Map<String, byte[]> getClasses() {
+			Map<String, byte[]> result = new HashMap<>();
+			for (Map.Entry<String, ClassFile> e : this.classes.entrySet()) {
+				result.put(e.getKey(), e.getValue().bytes.toByteArray());
+			}
+			return result;
+		}
+	}
+
+	/** Private class loader for the generated classes. */
+	private static class CodeLoader extends ClassLoader {
+		/** The bytecode of the generated classes, by class name. */
+		private final Map<String, byte[]> classes;
+
+		CodeLoader(Map<String, byte[]> classes) {
+			super(ClassCompiler.class.getClassLoader());
+			this.classes = classes;
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = this.classes.get(name);
+			if (bytes == null) {
+				throw new ClassNotFoundException(name);
+			}
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,460 @@
+package iloc;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import iloc.eval.Machine;
+import iloc.model.Instr;
+import iloc.model.LinkedProgram;
+import iloc.model.Num;
+import iloc.model.Num.NumKind;
+import iloc.model.Op;
+import iloc.model.OpClaz;
+import iloc.model.OpCode;
+import iloc.model.Operand;
+import iloc.model.Operand.Type;
+import iloc.model.Program;
+import iloc.model.Reg;
+import iloc.model.Str;
+
+/**
+ * Pre-decoded form of an ILOC program, used by the {@link Simulator}
+ * to run a program without looking up registers, labels or
+ * constants by name during execution.
+ * Each operation is flattened into {@link #STRIDE} consecutive entries
+ * of a code array: the opcode ordinal, followed by up to three operand
+ * values. Register operands are decoded to register slot numbers
+ * (where {@link Machine#ARP} and {@link Machine#SP} have the same fixed
+ * slots as in the {@link Machine}),
+ * numeric operands to their values and label operands to absolute line
+ * numbers.
+ * Operations that cannot be fully decoded (for instance because they
+ * refer to an undefined label) are marked {@link #SLOW}; the simulator
+ * executes those through {@link Simulator#step()}.
+ * Sequences of operations may be fused into superinstructions
+ * (see {@link Fusion}), which are marked by an opcode value of at least
+ * {@link #FUSED} at the first operation of the sequence.
+ */
+public class DecodedProgram {
+	/** Number of code array entries per operation. */
+	static final int STRIDE = 4;
+	/** Pseudo-opcode for operations that must be executed by {@link Simulator#step()}. */
+	static final int SLOW = -1;
+	/** Opcode value of the first superinstruction; the opcode value of
+	 * a fused sequence is this value plus the ordinal of the {@link Fusion}. */
+	static final int FUSED = OpCode.values().length;
+	/** Cache of decoded programs, by linked program.
+	 * The values are soft references, since every decoded program refers
+	 * to its key. */
+	private static final Map<LinkedProgram, SoftReference<DecodedProgram>> cache = new WeakHashMap<>();
+	/** The program from which this decoded form was built. */
+	private final LinkedProgram program;
+	/** The flattened code array. */
+	private final int[] code;
+	/** String operands, indexed by line number. */
+	private final String[] texts;
+	/** Register names, indexed by register slot. */
+	private final String[] regNames;
+	/** Flags indicating which register slots are assigned by the program. */
+	private final boolean[] regDefs;
+	/** The register slot assigned by the operation at every line,
+	 * or {@code -1} if it assigns no register. */
+	private final int[] defSlots;
+	/** Flags indicating which lines are the target of a label. */
+	private final boolean[] targets;
+	/** Lines of operations reading a register that is never assigned
+	 * by the program, in ascending order. */
+	private final int[] undefLines;
+	/** Register slots read by the operations in {@link #undefLines}. */
+	private final int[] undefSlots;
+	/** Code array indices of symbolic constants to be resolved at binding time. */
+	private final int[] symbIndices;
+	/** Symbolic constants to be resolved at binding time. */
+	private final Num[] symbs;
+	/** Flag indicating that compilation to a class has been attempted. */
+	private boolean compileTried;
+	/** The class-compiled form of this program, if any. */
+	private ClassCompiler.Code compiled;
+	/** The most recently compiled node form of this program, if any. */
+	private NodeProgram nodes;
+
+	private DecodedProgram(LinkedProgram program, int[] code, String[] texts,
+			String[] regNames, boolean[] regDefs, int[] defSlots,
+			boolean[] targets, int[] undefLines, int[] undefSlots,
+			int[] symbIndices, Num[] symbs) {
+		this.program = program;
+		this.code = code;
+		this.texts = texts;
+		this.regNames = regNames;
+		this.regDefs = regDefs;
+		this.defSlots = defSlots;
+		this.targets = targets;
+		this.undefLines = undefLines;
+		this.undefSlots = undefSlots;
+		this.symbIndices = symbIndices;
+		this.symbs = symbs;
+	}
+
+	/** Returns the program from which this decoded form was built. */
+	public LinkedProgram getProgram() {
+		return this.program;
+	}
+
+	/** Returns the number of operations in the program. */
+	public int size() {
+		return this.texts.length;
+	}
+
+	/** Returns the number of register slots used by the program. */
+	public int getRegCount() {
+		return this.regNames.length;
+	}
+
+	/** Returns the name of the register in a given slot. */
+	public String getRegName(int slot) {
+		return this.regNames[slot];
+	}
+
+	/** Indicates if the register in a given slot is assigned anywhere
+	 * in the program.
+	 */
+	boolean isRegDef(int slot) {
+		return this.regDefs[slot];
+	}
+
+	/** Returns the register slot assigned by the operation
+	 * at a given line, or {@code -1} if it assigns no register.
+	 * Operations that assign more than one register only report the first;
+	 * the implicit assignment of {@link Machine#SP} by stack operations
+	 * is not reported.
+	 */
+	int getDefSlot(int line) {
+		return this.defSlots[line];
+	}
+
+	/** Indicates if a given line is the target of a label. */
+	boolean isTarget(int line) {
+		return this.targets[line];
+	}
+
+	/** Returns the code array of this program, before symbolic constants
+	 * are resolved. The result should not be modified. */
+	int[] getCode() {
+		return this.code;
+	}
+
+	/** Indicates if a given code array index holds a symbolic constant,
+	 * which is only resolved at binding time. */
+	boolean isSymb(int ix) {
+		return Arrays.binarySearch(this.symbIndices, ix) >= 0;
+	}
+
+	/** Indicates if the operation at a given line may be marked
+	 * {@link #SLOW} at binding time, depending on the VM. */
+	boolean isBindSlow(int line) {
+		int ix = line * STRIDE;
+		for (int i = 1; i < STRIDE; i++) {
+			if (isSymb(ix + i)) {
+				return true;
+			}
+		}
+		return Arrays.binarySearch(this.undefLines, line) >= 0;
+	}
+
+	/** Returns the class-compiled form of this program, compiling it
+	 * on first invocation.
+	 * If the current thread is interrupted while waiting for the
+	 * compilation, this returns {@code null} and the next invocation
+	 * tries again; the interrupt status is preserved.
+	 * @return the compiled code, or {@code null} if the program cannot
+	 * be compiled
+	 * @see ClassCompiler#compile(DecodedProgram)
+	 */
+	synchronized ClassCompiler.Code getCompiled() {
+		if (!this.compileTried) {
+			try {
+				this.compiled = ClassCompiler.compile(this);
+				this.compileTried = true;
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return this.compiled;
+	}
+
+	/** Returns the node form of this program for a given bound code
+	 * array. The node form of the last code array is cached, and reused
+	 * for every bound code array with the same contents.
+	 * @param code the bound code array of this program
+	 * @see #bind(Machine)
+	 */
+	synchronized NodeProgram getNodes(int[] code) {
+		NodeProgram result = this.nodes;
+		if (result == null || result.getCode() != code
+				&& !Arrays.equals(result.getCode(), code)) {
+			this.nodes = result = NodeProgram.compile(this, code);
+		}
+		return result;
+	}
+
+	/** Returns the string operand of the operation at a given line. */
+	String getText(int line) {
+		return this.texts[line];
+	}
+
+	/**
+	 * Returns the code array of this program, with all symbolic constants
+	 * resolved against a given VM or, failing that, against the program.
+	 * Operations using an unresolved constant are marked {@link #SLOW},
+	 * and so are operations reading a register that is assigned neither
+	 * by the program nor in the VM, so that {@link Simulator#step()}
+	 * reports the error.
+	 * The result is shared with this object if there is nothing to resolve,
+	 * so it should not be modified.
+	 */
+	int[] bind(Machine vm) {
+		if (this.symbs.length == 0 && this.undefLines.length == 0) {
+			return this.code;
+		}
+		int[] result = this.code.clone();
+		for (int i = 0; i < this.undefLines.length; i++) {
+			if (!vm.hasReg(this.regNames[this.undefSlots[i]])) {
+				result[this.undefLines[i] * STRIDE] = SLOW;
+			}
+		}
+		for (int i = 0; i < this.symbs.length; i++) {
+			int ix = this.symbIndices[i];
+			Integer value = vm.getNum(this.symbs[i]);
+			if (value == null) {
+				value = this.program.getSymb(this.symbs[i]);
+			}
+			if (value == null) {
+				result[ix - ix % STRIDE] = SLOW;
+			} else {
+				result[ix] = value;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a copy of a bound code array in which all occurrences of
+	 * a given set of fusions are replaced by superinstructions.
+	 * Occurrences are matched from the start of the program, trying
+	 * the fusions in the order of their declaration;
+	 * a sequence is only fused if none of its operations but the first
+	 * is the target of a label.
+	 * @param code the bound code array of this program
+	 * @return the fused code array; this is {@code code} itself if
+	 * {@code fusions} is empty
+	 */
+	int[] fuse(int[] code, Set<Fusion> fusions) {
+		if (fusions.isEmpty()) {
+			return code;
+		}
+		int[] result = code.clone();
+		int size = size();
+		int line = 0;
+		while (line < size) {
+			Fusion fusion = match(code, line, fusions);
+			if (fusion == null) {
+				line++;
+			} else {
+				result[line * STRIDE] = FUSED + fusion.ordinal();
+				line += fusion.size();
+			}
+		}
+		return result;
+	}
+
+	/** Returns the first of a set of fusions that occurs at a given line
+	 * of a bound code array, or {@code null} if there is none. */
+	private Fusion match(int[] code, int line, Set<Fusion> fusions) {
+		for (Fusion fusion : fusions) {
+			List<OpCode> pattern = fusion.getPattern();
+			boolean found = line + pattern.size() <= size();
+			for (int i = 0; found && i < pattern.size(); i++) {
+				found = code[(line + i) * STRIDE] == pattern.get(i).ordinal()
+						&& (i == 0 || !this.targets[line + i]);
+			}
+			if (found) {
+				return fusion;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns, for every register slot of this program, the corresponding
+	 * register slot in a given VM.
+	 * Registers that are unknown to the VM are added to its register file.
+	 */
+	int[] bindRegs(Machine vm) {
+		int[] result = new int[this.regNames.length];
+		for (int slot = 0; slot < result.length; slot++) {
+			result[slot] = vm.getRegSlot(this.regNames[slot]);
+		}
+		return result;
+	}
+
+	/** Decodes the linked form of a given program.
+	 * @see Program#link()
+	 */
+	public static DecodedProgram decode(Program program) {
+		return decode(program.link());
+	}
+
+	/** Returns the decoded form of a given linked program.
+	 * Since linked programs are immutable, the result is cached. */
+	public static DecodedProgram decode(LinkedProgram program) {
+		synchronized (cache) {
+			SoftReference<DecodedProgram> ref = cache.get(program);
+			DecodedProgram result = ref == null ? null : ref.get();
+			if (result == null) {
+				result = create(program);
+				cache.put(program, new SoftReference<>(result));
+			}
+			return result;
+		}
+	}
+
+	/** Creates the decoded form of a given linked program. */
+	private static DecodedProgram create(LinkedProgram program) {
+		int size = program.size();
+		int[] code = new int[size * STRIDE];
+		String[] texts = new String[size];
+		Map<String, Integer> slots = new HashMap<>();
+		List<String> regNames = new ArrayList<>();
+		List<Boolean> regDefs = new ArrayList<>();
+		slot(Machine.ARP, slots, regNames, regDefs);
+		slot(Machine.SP, slots, regNames, regDefs);
+		assert slots.get(Machine.ARP) == Machine.ARP_SLOT
+				&& slots.get(Machine.SP) == Machine.SP_SLOT;
+		boolean[] targets = new boolean[size];
+		int[] defSlots = new int[size];
+		Arrays.fill(defSlots, -1);
+		for (Instr instr : program.getInstr()) {
+			if (instr.hasLabel()) {
+				targets[instr.getLine()] = true;
+			}
+		}
+		List<Integer> symbIndices = new ArrayList<>();
+		List<Num> symbs = new ArrayList<>();
+		for (int line = 0; line < size; line++) {
+			Op op = program.getOpAt(line);
+			OpCode opCode = op.getOpCode();
+			int base = line * STRIDE;
+			boolean slow = false;
+			for (int i = 0; i < op.getArgCount(); i++) {
+				Operand arg = op.arg(i);
+				int value = 0;
+				switch (arg.getType()) {
+				case REG:
+					value = slot(((Reg) arg).getName(), slots, regNames,
+							regDefs);
+					if (isDef(opCode, i)) {
+						regDefs.set(value, true);
+						if (defSlots[line] < 0) {
+							defSlots[line] = value;
+						}
+					}
+					break;
+				case NUM:
+					if (((Num) arg).getKind() == NumKind.SYMB) {
+						// resolved at binding time, as the VM may override it
+						symbIndices.add(base + 1 + i);
+						symbs.add((Num) arg);
+					} else if (program.isResolved(line, i)) {
+						value = program.getValue(line, i);
+					} else {
+						slow = true;
+					}
+					break;
+				case LABEL:
+					if (program.isResolved(line, i)) {
+						value = program.getValue(line, i);
+					} else {
+						slow = true;
+					}
+					break;
+				case STR:
+					texts[line] = ((Str) arg).getText();
+					break;
+				}
+				code[base + 1 + i] = value;
+			}
+			code[base] = slow ? SLOW : opCode.ordinal();
+		}
+		boolean[] defs = new boolean[regDefs.size()];
+		for (int i = 0; i < defs.length; i++) {
+			defs[i] = regDefs.get(i);
+		}
+		// collect the reads of registers that the program never assigns
+		List<Integer> undefLines = new ArrayList<>();
+		List<Integer> undefSlots = new ArrayList<>();
+		for (int line = 0; line < size; line++) {
+			Op op = program.getOpAt(line);
+			for (int i = 0; i < op.getArgCount(); i++) {
+				int slot = code[line * STRIDE + 1 + i];
+				if (op.arg(i).getType() == Type.REG
+						&& !isDef(op.getOpCode(), i) && !defs[slot]) {
+					undefLines.add(line);
+					undefSlots.add(slot);
+				}
+			}
+		}
+		int[] indices = toArray(symbIndices);
+		return new DecodedProgram(program, code, texts,
+				regNames.toArray(new String[regNames.size()]), defs, defSlots,
+				targets, toArray(undefLines), toArray(undefSlots), indices,
+				symbs.toArray(new Num[symbs.size()]));
+	}
+
+	/** Converts a list of integers to an array. */
+	private static int[] toArray(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+
+	/** Returns the slot of a named register, adding it if it is new. */
+	private static int slot(String name, Map<String, Integer> slots,
+			List<String> regNames, List<Boolean> regDefs) {
+		Integer result = slots.get(name);
+		if (result == null) {
+			result = regNames.size();
+			slots.put(name, result);
+			regNames.add(name);
+			regDefs.add(false);
+		}
+		return result;
+	}
+
+	/** Indicates if a given register operand of an opcode is assigned
+	 * by the operation.
+	 */
+	private static boolean isDef(OpCode opCode, int ix) {
+		switch (opCode) {
+		case store:
+		case storeAI:
+		case storeAO:
+		case cstore:
+		case cstoreAI:
+		case cstoreAO:
+		case ccopy:
+			// the targets of a store hold the address
+			return false;
+		default:
+			return opCode.getClaz() == OpClaz.NORMAL
+					&& ix >= opCode.getSourceCount();
+		}
+	}
+}
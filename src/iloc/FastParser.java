@@ -0,0 +1,675 @@
+package iloc;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import iloc.model.Instr;
+import iloc.model.Label;
+import iloc.model.Num;
+import iloc.model.Op;
+import iloc.model.OpCode;
+import iloc.model.OpList;
+import iloc.model.Operand;
+import iloc.model.OperandTable;
+import iloc.model.Operand.Type;
+import iloc.model.Program;
+import iloc.model.Str;
+
+/**
+ * Hand-written single-pass parser for the ILOC language, as defined
+ * by {@code iloc/parse/ILOC.g4}.
+ * The parser scans the bytes of a program directly, without creating
+ * tokens or a parse tree, and builds the program while parsing.
+ * It only accepts correct programs: on any lexical, syntactic or
+ * semantic error it gives up, and the caller should use the ANTLR-based
+ * {@link Assembler} path to obtain the error messages.
+ * The input is expected in an ASCII-compatible encoding; only strings
+ * and comments are decoded.
+ * <p>
+ * Large inputs are split into chunks at instruction boundaries, that is,
+ * at line ends outside {@code [...]} operation lists; the chunks are
+ * parsed in parallel into partial instruction lists, which are then
+ * merged into a single program. Label references are only resolved
+ * in the merged program.
+ */
+final class FastParser {
+	/** Token types. */
+	private static final int EOF = 0, ID = 1, NUM = 2, SYMB = 3, LAB = 4,
+			STR = 5, COMMENT = 6, EOL = 7, COMMA = 8, SEMI = 9, LSQ = 10,
+			RSQ = 11, DARROW = 12, ARROW = 13, ASS = 14, COLON = 15;
+	/** Minimum input size in bytes for parsing in parallel. */
+	static final int PARALLEL_THRESHOLD = 512 * 1024;
+	/** Minimum chunk size in bytes. */
+	static final int MIN_CHUNK_SIZE = 128 * 1024;
+	/** The program text. */
+	private final byte[] in;
+	/** The end of the part of the text to be parsed by this parser. */
+	private final int end;
+	/** The charset in which strings and comments are encoded. */
+	private final Charset charset;
+	/** The instructions parsed so far. */
+	private final List<Instr> instrs = new ArrayList<>();
+	/** The symbolic constants declared so far, in order of declaration. */
+	private final Map<Num, Integer> symbs = new LinkedHashMap<>();
+	/** The canonical operands of the part of the text parsed so far. */
+	private final OperandTable table = new OperandTable();
+	/** The position just after the current token. */
+	private int pos;
+	/** The type of the current token. */
+	private int type;
+	/** The start position of the current token. */
+	private int start;
+
+	/** Constructs a parser for the part of a text from a given start
+	 * position to a given end position. */
+	private FastParser(byte[] in, Charset charset, int start, int end) {
+		this.in = in;
+		this.charset = charset;
+		this.pos = start;
+		this.end = end;
+	}
+
+	/**
+	 * Parses a program given as bytes in a given charset.
+	 * The charset should be ASCII-compatible. Inputs of at least
+	 * {@link #PARALLEL_THRESHOLD} bytes are parsed in parallel
+	 * on the common fork/join pool.
+	 * @return the parsed program, which has not yet been checked;
+	 * or {@code null} if the program contains an error
+	 */
+	static Program parse(byte[] in, Charset charset) {
+		int parallelism = ForkJoinPool.getCommonPoolParallelism();
+		if (in.length < PARALLEL_THRESHOLD || parallelism <= 1) {
+			return parse(in, charset, in.length);
+		}
+		int chunkSize = Math.max(MIN_CHUNK_SIZE, in.length / (4 * parallelism));
+		return parse(in, charset, chunkSize);
+	}
+
+	/**
+	 * Parses a program given as bytes in a given charset,
+	 * in chunks of approximately a given size.
+	 * @return the parsed program, which has not yet been checked;
+	 * or {@code null} if the program contains an error
+	 */
+	static Program parse(final byte[] in, final Charset charset, int chunkSize) {
+		int[] bounds = split(in, chunkSize);
+		List<FastParser> chunks = new ArrayList<>(bounds.length - 1);
+		if (bounds.length == 2) {
+			chunks.add(parseChunk(in, charset, 0, in.length));
+		} else {
+			List<Callable<FastParser>> tasks = new ArrayList<>(bounds.length - 1);
+			for (int i = 0; i < bounds.length - 1; i++) {
+				final int start = bounds[i];
+				final int end = bounds[i + 1];
+				tasks.add(new Callable<FastParser>() {
+					@Override
+					public FastParser call() {
+						return parseChunk(in, charset, start, end);
+					}
+				});
+			}
+			for (Future<FastParser> chunk : ForkJoinPool.commonPool().invokeAll(
+					tasks)) {
+				try {
+					chunks.add(chunk.get());
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					return null;
+				} catch (ExecutionException exc) {
+					return null;
+				}
+			}
+		}
+		return merge(chunks);
+	}
+
+	/** Parses a chunk of a text.
+	 * @return the parser holding the contents of the chunk,
+	 * or {@code null} if the chunk contains an error
+	 */
+	private static FastParser parseChunk(byte[] in, Charset charset,
+			int start, int end) {
+		try {
+			FastParser result = new FastParser(in, charset, start, end);
+			result.chunk(start == 0);
+			return result;
+		} catch (Reject exc) {
+			return null;
+		}
+	}
+
+	/** Merges parsed chunks into a single program.
+	 * This checks the parts of the grammar spanning chunks:
+	 * declarations precede all instructions, there is at least one
+	 * instruction, and labels and symbolic constants are defined once.
+	 * @return the merged program,
+	 * or {@code null} if one of the checks fails
+	 */
+	private static Program merge(List<FastParser> chunks) {
+		Program result = new Program();
+		boolean instrSeen = false;
+		for (FastParser chunk : chunks) {
+			if (chunk == null || instrSeen && !chunk.symbs.isEmpty()) {
+				return null;
+			}
+			for (Map.Entry<Num, Integer> e : chunk.symbs.entrySet()) {
+				if (result.getSymb(e.getKey()) != null) {
+					return null;
+				}
+				result.setSymb(e.getKey(), e.getValue());
+			}
+			instrSeen |= !chunk.instrs.isEmpty();
+		}
+		if (!instrSeen) {
+			return null;
+		}
+		for (FastParser chunk : chunks) {
+			for (Instr instr : chunk.instrs) {
+				if (instr.hasLabel() && result.getLine(instr.getLabel()) >= 0) {
+					return null;
+				}
+				result.addInstr(instr);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the chunk boundaries of a text, splitting it at the first
+	 * line end outside an operation list after every chunk size bytes.
+	 * @return the ascending chunk boundaries, starting at 0 and ending
+	 * at the length of the text
+	 */
+	static int[] split(byte[] in, int chunkSize) {
+		int[] result = new int[] { 0, 0 };
+		int count = 1;
+		int end = in.length;
+		int depth = 0;
+		int next = chunkSize;
+		for (int pos = 0; pos < end && next < end; pos++) {
+			switch (in[pos]) {
+			case '"':
+				int stop = scanString(in, pos + 1, end);
+				if (stop < 0) {
+					// lexical error; parse in one piece
+					next = end;
+				} else {
+					pos = stop - 1;
+				}
+				break;
+			case '/':
+				// comment; a single slash is a lexical error anyway
+				while (pos + 1 < end && in[pos + 1] != '\r'
+						&& in[pos + 1] != '\n') {
+					pos++;
+				}
+				break;
+			case '[':
+				depth++;
+				break;
+			case ']':
+				depth--;
+				break;
+			case '\r':
+			case '\n':
+				if (depth == 0 && pos + 1 >= next) {
+					while (pos + 1 < end
+							&& (in[pos + 1] == '\r' || in[pos + 1] == '\n')) {
+						pos++;
+					}
+					if (pos + 1 < end) {
+						if (count + 1 == result.length) {
+							result = Arrays.copyOf(result, 2 * result.length);
+						}
+						result[count++] = pos + 1;
+					}
+					next = pos + 1 + chunkSize;
+				}
+				break;
+			default:
+				// nothing to do
+			}
+		}
+		result[count++] = end;
+		return Arrays.copyOf(result, count);
+	}
+
+	/** Indicates if a given charset encodes ASCII characters as
+	 * single bytes with their ASCII values, and never uses such bytes
+	 * in the encoding of other characters. */
+	static boolean isSupported(Charset charset) {
+		return charset.equals(StandardCharsets.UTF_8)
+				|| charset.equals(StandardCharsets.US_ASCII)
+				|| charset.equals(StandardCharsets.ISO_8859_1);
+	}
+
+	/** Parses a chunk of the input, which extends the grammar rule
+	 * program: decl* instr (EOL+ instr)* EOL* EOF
+	 * in that the instructions are optional, and chunks other than the first
+	 * may start with EOL.
+	 * @param first flag indicating that this is the first chunk
+	 */
+	private void chunk(boolean first) {
+		next();
+		if (!first) {
+			skipEOLs();
+		}
+		while (this.type == ID && peek() == ASS) {
+			decl();
+		}
+		if (this.type != EOF) {
+			instr();
+			while (this.type == EOL) {
+				skipEOLs();
+				if (this.type == EOF) {
+					break;
+				}
+				instr();
+			}
+		}
+		expect(EOF);
+	}
+
+	/** decl: ID ASS NUM COMMENT? EOL+ */
+	private void decl() {
+		Num symbol = this.table.symb(text());
+		next();
+		expect(ASS);
+		next();
+		expect(NUM);
+		int value = num();
+		next();
+		if (this.type == COMMENT) {
+			next();
+		}
+		expect(EOL);
+		skipEOLs();
+		if (this.symbs.put(symbol, value) != null) {
+			throw REJECT;
+		}
+	}
+
+	/** instr: (label ':')? op | (label ':')? LSQ EOL* op (EOL+ op)* EOL* RSQ */
+	private void instr() {
+		Label label = null;
+		if (this.type == ID && peek() == COLON) {
+			label = this.table.label(text());
+			next();
+			next();
+		}
+		Instr result;
+		if (this.type == LSQ) {
+			next();
+			skipEOLs();
+			OpList ops = new OpList();
+			ops.addOp(op());
+			while (this.type == EOL) {
+				skipEOLs();
+				if (this.type == RSQ) {
+					break;
+				}
+				ops.addOp(op());
+			}
+			expect(RSQ);
+			next();
+			result = ops;
+		} else {
+			result = op();
+		}
+		if (label != null) {
+			result.setLabel(label);
+		}
+		this.instrs.add(result);
+	}
+
+	/** op: COMMENT | opCode sources ((ARROW|DARROW) targets)? SEMI? COMMENT? */
+	private Op op() {
+		if (this.type == COMMENT) {
+			Op result = new Op(OpCode.comment);
+			result.setComment(comment());
+			next();
+			return result;
+		}
+		expect(ID);
+		OpCode code = OpCode.parse(text());
+		if (code == null) {
+			throw REJECT;
+		}
+		next();
+		List<Type> sourceSig = code.getSourceSig();
+		List<Type> targetSig = code.getTargetSig();
+		List<Operand> opnds = new ArrayList<>(sourceSig.size()
+				+ targetSig.size());
+		int sourceCount = 0;
+		if (isOperand()) {
+			addOperand(opnds, sourceSig, sourceCount++);
+			while (this.type == COMMA) {
+				next();
+				addOperand(opnds, sourceSig, sourceCount++);
+			}
+		}
+		if (sourceCount != sourceSig.size()) {
+			throw REJECT;
+		}
+		int targetCount = 0;
+		if (this.type == ARROW || this.type == DARROW) {
+			String expected = targetSig.isEmpty() ? null : code.getClaz()
+					.getArrow();
+			String actual = this.type == ARROW ? "->" : "=>";
+			if (!actual.equals(expected)) {
+				throw REJECT;
+			}
+			next();
+			addOperand(opnds, targetSig, targetCount++);
+			while (this.type == COMMA) {
+				next();
+				addOperand(opnds, targetSig, targetCount++);
+			}
+		}
+		if (targetCount != targetSig.size()) {
+			throw REJECT;
+		}
+		if (this.type == SEMI) {
+			next();
+		}
+		Op result = new Op(code, opnds);
+		if (this.type == COMMENT) {
+			result.setComment(comment());
+			next();
+		}
+		return result;
+	}
+
+	/** Parses the current token as operand with a given index in a
+	 * signature, and adds it to a list of operands.
+	 * operand: ID | NUM | SYMB | LAB | STR */
+	private void addOperand(List<Operand> opnds, List<Type> sig, int i) {
+		if (i >= sig.size()) {
+			throw REJECT;
+		}
+		Type expected = sig.get(i);
+		Operand result;
+		switch (this.type) {
+		case ID:
+			if (expected == Type.REG) {
+				result = this.table.reg(text());
+			} else {
+				result = this.table.label(text());
+			}
+			break;
+		case NUM:
+			result = this.table.num(num());
+			break;
+		case SYMB:
+			result = this.table.symb(text(this.start + 1));
+			break;
+		case LAB:
+			result = this.table.labelNum(text(this.start + 1));
+			break;
+		case STR:
+			result = new Str(new String(this.in, this.start + 1, this.pos
+					- this.start - 2, this.charset));
+			break;
+		default:
+			throw REJECT;
+		}
+		if (result.getType() != expected) {
+			throw REJECT;
+		}
+		opnds.add(result);
+		next();
+	}
+
+	/** Indicates if the current token can start an operand. */
+	private boolean isOperand() {
+		return this.type >= ID && this.type <= STR;
+	}
+
+	/** Moves past any end-of-line tokens. */
+	private void skipEOLs() {
+		while (this.type == EOL) {
+			next();
+		}
+	}
+
+	/** Gives up unless the current token has a given type. */
+	private void expect(int type) {
+		if (this.type != type) {
+			throw REJECT;
+		}
+	}
+
+	/** Returns the type of the token following the current one,
+	 * without moving. */
+	private int peek() {
+		int pos = this.pos;
+		int type = this.type;
+		int start = this.start;
+		next();
+		int result = this.type;
+		this.pos = pos;
+		this.type = type;
+		this.start = start;
+		return result;
+	}
+
+	/** Returns the text of the current (ASCII) token. */
+	private String text() {
+		return text(this.start);
+	}
+
+	/** Returns the text of the current (ASCII) token from a given
+	 * position onwards. */
+	private String text(int from) {
+		return new String(this.in, from, this.pos - from,
+				StandardCharsets.ISO_8859_1);
+	}
+
+	/** Returns the content of the current comment token. */
+	private String comment() {
+		return new String(this.in, this.start + 2, this.pos - this.start - 2,
+				this.charset).trim();
+	}
+
+	/** Returns the value of the current number token. */
+	private int num() {
+		int i = this.start;
+		boolean negative = this.in[i] == '-';
+		if (negative) {
+			i++;
+		}
+		if (this.pos - i > 10) {
+			throw REJECT;
+		}
+		long result = 0;
+		for (; i < this.pos; i++) {
+			result = 10 * result + (this.in[i] - '0');
+		}
+		if (negative) {
+			result = -result;
+		}
+		if (result != (int) result) {
+			throw REJECT;
+		}
+		return (int) result;
+	}
+
+	/** Scans the next token. */
+	private void next() {
+		byte[] in = this.in;
+		int end = this.end;
+		int pos = this.pos;
+		while (pos < end && (in[pos] == ' ' || in[pos] == '\t')) {
+			pos++;
+		}
+		this.start = pos;
+		if (pos == end) {
+			this.type = EOF;
+			this.pos = pos;
+			return;
+		}
+		int c = in[pos++];
+		int next = pos < end ? in[pos] : -1;
+		switch (c) {
+		case '\r':
+		case '\n':
+			while (pos < end && (in[pos] == '\r' || in[pos] == '\n')) {
+				pos++;
+			}
+			this.type = EOL;
+			break;
+		case ',':
+			this.type = COMMA;
+			break;
+		case ';':
+			this.type = SEMI;
+			break;
+		case '[':
+			this.type = LSQ;
+			break;
+		case ']':
+			this.type = RSQ;
+			break;
+		case ':':
+			this.type = COLON;
+			break;
+		case '=':
+			if (next != '>') {
+				throw REJECT;
+			}
+			pos++;
+			this.type = DARROW;
+			break;
+		case '<':
+			if (next != '-') {
+				throw REJECT;
+			}
+			pos++;
+			this.type = ASS;
+			break;
+		case '-':
+			if (next == '>') {
+				pos++;
+				this.type = ARROW;
+			} else if (isDigit(next)) {
+				pos = scanDigits(pos);
+				this.type = NUM;
+			} else {
+				throw REJECT;
+			}
+			break;
+		case '@':
+		case '#':
+			if (!isLetter(next)) {
+				throw REJECT;
+			}
+			pos = scanId(pos);
+			this.type = c == '@' ? SYMB : LAB;
+			break;
+		case '"':
+			pos = scanString(in, pos, end);
+			if (pos < 0) {
+				throw REJECT;
+			}
+			this.type = STR;
+			break;
+		case '/':
+			if (next != '/') {
+				throw REJECT;
+			}
+			while (pos < end && in[pos] != '\r' && in[pos] != '\n') {
+				pos++;
+			}
+			this.type = COMMENT;
+			break;
+		default:
+			if (isDigit(c)) {
+				pos = scanDigits(pos);
+				this.type = NUM;
+			} else if (isLetter(c)) {
+				pos = scanId(pos - 1);
+				this.type = ID;
+			} else {
+				throw REJECT;
+			}
+		}
+		this.pos = pos;
+	}
+
+	/** Returns the position after a sequence of digits. */
+	private int scanDigits(int pos) {
+		while (pos < this.end && isDigit(this.in[pos])) {
+			pos++;
+		}
+		return pos;
+	}
+
+	/** Returns the position after the remainder of an identifier,
+	 * starting at its first letter. */
+	private int scanId(int pos) {
+		byte[] in = this.in;
+		pos++;
+		while (pos < this.end) {
+			int c = in[pos];
+			if (!isLetter(c) && !isDigit(c) && c != '-' && c != '_') {
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	/** Returns the position after a string, given the position after its
+	 * opening quote and the end of the text. Like the ANTLR lexer, this
+	 * takes the longest match: a quote preceded by a backslash may either
+	 * close the string or be part of it.
+	 * @return the position after the string, or -1 if the string
+	 * is not terminated
+	 */
+	private static int scanString(byte[] in, int pos, int end) {
+		int result = -1;
+		int open = pos - 1;
+		for (; pos < end; pos++) {
+			int c = in[pos];
+			if (c == '\r' || c == '\n') {
+				break;
+			}
+			if (c == '"') {
+				result = pos + 1;
+				if (pos - 1 == open || in[pos - 1] != '\\') {
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	private static boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isLetter(int c) {
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+	}
+
+	/** Signal that the parser gives up. */
+	private static final Reject REJECT = new Reject();
+
+	/** Exception used to abandon parsing; has no stack trace. */
+	@SuppressWarnings("serial")
+	private static class Reject extends RuntimeException {
+		Reject() {
+			super(null, null, false, false);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package iloc;
+
+import static iloc.model.OpCode.add;
+import static iloc.model.OpCode.cbr;
+import static iloc.model.OpCode.cmp_EQ;
+import static iloc.model.OpCode.cmp_GE;
+import static iloc.model.OpCode.cmp_GT;
+import static iloc.model.OpCode.cmp_LE;
+import static iloc.model.OpCode.cmp_LT;
+import static iloc.model.OpCode.cmp_NE;
+import static iloc.model.OpCode.loadAI;
+import static iloc.model.OpCode.loadI;
+import static iloc.model.OpCode.mult;
+import static iloc.model.OpCode.storeAI;
+import static iloc.model.OpCode.sub;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import iloc.model.OpCode;
+
+/**
+ * Superinstructions, each fusing a sequence of operations that is
+ * frequently emitted by the {@link generator.Generator}.
+ * The {@link Simulator.Engine#SWITCH} engine executes a fused sequence
+ * in a single dispatch.
+ * Operands are not affected by fusion: the operations in a fused sequence
+ * keep their own operands, and are executed one after the other.
+ * @see DecodedProgram#fuse(int[], Set)
+ */
+public enum Fusion {
+	/** Binary addition of two stack variables. */
+	LOAD_LOAD_ADD_STORE(loadAI, loadAI, add, storeAI),
+	/** Binary subtraction of two stack variables. */
+	LOAD_LOAD_SUB_STORE(loadAI, loadAI, sub, storeAI),
+	/** Binary multiplication of two stack variables. */
+	LOAD_LOAD_MULT_STORE(loadAI, loadAI, mult, storeAI),
+	/** Increment of a stack variable by a constant. */
+	LOADI_LOAD_ADD_STORE(loadI, loadAI, add, storeAI),
+	/** Loading of two stack variables, for instance for a comparison. */
+	LOAD_LOAD(loadAI, loadAI),
+	/** Copy of a stack variable. */
+	LOAD_STORE(loadAI, storeAI),
+	/** Conditional branch on a less-than comparison. */
+	CMP_LT_CBR(cmp_LT, cbr),
+	/** Conditional branch on a less-or-equal comparison. */
+	CMP_LE_CBR(cmp_LE, cbr),
+	/** Conditional branch on an equality comparison. */
+	CMP_EQ_CBR(cmp_EQ, cbr),
+	/** Conditional branch on a greater-or-equal comparison. */
+	CMP_GE_CBR(cmp_GE, cbr),
+	/** Conditional branch on a greater-than comparison. */
+	CMP_GT_CBR(cmp_GT, cbr),
+	/** Conditional branch on an inequality comparison. */
+	CMP_NE_CBR(cmp_NE, cbr), ;
+
+	private Fusion(OpCode... pattern) {
+		this.pattern = Collections.unmodifiableList(Arrays.asList(pattern));
+		this.branch = pattern[pattern.length - 1] == cbr;
+	}
+
+	/** Returns the sequence of opcodes fused by this superinstruction. */
+	public List<OpCode> getPattern() {
+		return this.pattern;
+	}
+
+	/** Returns the number of operations fused by this superinstruction. */
+	public int size() {
+		return this.pattern.size();
+	}
+
+	/** Indicates if the fused sequence ends with a conditional branch. */
+	public boolean isBranch() {
+		return this.branch;
+	}
+
+	/** The sequence of opcodes fused by this superinstruction. */
+	private final List<OpCode> pattern;
+	/** Flag indicating that the fused sequence ends with a conditional branch. */
+	private final boolean branch;
+
+	/**
+	 * Parses a comma-separated list of fusion names.
+	 * The special values {@code all} and {@code none} stand for all
+	 * fusions and no fusions, respectively.
+	 * @throws IllegalArgumentException if the list contains an unknown name
+	 */
+	public static Set<Fusion> parse(String names) {
+		names = names.trim();
+		if (names.equals("all")) {
+			return EnumSet.allOf(Fusion.class);
+		}
+		Set<Fusion> result = EnumSet.noneOf(Fusion.class);
+		if (!names.isEmpty() && !names.equals("none")) {
+			for (String name : names.split(",")) {
+				result.add(valueOf(name.trim()));
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,648 @@
+package iloc;
+
+import iloc.eval.Machine;
+import iloc.model.OpCode;
+
+/**
+ * Closure-compiled form of a decoded ILOC program.
+ * Every operation is compiled into a node object specialised to its
+ * opcode, which holds its operands as final fields and has direct
+ * references to its successor nodes. Execution then consists of
+ * following the chain of nodes, without a shared dispatch on the opcode.
+ * The nodes only depend on the bound code array, so they are compiled
+ * once and cached by the {@link DecodedProgram}
+ * (see {@link DecodedProgram#getNodes(int[])}); the register array and VM
+ * of a run are passed to every node as it is executed.
+ */
+class NodeProgram {
+	/** The decoded program. */
+	private final DecodedProgram decoded;
+	/** The bound code array from which the nodes are compiled. */
+	private final int[] code;
+	/** The compiled nodes, indexed by line number. */
+	private final Node[] nodes;
+
+	/** Constructs a node factory for a given bound code array,
+	 * without compiling any nodes yet. */
+	NodeProgram(DecodedProgram decoded, int[] code) {
+		this.decoded = decoded;
+		this.code = code;
+		this.nodes = new Node[decoded.size()];
+	}
+
+	/** Returns the bound code array from which the nodes are compiled. */
+	int[] getCode() {
+		return this.code;
+	}
+
+	/** Runs the program from the current program counter of the VM,
+	 * until it falls off the end.
+	 * @param slots the VM register slots, indexed by register array slot
+	 * @param regs the register array used during the run
+	 */
+	void run(Simulator sim, int[] slots, int[] regs) {
+		Context context = new Context(sim, slots);
+		Machine vm = context.vm;
+		Node node = getNode(vm.getPC());
+		long steps = sim.steps;
+		long check = sim.stepCheck;
+		try {
+			while (node != null) {
+				if (steps >= check) {
+					check = sim.checkSteps(steps);
+				}
+				steps++;
+				node = node.exec(regs, context);
+			}
+		} finally {
+			// if exec threw an exception, node is the failing operation
+			vm.setPC(node == null ? this.nodes.length : node.line);
+			sim.steps = steps;
+		}
+	}
+
+	/** Returns the node at a given line, or {@code null} if the line
+	 * is beyond the end of the program. */
+	private Node getNode(int line) {
+		return line < this.nodes.length ? this.nodes[line] : null;
+	}
+
+	/**
+	 * Compiles a decoded program into nodes.
+	 * @param code the bound code array of the program
+	 */
+	static NodeProgram compile(DecodedProgram decoded, int[] code) {
+		NodeProgram result = new NodeProgram(decoded, code);
+		Node[] nodes = result.nodes;
+		for (int line = 0; line < nodes.length; line++) {
+			nodes[line] = result.createNode(line);
+		}
+		// link the nodes
+		for (int line = 0; line < nodes.length; line++) {
+			Node node = nodes[line];
+			node.next = result.getNode(line + 1);
+			int ix = line * DecodedProgram.STRIDE;
+			if (node instanceof Cbr) {
+				((Cbr) node).ifTrue = nodes[code[ix + 2]];
+				((Cbr) node).ifFalse = nodes[code[ix + 3]];
+			} else if (node instanceof JumpI) {
+				((JumpI) node).target = nodes[code[ix + 1]];
+			}
+		}
+		return result;
+	}
+
+	/** Creates the node for the operation at a given line. */
+	Node createNode(int line) {
+		int[] code = this.code;
+		int ix = line * DecodedProgram.STRIDE;
+		if (code[ix] == DecodedProgram.SLOW) {
+			return new Slow(line);
+		}
+		final int a = code[ix + 1];
+		final int b = code[ix + 2];
+		final int c = code[ix + 3];
+		final String text = this.decoded.getText(line);
+		switch (OPCODES[code[ix]]) {
+		case add:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] + regs[b];
+					return this.next;
+				}
+			};
+		case sub:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] - regs[b];
+					return this.next;
+				}
+			};
+		case mult:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] * regs[b];
+					return this.next;
+				}
+			};
+		case div:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] / regs[b];
+					return this.next;
+				}
+			};
+		case addI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] + b;
+					return this.next;
+				}
+			};
+		case subI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] - b;
+					return this.next;
+				}
+			};
+		case rsubI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = b - regs[a];
+					return this.next;
+				}
+			};
+		case multI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] * b;
+					return this.next;
+				}
+			};
+		case divI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] / b;
+					return this.next;
+				}
+			};
+		case rdivI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = b / regs[a];
+					return this.next;
+				}
+			};
+		case lshift:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] << regs[b];
+					return this.next;
+				}
+			};
+		case lshiftI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] << b;
+					return this.next;
+				}
+			};
+		case rshift:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] >>> regs[b];
+					return this.next;
+				}
+			};
+		case rshiftI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] >>> b;
+					return this.next;
+				}
+			};
+		case and:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = -1 * regs[a] * regs[b];
+					return this.next;
+				}
+			};
+		case andI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = -1 * regs[a] * b;
+					return this.next;
+				}
+			};
+		case or:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = Math.max(-1, regs[a] + regs[b]);
+					return this.next;
+				}
+			};
+		case orI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = Math.max(-1, regs[a] + b);
+					return this.next;
+				}
+			};
+		case xor:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = Math.max(-1, regs[a] ^ regs[b]);
+					return this.next;
+				}
+			};
+		case xorI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = Math.max(-1, regs[a] ^ b);
+					return this.next;
+				}
+			};
+		case load:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[b] = context.vm.load(regs[a]);
+					return this.next;
+				}
+			};
+		case loadI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[b] = a;
+					return this.next;
+				}
+			};
+		case loadAI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = context.vm.load(regs[a] + b);
+					return this.next;
+				}
+			};
+		case loadAO:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = context.vm.load(regs[a] + regs[b]);
+					return this.next;
+				}
+			};
+		case store:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					context.vm.store(regs[a], regs[b]);
+					return this.next;
+				}
+			};
+		case storeAI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					context.vm.store(regs[a], regs[b] + c);
+					return this.next;
+				}
+			};
+		case storeAO:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					context.vm.store(regs[a], regs[b] + regs[c]);
+					return this.next;
+				}
+			};
+		case cload:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[b] = context.vm.loadC(regs[a]);
+					return this.next;
+				}
+			};
+		case cloadAI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = context.vm.loadC(regs[a] + b);
+					return this.next;
+				}
+			};
+		case cloadAO:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = context.vm.loadC(regs[a] + regs[b]);
+					return this.next;
+				}
+			};
+		case cstore:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					context.vm.storeC(regs[a], regs[b]);
+					return this.next;
+				}
+			};
+		case cstoreAI:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					context.vm.storeC(regs[a], regs[b] + c);
+					return this.next;
+				}
+			};
+		case cstoreAO:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					context.vm.storeC(regs[a], regs[b] + regs[c]);
+					return this.next;
+				}
+			};
+		case ccopy:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					context.vm.copyC(regs[a], regs[c], regs[b]);
+					return this.next;
+				}
+			};
+		case i2i:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[b] = regs[a];
+					return this.next;
+				}
+			};
+		case i2c:
+		case c2i:
+		case c2c:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[b] = (byte) regs[a];
+					return this.next;
+				}
+			};
+		case cmp_LT:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] < regs[b] ? Simulator.TRUE
+							: Simulator.FALSE;
+					return this.next;
+				}
+			};
+		case cmp_LE:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] <= regs[b] ? Simulator.TRUE
+							: Simulator.FALSE;
+					return this.next;
+				}
+			};
+		case cmp_EQ:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] == regs[b] ? Simulator.TRUE
+							: Simulator.FALSE;
+					return this.next;
+				}
+			};
+		case cmp_GE:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] >= regs[b] ? Simulator.TRUE
+							: Simulator.FALSE;
+					return this.next;
+				}
+			};
+		case cmp_GT:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] > regs[b] ? Simulator.TRUE
+							: Simulator.FALSE;
+					return this.next;
+				}
+			};
+		case cmp_NE:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[c] = regs[a] != regs[b] ? Simulator.TRUE
+							: Simulator.FALSE;
+					return this.next;
+				}
+			};
+		case cbr:
+			return new Cbr(line, a);
+		case jumpI:
+			return new JumpI(line);
+		case jump:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					int target = regs[a];
+					if (target < 0) {
+						throw new IllegalArgumentException(
+								"Trying to jump to line " + target);
+					}
+					return getNode(target);
+				}
+			};
+		case push:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					int sp = regs[Machine.SP_SLOT] - Machine.INT_SIZE;
+					regs[Machine.SP_SLOT] = sp;
+					context.vm.store(regs[a], sp);
+					return this.next;
+				}
+			};
+		case pop:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					int sp = regs[Machine.SP_SLOT];
+					regs[Machine.SP_SLOT] = sp + Machine.INT_SIZE;
+					regs[a] = context.vm.load(sp);
+					return this.next;
+				}
+			};
+		case cpush:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					int sp = regs[Machine.SP_SLOT] - context.vm.getCharSize();
+					regs[Machine.SP_SLOT] = sp;
+					context.vm.storeC(regs[a], sp);
+					return this.next;
+				}
+			};
+		case cpop:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					int sp = regs[Machine.SP_SLOT];
+					regs[Machine.SP_SLOT] = sp + context.vm.getCharSize();
+					regs[a] = context.vm.loadC(sp);
+					return this.next;
+				}
+			};
+		case in:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[b] = context.sim.readInt(text);
+					return this.next;
+				}
+			};
+		case out:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					context.sim.output(text, Integer.toString(regs[b]));
+					return this.next;
+				}
+			};
+		case cin:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					regs[Machine.SP_SLOT] = context.sim.pushString(
+							regs[Machine.SP_SLOT], context.sim.readLine(text));
+					return this.next;
+				}
+			};
+		case cout:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					StringBuilder result = new StringBuilder();
+					regs[Machine.SP_SLOT] = context.sim.popString(
+							regs[Machine.SP_SLOT], result);
+					context.sim.output(text, result.toString());
+					return this.next;
+				}
+			};
+		case coutA:
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					context.sim.output(text, context.vm.loadString(regs[b], regs[c]));
+					return this.next;
+				}
+			};
+		default:
+			// nop, tbl, comment: do nothing
+			return new Node(line) {
+				@Override
+				Node exec(int[] regs, Context context) {
+					return this.next;
+				}
+			};
+		}
+	}
+
+	/** All opcodes, indexed by ordinal. */
+	private static final OpCode[] OPCODES = OpCode.values();
+
+	/** Compiled operation. */
+	abstract static class Node {
+		/** The line number of the operation. */
+		final int line;
+		/** The node of the next operation in program order;
+		 * {@code null} for the last operation. */
+		Node next;
+
+		Node(int line) {
+			this.line = line;
+		}
+
+		/** Executes the operation, and returns the node to be executed next.
+		 * @param regs the register array of the run
+		 * @param context the other state of the run
+		 * @return the next node, or {@code null} if the program has ended
+		 */
+		abstract Node exec(int[] regs, Context context);
+	}
+
+	/** Compiled conditional branch. */
+	static class Cbr extends Node {
+		/** The register array slot of the condition. */
+		private final int cond;
+		/** The node branched to if the condition is true. */
+		Node ifTrue;
+		/** The node branched to if the condition is false. */
+		Node ifFalse;
+
+		Cbr(int line, int cond) {
+			super(line);
+			this.cond = cond;
+		}
+
+		@Override
+		Node exec(int[] regs, Context context) {
+			return regs[this.cond] == 0 ? this.ifFalse : this.ifTrue;
+		}
+	}
+
+	/** Compiled immediate jump. */
+	static class JumpI extends Node {
+		/** The node jumped to. */
+		Node target;
+
+		JumpI(int line) {
+			super(line);
+		}
+
+		@Override
+		Node exec(int[] regs, Context context) {
+			return this.target;
+		}
+	}
+
+	/** Operation that is executed through {@link Simulator#step()}. */
+	class Slow extends Node {
+		Slow(int line) {
+			super(line);
+		}
+
+		@Override
+		Node exec(int[] regs, Context context) {
+			return getNode(context.sim.slowStep(NodeProgram.this.decoded,
+					context.slots, regs, this.line));
+		}
+	}
+
+	/** State of a run, other than the register array. */
+	static class Context {
+		/** The simulator in which the program is run. */
+		final Simulator sim;
+		/** The VM of the simulator. */
+		final Machine vm;
+		/** The VM register slots, indexed by register array slot. */
+		final int[] slots;
+
+		Context(Simulator sim, int[] slots) {
+			this.sim = sim;
+			this.vm = sim.getVM();
+			this.slots = slots;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package iloc;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import iloc.model.Instr;
+import iloc.model.Label;
+import iloc.model.LinkedProgram;
+import iloc.model.OpCode;
+
+/**
+ * Execution profile of a program, collected by a {@link Simulator}
+ * when profiling is enabled.
+ * The profile counts the number of executions of every line, and the
+ * number of times every {@link OpCode#cbr} was taken (i.e., branched to
+ * its first label) or not taken. Counts per opcode and per basic block
+ * are derived from the line counts; basic blocks are split at labels.
+ * The profile also counts the executions of every {@link Fusion},
+ * from which it derives the number of dispatches saved.
+ * Counts accumulate over successive runs of the simulator.
+ * @see Simulator#setProfiling(boolean)
+ */
+public class Profile {
+	/** The profiled program. */
+	private final LinkedProgram program;
+	/** The label of every line, or {@code null} if it has no label. */
+	private final Label[] labels;
+	/** Execution count per line. */
+	final long[] counts;
+	/** Number of times the branch at every line was taken. */
+	private final long[] taken;
+	/** Number of times the branch at every line was not taken. */
+	private final long[] notTaken;
+	/** Number of executions of every fusion, indexed by ordinal. */
+	private final long[] fused = new long[Fusion.values().length];
+
+	/** Constructs an empty profile for a given program. */
+	Profile(LinkedProgram program) {
+		this.program = program;
+		int size = program.size();
+		this.counts = new long[size];
+		this.taken = new long[size];
+		this.notTaken = new long[size];
+		this.labels = new Label[size];
+		for (Instr instr : program.getInstr()) {
+			if (instr.hasLabel()) {
+				this.labels[instr.getLine()] = instr.getLabel();
+			}
+		}
+	}
+
+	/** Records the execution of the operation at a given line,
+	 * given the line executed next. */
+	void countStep(int line, int next) {
+		this.counts[line]++;
+		if (isBranch(line) && this.program.isResolved(line, 1)) {
+			countBranch(line, next == this.program.getValue(line, 1));
+		}
+	}
+
+	/** Records the outcome of the conditional branch at a given line. */
+	void countBranch(int line, boolean taken) {
+		if (taken) {
+			this.taken[line]++;
+		} else {
+			this.notTaken[line]++;
+		}
+	}
+
+	/** Records the fusions executed in a run,
+	 * given as counts indexed by ordinal. */
+	void countFusions(int[] fused) {
+		for (int i = 0; i < fused.length; i++) {
+			this.fused[i] += fused[i];
+		}
+	}
+
+	/** Returns the profiled program. */
+	public LinkedProgram getProgram() {
+		return this.program;
+	}
+
+	/** Returns the number of executions of the operation at a given line. */
+	public long getCount(int line) {
+		return this.counts[line];
+	}
+
+	/** Returns the total number of operations executed. */
+	public long getTotal() {
+		long result = 0;
+		for (long count : this.counts) {
+			result += count;
+		}
+		return result;
+	}
+
+	/** Returns the number of times the conditional branch at a given line
+	 * was taken, i.e., jumped to its first label. */
+	public long getTaken(int line) {
+		return this.taken[line];
+	}
+
+	/** Returns the number of times the conditional branch at a given line
+	 * was not taken, i.e., jumped to its second label. */
+	public long getNotTaken(int line) {
+		return this.notTaken[line];
+	}
+
+	/** Returns the number of executions per opcode,
+	 * for all opcodes that were executed at least once. */
+	public Map<OpCode, Long> getOpCodeCounts() {
+		Map<OpCode, Long> result = new EnumMap<>(OpCode.class);
+		for (int line = 0; line < this.counts.length; line++) {
+			if (this.counts[line] > 0) {
+				OpCode opCode = this.program.getOpAt(line).getOpCode();
+				Long count = result.get(opCode);
+				result.put(opCode, (count == null ? 0 : count)
+						+ this.counts[line]);
+			}
+		}
+		return result;
+	}
+
+	/** Returns, for every fusion executed at least once, the number of
+	 * operation dispatches it saved: one less than the size of the fusion
+	 * for every execution. */
+	public Map<Fusion, Long> getFusionSavings() {
+		Map<Fusion, Long> result = new EnumMap<>(Fusion.class);
+		for (Fusion fusion : Fusion.values()) {
+			long count = this.fused[fusion.ordinal()];
+			if (count > 0) {
+				result.put(fusion, count * (fusion.size() - 1));
+			}
+		}
+		return result;
+	}
+
+	/** Returns the number of executions of every basic block,
+	 * indexed by the first line of the block.
+	 * A block starts at the first line of the program or at a label,
+	 * and its count is the count of its first line. */
+	public SortedMap<Integer, Long> getBlockCounts() {
+		SortedMap<Integer, Long> result = new TreeMap<>();
+		for (int line = 0; line < this.counts.length; line++) {
+			if (line == 0 || this.labels[line] != null) {
+				result.put(line, this.counts[line]);
+			}
+		}
+		return result;
+	}
+
+	/** Returns a human-readable report of this profile. */
+	public String report() {
+		StringBuilder result = new StringBuilder();
+		long total = getTotal();
+		result.append(String.format("Operations executed: %d%n", total));
+		result.append(String.format("%nPer opcode:%n"));
+		List<Map.Entry<OpCode, Long>> opCodes = new ArrayList<>(
+				getOpCodeCounts().entrySet());
+		Collections.sort(opCodes, new Comparator<Map.Entry<OpCode, Long>>() {
+			@Override
+			public int compare(Map.Entry<OpCode, Long> o1,
+					Map.Entry<OpCode, Long> o2) {
+				return Long.compare(o2.getValue(), o1.getValue());
+			}
+		});
+		for (Map.Entry<OpCode, Long> e : opCodes) {
+			result.append(String.format("  %-10s %12d %5.1f%%%n", e.getKey(),
+					e.getValue(), percentage(e.getValue(), total)));
+		}
+		result.append(String.format("%nPer block:%n"));
+		for (Map.Entry<Integer, Long> e : getBlockCounts().entrySet()) {
+			result.append(String.format("  %-16s %12d%n",
+					blockName(e.getKey()), e.getValue()));
+		}
+		result.append(String.format("%nDispatches saved by fusion:%n"));
+		for (Map.Entry<Fusion, Long> e : getFusionSavings().entrySet()) {
+			result.append(String.format("  %-22s %12d%n", e.getKey(),
+					e.getValue()));
+		}
+		result.append(String.format("%nBranches:%n"));
+		for (int line = 0; line < this.counts.length; line++) {
+			if (isBranch(line)) {
+				result.append(String.format(
+						"  line %-5d %12d taken %12d not taken%n", line,
+						this.taken[line], this.notTaken[line]));
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Writes this profile in comma-separated format, with a header line
+	 * followed by one line per operation, consisting of the line number,
+	 * label (if any), opcode, execution count and (for conditional
+	 * branches only) the taken and not-taken counts.
+	 */
+	public void dump(Writer out) throws IOException {
+		out.write("line,label,opcode,count,taken,notTaken\n");
+		for (int line = 0; line < this.counts.length; line++) {
+			Label label = this.labels[line];
+			out.write(String.format("%d,%s,%s,%d", line, label == null ? ""
+					: label, this.program.getOpAt(line).getOpCode(),
+					this.counts[line]));
+			if (isBranch(line)) {
+				out.write(String.format(",%d,%d", this.taken[line],
+						this.notTaken[line]));
+			} else {
+				out.write(",,");
+			}
+			out.write('\n');
+		}
+		out.flush();
+	}
+
+	/** Returns the result of {@link #dump(Writer)} as a string. */
+	public String dump() {
+		StringWriter result = new StringWriter();
+		try {
+			dump(result);
+		} catch (IOException exc) {
+			// a string writer does not throw exceptions
+			throw new IllegalStateException(exc);
+		}
+		return result.toString();
+	}
+
+	/** Indicates if the operation at a given line is a conditional branch. */
+	private boolean isBranch(int line) {
+		return this.program.getOpAt(line).getOpCode() == OpCode.cbr;
+	}
+
+	/** Returns a name for the block starting at a given line. */
+	private String blockName(int line) {
+		Label label = this.labels[line];
+		return label == null ? "line " + line : label.toString();
+	}
+
+	/** Returns a count as a percentage of a total. */
+	private double percentage(long count, long total) {
+		return total == 0 ? 0 : 100.0 * count / total;
+	}
+}
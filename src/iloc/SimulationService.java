@@ -0,0 +1,308 @@
+package iloc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import iloc.model.LinkedProgram;
+import iloc.model.Program;
+
+/**
+ * Service running simulation jobs concurrently.
+ * Every job consists of a program and its input, and is run by its own
+ * {@link Simulator} on a fresh machine, with output captured in memory.
+ * Jobs run on virtual threads if the platform offers them, and otherwise
+ * on a pool of platform threads; in either case, at most a fixed number
+ * of jobs runs at the same time.
+ * Jobs can be limited in the number of operations they execute
+ * and in the time they take once started.
+ */
+public class SimulationService implements AutoCloseable {
+	/** The charset in which the input and output of jobs are encoded. */
+	public static final Charset CHARSET = StandardCharsets.UTF_8;
+	/** The executor on which jobs are run. */
+	private final ExecutorService executor;
+	/** Flag indicating that the executor uses virtual threads. */
+	private final boolean virtual;
+	/** Permits for the jobs that may run concurrently. */
+	private final Semaphore permits;
+	/** The executor that interrupts jobs after their timeout. */
+	private final ScheduledExecutorService watchdog;
+	/** Maximum number of operations per job; negative if unlimited. */
+	private volatile long stepLimit = -1;
+	/** Maximum running time per job in milliseconds; 0 if unlimited. */
+	private volatile long timeout;
+	/** The engine used by the simulators. */
+	private volatile Simulator.Engine engine = Simulator.DEFAULT_ENGINE;
+
+	/** Constructs a service running at most one job per processor
+	 * at the same time. */
+	public SimulationService() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Constructs a service running at most a given number of jobs
+	 * at the same time. */
+	public SimulationService(int maxConcurrency) {
+		if (maxConcurrency <= 0) {
+			throw new IllegalArgumentException(
+					"Concurrency should be positive");
+		}
+		ExecutorService executor = newVirtualExecutor();
+		this.virtual = executor != null;
+		this.executor = this.virtual ? executor : Executors.newFixedThreadPool(
+				maxConcurrency, new DaemonFactory("iloc-sim"));
+		this.permits = new Semaphore(maxConcurrency);
+		this.watchdog = Executors
+				.newSingleThreadScheduledExecutor(new DaemonFactory(
+						"iloc-watchdog"));
+	}
+
+	/** Indicates if jobs are run on virtual threads. */
+	public boolean isVirtual() {
+		return this.virtual;
+	}
+
+	/** Limits the number of operations executed by every job.
+	 * @param stepLimit the maximum number of operations;
+	 * a negative number removes the limit
+	 * @see Simulator#setStepLimit(long)
+	 */
+	public void setStepLimit(long stepLimit) {
+		this.stepLimit = stepLimit;
+	}
+
+	/** Limits the running time of every job, measured from the moment
+	 * the job starts running. A job that runs out of time is interrupted.
+	 * As interrupts are only noticed by simulators with a step limit,
+	 * jobs without a step limit are given an unbounded one.
+	 * @param timeout the maximum running time; 0 removes the limit
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		this.timeout = unit.toMillis(timeout);
+	}
+
+	/** Changes the engine used to run jobs. */
+	public void setEngine(Simulator.Engine engine) {
+		this.engine = engine;
+	}
+
+	/** Submits a job consisting of a program and its input.
+	 * @return a future for the result of the job
+	 * @see #submit(LinkedProgram, byte[])
+	 */
+	public Future<Result> submit(Program program, byte[] input) {
+		return submit(program.link(), input);
+	}
+
+	/** Submits a job consisting of a linked program and its input.
+	 * The future completes normally also if the run fails;
+	 * the failure is then reported by {@link Result#getError()}.
+	 * @param input the bytes read by the program's input operations,
+	 * encoded in {@link #CHARSET}
+	 * @return a future for the result of the job
+	 */
+	public Future<Result> submit(final LinkedProgram program,
+			final byte[] input) {
+		final CompletableFuture<Result> result = new CompletableFuture<>();
+		this.executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					SimulationService.this.permits.acquire();
+				} catch (InterruptedException exc) {
+					result.completeExceptionally(exc);
+					return;
+				}
+				try {
+					result.complete(runJob(program, input));
+				} catch (Throwable exc) {
+					result.completeExceptionally(exc);
+				} finally {
+					SimulationService.this.permits.release();
+				}
+			}
+		});
+		return result;
+	}
+
+	/** Runs a single job on the current thread. */
+	private Result runJob(LinkedProgram program, byte[] input) {
+		Simulator sim = new Simulator(program);
+		sim.setDebug(false);
+		sim.setEngine(this.engine);
+		sim.setIn(new ByteArrayInputStream(input), CHARSET);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		sim.setOut(out, CHARSET);
+		long timeout = this.timeout;
+		long stepLimit = this.stepLimit;
+		if (timeout > 0 && stepLimit < 0) {
+			stepLimit = Long.MAX_VALUE;
+		}
+		sim.setStepLimit(stepLimit);
+		Alarm alarm = new Alarm(Thread.currentThread());
+		Future<?> scheduled = null;
+		if (timeout > 0) {
+			scheduled = this.watchdog.schedule(alarm, timeout,
+					TimeUnit.MILLISECONDS);
+		}
+		Exception error = null;
+		try {
+			sim.run();
+		} catch (RuntimeException exc) {
+			error = exc;
+		}
+		if (scheduled != null) {
+			scheduled.cancel(false);
+		}
+		if (alarm.finish() && error != null) {
+			error = new TimeoutException("Job exceeded timeout of " + timeout
+					+ " ms");
+		}
+		return new Result(out.toByteArray(), error, sim.getVM().getPC());
+	}
+
+	/** Stops accepting jobs, and waits until the jobs already submitted
+	 * have completed. If the waiting thread is interrupted, the running
+	 * jobs are interrupted as well. */
+	@Override
+	public void close() {
+		this.executor.shutdown();
+		try {
+			while (!this.executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// keep waiting
+			}
+		} catch (InterruptedException exc) {
+			this.executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		this.watchdog.shutdownNow();
+	}
+
+	/** Returns an executor starting a virtual thread per task,
+	 * or {@code null} if the platform does not offer virtual threads. */
+	private static ExecutorService newVirtualExecutor() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException exc) {
+			return null;
+		}
+	}
+
+	/** Result of a simulation job. */
+	public static class Result {
+		/** The output of the job. */
+		private final byte[] output;
+		/** The exception that stopped the job, if any. */
+		private final Exception error;
+		/** The program counter at the end of the job. */
+		private final int pc;
+
+		Result(byte[] output, Exception error, int pc) {
+			this.output = output;
+			this.error = error;
+			this.pc = pc;
+		}
+
+		/** Returns the output of the job as a string.
+		 * @see SimulationService#CHARSET
+		 */
+		public String getOutput() {
+			return new String(this.output, CHARSET);
+		}
+
+		/** Returns the output of the job as bytes. */
+		public byte[] getOutputBytes() {
+			return this.output.clone();
+		}
+
+		/** Indicates if the job ran to completion. */
+		public boolean isSuccess() {
+			return this.error == null;
+		}
+
+		/** Returns the exception that stopped the job, or {@code null}
+		 * if it ran to completion. A job that ran out of time
+		 * reports a {@link TimeoutException}; a job that exceeded the
+		 * step limit reports a {@link Simulator.StepLimitException}. */
+		public Exception getError() {
+			return this.error;
+		}
+
+		/** Returns the program counter at the end of the job. */
+		public int getPC() {
+			return this.pc;
+		}
+
+		@Override
+		public String toString() {
+			return isSuccess() ? getOutput() : getOutput() + this.error;
+		}
+	}
+
+	/** Task interrupting a job thread, unless the job has finished. */
+	private static class Alarm implements Runnable {
+		/** The thread running the job. */
+		private final Thread thread;
+		/** Flag indicating that the job has finished. */
+		private boolean finished;
+		/** Flag indicating that the thread has been interrupted. */
+		private boolean fired;
+
+		Alarm(Thread thread) {
+			this.thread = thread;
+		}
+
+		@Override
+		public synchronized void run() {
+			if (!this.finished) {
+				this.fired = true;
+				this.thread.interrupt();
+			}
+		}
+
+		/** Marks the job as finished, and clears the interrupt status
+		 * of the (current) job thread if the alarm has gone off.
+		 * @return {@code true} if the alarm has gone off
+		 */
+		synchronized boolean finish() {
+			this.finished = true;
+			if (this.fired) {
+				Thread.interrupted();
+			}
+			return this.fired;
+		}
+	}
+
+	/** Factory for named daemon threads. */
+	private static class DaemonFactory implements ThreadFactory {
+		/** The name prefix of the threads. */
+		private final String name;
+		/** The number of threads created so far. */
+		private int count;
+
+		DaemonFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread result = new Thread(r, this.name + "-" + this.count++);
+			result.setDaemon(true);
+			return result;
+		}
+	}
+}
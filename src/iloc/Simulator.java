@@ -5,10 +5,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 import iloc.eval.Machine;
-import iloc.model.Label;
+import iloc.eval.Memory;
+import iloc.model.LinkedProgram;
 import iloc.model.Num;
 import iloc.model.Op;
 import iloc.model.OpClaz;
@@ -25,26 +33,83 @@ public class Simulator {
 	public static final int TRUE = -1;
 	/** Representation of <code>false</code>. */
 	public static final int FALSE = 0;
-	/** Flag controlling debug mode. */
+	/** Flag controlling debug mode.
+	 * In debug mode, the program is executed by {@link #step()}, which
+	 * prints every operation and the complete VM state.
+	 * For long runs, use a {@link TraceBuffer} instead.
+	 * This is the default for simulators created afterwards;
+	 * use {@link #setDebug(boolean)} to change a single simulator.
+	 * @see #setTraceBuffer(TraceBuffer)
+	 */
 	public static boolean DEBUG = false;
+	/** The default engine, taken from the {@code iloc.engine} system property. */
+	public static final Engine DEFAULT_ENGINE = Engine.valueOf(System
+			.getProperty("iloc.engine", Engine.SWITCH.name()));
+	/** The default trace threshold, taken from the
+	 * {@code iloc.trace.threshold} system property. */
+	public static final int DEFAULT_TRACE_THRESHOLD = Integer.getInteger(
+			"iloc.trace.threshold", 50);
+	/** The default set of fusions, taken from the comma-separated
+	 * {@code iloc.fusions} system property. */
+	public static final Set<Fusion> DEFAULT_FUSIONS = Collections
+			.unmodifiableSet(Fusion.parse(System.getProperty("iloc.fusions",
+					"all")));
+	/** All opcodes, indexed by ordinal. */
+	private static final OpCode[] OPCODES = OpCode.values();
+	/** All fusions, indexed by ordinal. */
+	private static final Fusion[] FUSIONS = Fusion.values();
 
 	static public void main(String[] args) {
 		if (args.length == 0) {
-			System.err.println("Usage: filename.iloc");
+			System.err.println("Usage: filename.iloc | filename"
+					+ BinaryFormat.EXTENSION);
 			return;
 		}
 		try {
-			Program prog = Assembler.instance().assemble(new File(args[0]));
+			Program prog;
+			if (BinaryFormat.isBinary(args[0])) {
+				prog = BinaryFormat.read(new File(args[0]).toPath());
+			} else {
+				prog = Assembler.instance().assemble(new File(args[0]));
+			}
 			new Simulator(prog).run();
 		} catch (FormatException | IOException exc) {
 			exc.printStackTrace();
 		}
 	}
 
-	/** The simulated program. */
-	private final Program prg;
+	/** The linked form of the simulated program. */
+	private final LinkedProgram prg;
 	/** The virtual machine on which the program is run. */
 	private final Machine vm;
+	/** The engine used to execute decoded programs. */
+	private Engine engine = DEFAULT_ENGINE;
+	/** The engine that executed the last run of a decoded program;
+	 * {@code null} if there has been no such run. */
+	private Engine runEngine;
+	/** Number of times a loop header is entered before the
+	 * {@link Engine#TRACE} engine records a trace for it. */
+	private int traceThreshold = DEFAULT_TRACE_THRESHOLD;
+	/** The fusions applied by the {@link Engine#SWITCH} engine. */
+	private Set<Fusion> fusions = DEFAULT_FUSIONS;
+	/** The execution profile; {@code null} if profiling is disabled. */
+	private Profile profile;
+	/** The trace buffer; {@code null} if tracing is disabled. */
+	private TraceBuffer traceBuffer;
+	/** Flag controlling debug mode for this simulator. */
+	private boolean debug = DEBUG;
+	/** Maximum number of operations executed per run;
+	 * negative if unlimited. */
+	private long stepLimit = -1;
+	/** Number of operations executed so far in the current run.
+	 * Engines keep the count in a local variable, and store it here
+	 * when they return or call {@link #checkSteps(long)}. */
+	long steps;
+	/** Number of operations after which the current run should next
+	 * call {@link #checkSteps(long)}. */
+	long stepCheck;
+	/** Number of executions of every fusion, indexed by ordinal. */
+	private final long[] fusionCounts = new long[FUSIONS.length];
 	/** Flag signifying that the input is from stdin. */
 	private boolean stdIn;
 	/** The reader used for the in-operations. */
@@ -52,8 +117,24 @@ public class Simulator {
 	/** The print writer used for the out-operations. */
 	private PrintStream out;
 
-	/** Constructs a simulator for a given program and VM. */
+	/** Constructs a simulator for a given program and VM.
+	 * The program is linked at construction time; later changes
+	 * to the program do not affect the simulator.
+	 * @see Program#link()
+	 */
 	public Simulator(Program program, Machine vm) {
+		this(program.link(), vm);
+	}
+
+	/** Constructs a simulator for a given program and a fresh VM.
+	 * @see #Simulator(LinkedProgram)
+	 */
+	public Simulator(Program program) {
+		this(program.link());
+	}
+
+	/** Constructs a simulator for a given linked program and VM. */
+	public Simulator(LinkedProgram program, Machine vm) {
 		assert program != null;
 		assert vm != null;
 		this.prg = program;
@@ -63,13 +144,56 @@ public class Simulator {
 		this.stdIn = true;
 	}
 
-	/** Constructs a simulator for a given program and a fresh VM. */
-	public Simulator(Program program) {
+	/** Constructs a simulator for a given linked program and a fresh VM.
+	 * The memory of the VM is sized according to the program.
+	 * @see #getMemorySize(LinkedProgram)
+	 */
+	public Simulator(LinkedProgram program) {
 		this(program, new Machine());
+		int size = getMemorySize(program);
+		if (size != this.vm.getSize()) {
+			this.vm.setSize(size);
+		}
 	}
 
-	/** Returns the program wrapped in this simulator. */
+	/**
+	 * Returns the memory size needed by a given program.
+	 * If the program declares {@link Program#FRAME_SIZE} and
+	 * {@link Program#STACK_SIZE}, this is their sum, plus
+	 * {@link Memory#DEFAULT_SIZE} for input strings if the program
+	 * contains {@link OpCode#cin}; otherwise it is
+	 * {@link Memory#DEFAULT_SIZE}.
+	 * This is an estimate rather than a guarantee: the constants are
+	 * only as reliable as the code that declares them, and the length
+	 * of an input string is only known at run time. A program that needs
+	 * more memory fails with an {@link ArrayIndexOutOfBoundsException}.
+	 */
+	public static int getMemorySize(LinkedProgram program) {
+		Integer frameSize = program.getSymb(Program.FRAME_SIZE);
+		Integer stackSize = program.getSymb(Program.STACK_SIZE);
+		if (frameSize == null || stackSize == null) {
+			return Memory.DEFAULT_SIZE;
+		}
+		int result = frameSize + stackSize;
+		for (Op op : program.getOps()) {
+			if (op.getOpCode() == OpCode.cin) {
+				result += Memory.DEFAULT_SIZE;
+				break;
+			}
+		}
+		return result;
+	}
+
+	/** Returns the program wrapped in this simulator.
+	 * This is the frozen copy from which the linked program was built.
+	 * @see #getLinkedProgram()
+	 */
 	public Program getProgram() {
+		return this.prg.getProgram();
+	}
+
+	/** Returns the linked program wrapped in this simulator. */
+	public LinkedProgram getLinkedProgram() {
 		return this.prg;
 	}
 
@@ -78,21 +202,700 @@ public class Simulator {
 		return this.vm;
 	}
 
+	/** Returns the engine used to execute decoded programs. */
+	public Engine getEngine() {
+		return this.engine;
+	}
+
+	/** Changes the engine used to execute decoded programs. */
+	public void setEngine(Engine engine) {
+		this.engine = engine;
+	}
+
+	/** Returns the engine that actually executed the last run of
+	 * a decoded program. This differs from {@link #getEngine()} if the
+	 * run had to fall back on {@link Engine#SWITCH}, for instance because
+	 * the program could not be compiled by {@link Engine#CLASS}.
+	 * @return the engine of the last run, or {@code null} if no decoded
+	 * program has been run
+	 */
+	public Engine getRunEngine() {
+		return this.runEngine;
+	}
+
+	/** Returns the number of times a loop header is entered before
+	 * a trace is recorded for it, in the {@link Engine#TRACE} engine. */
+	public int getTraceThreshold() {
+		return this.traceThreshold;
+	}
+
+	/** Changes the number of times a loop header is entered before
+	 * a trace is recorded for it, in the {@link Engine#TRACE} engine. */
+	public void setTraceThreshold(int traceThreshold) {
+		this.traceThreshold = traceThreshold;
+	}
+
+	/** Returns the sequences of operations that are fused
+	 * by the {@link Engine#SWITCH} engine. */
+	public Set<Fusion> getFusions() {
+		return this.fusions;
+	}
+
+	/** Changes the sequences of operations that are fused
+	 * by the {@link Engine#SWITCH} engine. */
+	public void setFusions(Set<Fusion> fusions) {
+		this.fusions = EnumSet.noneOf(Fusion.class);
+		this.fusions.addAll(fusions);
+	}
+
+	/** Returns, for every fusion executed by this simulator so far,
+	 * the number of operation dispatches it saved. */
+	public Map<Fusion, Long> getFusionSavings() {
+		Map<Fusion, Long> result = new EnumMap<>(Fusion.class);
+		synchronized (this.fusionCounts) {
+			for (Fusion fusion : FUSIONS) {
+				long count = this.fusionCounts[fusion.ordinal()];
+				if (count > 0) {
+					result.put(fusion, count * (fusion.size() - 1));
+				}
+			}
+		}
+		return result;
+	}
+
+	/** Indicates if profiling is enabled. */
+	public boolean isProfiling() {
+		return this.profile != null;
+	}
+
+	/** Enables or disables profiling.
+	 * Enabling creates a fresh, empty profile.
+	 * While profiling, programs are executed by the
+	 * {@link Engine#SWITCH} engine without fusions, regardless of
+	 * {@link #getEngine()}.
+	 * @see #getProfile()
+	 */
+	public void setProfiling(boolean profiling) {
+		this.profile = profiling ? new Profile(this.prg) : null;
+	}
+
+	/** Returns the profile collected in the runs so far,
+	 * or {@code null} if profiling is disabled. */
+	public Profile getProfile() {
+		return this.profile;
+	}
+
+	/** Returns the buffer in which executed operations are recorded,
+	 * or {@code null} if tracing is disabled. */
+	public TraceBuffer getTraceBuffer() {
+		return this.traceBuffer;
+	}
+
+	/** Changes the buffer in which executed operations are recorded.
+	 * While tracing, programs are executed by the {@link Engine#SWITCH}
+	 * engine without fusions, regardless of {@link #getEngine()}.
+	 * If a run fails, the most recent entries of the buffer are dumped.
+	 * @param traceBuffer the trace buffer; {@code null} disables tracing
+	 */
+	public void setTraceBuffer(TraceBuffer traceBuffer) {
+		this.traceBuffer = traceBuffer;
+	}
+
+	/** Indicates if this simulator is in debug mode.
+	 * @see #DEBUG
+	 */
+	public boolean isDebug() {
+		return this.debug;
+	}
+
+	/** Changes the debug mode of this simulator.
+	 * @see #DEBUG
+	 */
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	/** Returns the maximum number of operations executed per run,
+	 * or a negative number if there is no maximum. */
+	public long getStepLimit() {
+		return this.stepLimit;
+	}
+
+	/** Limits the number of operations executed per run.
+	 * A run that exceeds the limit throws a {@link StepLimitException}.
+	 * While the number of operations is limited, a run also stops with a
+	 * {@link CancellationException} when its thread is interrupted.
+	 * Every engine counts the operations it executes, but a run may
+	 * slightly exceed the limit: {@link Engine#SWITCH} checks the count
+	 * before every fused sequence rather than every operation in it, and
+	 * {@link Engine#CLASS} only checks it at backward branches.
+	 * {@link Engine#TRACE} counts the nodes of its traces rather than
+	 * the operations they were recorded from.
+	 * @param stepLimit the maximum number of operations;
+	 * a negative number removes the limit
+	 */
+	public void setStepLimit(long stepLimit) {
+		this.stepLimit = stepLimit;
+	}
+
 	/** Changes the input stream for the {@link OpCode#in}-operations. */
 	public void setIn(InputStream in) {
 		this.in = new Scanner(in);
 		this.stdIn = false;
 	}
 
+	/** Changes the input stream for the {@link OpCode#in}-operations,
+	 * which is decoded with a given charset. */
+	public void setIn(InputStream in, Charset charset) {
+		this.in = new Scanner(in, charset);
+		this.stdIn = false;
+	}
+
 	/** Changes the output stream for the {@link OpCode#out}-operations. */
 	public void setOut(OutputStream out) {
 		this.out = new PrintStream(out);
 	}
 
-	/** Runs the program. */
+	/** Changes the output stream for the {@link OpCode#out}-operations,
+	 * which is encoded with a given charset. */
+	public void setOut(OutputStream out, Charset charset) {
+		this.out = new PrintStream(out, false, charset);
+	}
+
+	/** Runs the program.
+	 * Unless the simulator is in debug mode, the program is first decoded,
+	 * and then executed by {@link #run(DecodedProgram)}.
+	 * @see #isDebug()
+	 */
 	public void run() {
-		while (this.vm.getPC() < this.prg.size()) {
-			step();
+		if (this.debug) {
+			startSteps();
+			while (this.vm.getPC() < this.prg.size()) {
+				int line = this.vm.getPC();
+				countStep();
+				step();
+				if (this.profile != null) {
+					this.profile.countStep(line, this.vm.getPC());
+				}
+			}
+		} else {
+			run(DecodedProgram.decode(this.prg));
+		}
+	}
+
+	/** Runs a decoded form of the program.
+	 * During the run, register values are kept in an array indexed by
+	 * the register slots of the decoded program; they are copied from the
+	 * VM's register file at the start and back again at the end.
+	 * Reading a register that is assigned neither in the VM nor anywhere
+	 * in the program is an error, reported by {@link #step()};
+	 * registers that are read before being written in the course of the
+	 * run have value 0.
+	 * @param decoded the decoded form of {@link #getLinkedProgram()}
+	 */
+	public void run(DecodedProgram decoded) {
+		assert decoded.getProgram() == this.prg;
+		int[] code = decoded.bind(this.vm);
+		int[] slots = decoded.bindRegs(this.vm);
+		int[] regs = new int[slots.length];
+		int[] fused = new int[FUSIONS.length];
+		loadRegs(slots, regs);
+		startSteps();
+		try {
+			if (this.profile != null || this.traceBuffer != null) {
+				this.runEngine = Engine.SWITCH;
+				runObserved(decoded, code, slots, regs, fused);
+				return;
+			}
+			this.runEngine = this.engine;
+			switch (this.engine) {
+			case NODES:
+				decoded.getNodes(code).run(this, slots, regs);
+				break;
+			case TRACE:
+				new Tracer(this, decoded, code, slots, regs, fused).run();
+				break;
+			case CLASS:
+				ClassCompiler.Code compiled = decoded.getCompiled();
+				if (compiled != null) {
+					ClassCompiler.Host host = new ClassCompiler.Host(this,
+							decoded, slots, regs);
+					compiled.run(regs, code, this.vm, host, this.vm.getPC());
+					break;
+				}
+				// the program cannot be compiled; fall back on the switch
+				this.runEngine = Engine.SWITCH;
+				runSwitch(decoded, code, slots, regs, fused);
+				break;
+			default:
+				runSwitch(decoded, code, slots, regs, fused);
+			}
+		} finally {
+			storeRegs(decoded, slots, regs);
+			synchronized (this.fusionCounts) {
+				for (int i = 0; i < fused.length; i++) {
+					this.fusionCounts[i] += fused[i];
+				}
+			}
+			if (this.profile != null) {
+				this.profile.countFusions(fused);
+			}
+		}
+	}
+
+	/** Executes a decoded program while profiling or tracing it.
+	 * The code is fused unless tracing is enabled, as the trace buffer
+	 * records single operations; the profile counts every line of
+	 * a fused sequence, and the fusions executed.
+	 * If a run fails while tracing, the trace buffer is dumped.
+	 * @param code the bound code array of the program
+	 * @param slots the VM register slots, indexed by array slot
+	 * @param regs the register array
+	 * @param fused the fusion counters of the run
+	 */
+	private void runObserved(DecodedProgram decoded, int[] code,
+			int[] slots, int[] regs, int[] fused) {
+		TraceBuffer traceBuffer = this.traceBuffer;
+		if (traceBuffer != null) {
+			traceBuffer.start(decoded);
+		}
+		try {
+			if (traceBuffer == null) {
+				// the profile counts the lines of fused sequences
+				runSwitch(decoded, code, slots, regs, fused);
+			} else {
+				runSwitch(decoded, code, slots, regs, fused, false);
+			}
+		} catch (RuntimeException exc) {
+			if (traceBuffer != null) {
+				traceBuffer.dumpOnError(this.vm.getPC(), exc);
+			}
+			throw exc;
+		}
+	}
+
+	/** Executes a decoded program by dispatching on the opcode
+	 * of every operation, after fusing the sequences selected by
+	 * {@link #getFusions()}.
+	 * @param code the bound code array of the program
+	 * @param slots the VM register slots, indexed by array slot
+	 * @param regs the register array
+	 * @param fused the fusion counters of the run
+	 */
+	private void runSwitch(DecodedProgram decoded, int[] code, int[] slots,
+			int[] regs, int[] fused) {
+		runSwitch(decoded, decoded.fuse(code, this.fusions), slots, regs,
+				fused, false);
+	}
+
+	/** Executes a decoded program by dispatching on the opcode
+	 * of every operation, optionally returning at every backward
+	 * {@link OpCode#jumpI}.
+	 * In the latter case, the program counter of the VM is set to
+	 * the target of the jump, which is the header of a loop.
+	 * If an exception is thrown in a fused sequence, the program counter
+	 * is set to the first line of the sequence.
+	 * If tracing is enabled, the code should not be fused.
+	 * @param code the bound code array of the program, possibly fused
+	 * @param slots the VM register slots, indexed by array slot
+	 * @param regs the register array
+	 * @param fused the fusion counters of the run, indexed by ordinal,
+	 * which are incremented for every fused sequence executed
+	 * @param loops if {@code true}, return at backward jumps
+	 */
+	void runSwitch(DecodedProgram decoded, int[] code, int[] slots,
+			int[] regs, int[] fused, boolean loops) {
+		Machine vm = this.vm;
+		int size = decoded.size();
+		int pc = vm.getPC();
+		Profile profile = this.profile;
+		long[] counts = profile == null ? null : profile.counts;
+		TraceBuffer traceBuffer = this.traceBuffer;
+		long steps = this.steps;
+		long check = this.stepCheck;
+		try {
+			while (pc < size) {
+				if (counts != null) {
+					counts[pc]++;
+				}
+				if (steps >= check) {
+					check = checkSteps(steps);
+				}
+				steps++;
+				int ix = pc * DecodedProgram.STRIDE;
+				int opCode = code[ix];
+				if (opCode == DecodedProgram.SLOW) {
+					int line = pc;
+					pc = slowStep(decoded, slots, regs, pc);
+					if (traceBuffer != null) {
+						traceBuffer.record(code, regs, line);
+					}
+					continue;
+				}
+				int a = code[ix + 1];
+				int b = code[ix + 2];
+				int c = code[ix + 3];
+				int next = pc + 1;
+				int sp;
+				if (opCode >= DecodedProgram.FUSED) {
+					Fusion fusion = FUSIONS[opCode - DecodedProgram.FUSED];
+					fused[fusion.ordinal()]++;
+					steps += fusion.size() - 1;
+					// the operands of the next operations in the sequence
+					int a2 = code[ix + 5];
+					int b2 = code[ix + 6];
+					int c2 = code[ix + 7];
+					switch (fusion) {
+					case LOAD_LOAD_ADD_STORE:
+						regs[c] = vm.load(regs[a] + b);
+						regs[c2] = vm.load(regs[a2] + b2);
+						regs[code[ix + 11]] = regs[code[ix + 9]]
+								+ regs[code[ix + 10]];
+						vm.store(regs[code[ix + 13]], regs[code[ix + 14]]
+								+ code[ix + 15]);
+						break;
+					case LOAD_LOAD_SUB_STORE:
+						regs[c] = vm.load(regs[a] + b);
+						regs[c2] = vm.load(regs[a2] + b2);
+						regs[code[ix + 11]] = regs[code[ix + 9]]
+								- regs[code[ix + 10]];
+						vm.store(regs[code[ix + 13]], regs[code[ix + 14]]
+								+ code[ix + 15]);
+						break;
+					case LOAD_LOAD_MULT_STORE:
+						regs[c] = vm.load(regs[a] + b);
+						regs[c2] = vm.load(regs[a2] + b2);
+						regs[code[ix + 11]] = regs[code[ix + 9]]
+								* regs[code[ix + 10]];
+						vm.store(regs[code[ix + 13]], regs[code[ix + 14]]
+								+ code[ix + 15]);
+						break;
+					case LOADI_LOAD_ADD_STORE:
+						regs[b] = a;
+						regs[c2] = vm.load(regs[a2] + b2);
+						regs[code[ix + 11]] = regs[code[ix + 9]]
+								+ regs[code[ix + 10]];
+						vm.store(regs[code[ix + 13]], regs[code[ix + 14]]
+								+ code[ix + 15]);
+						break;
+					case LOAD_LOAD:
+						regs[c] = vm.load(regs[a] + b);
+						regs[c2] = vm.load(regs[a2] + b2);
+						break;
+					case LOAD_STORE:
+						regs[c] = vm.load(regs[a] + b);
+						vm.store(regs[a2], regs[b2] + c2);
+						break;
+					case CMP_LT_CBR:
+						regs[c] = regs[a] < regs[b] ? TRUE : FALSE;
+						break;
+					case CMP_LE_CBR:
+						regs[c] = regs[a] <= regs[b] ? TRUE : FALSE;
+						break;
+					case CMP_EQ_CBR:
+						regs[c] = regs[a] == regs[b] ? TRUE : FALSE;
+						break;
+					case CMP_GE_CBR:
+						regs[c] = regs[a] >= regs[b] ? TRUE : FALSE;
+						break;
+					case CMP_GT_CBR:
+						regs[c] = regs[a] > regs[b] ? TRUE : FALSE;
+						break;
+					case CMP_NE_CBR:
+						regs[c] = regs[a] != regs[b] ? TRUE : FALSE;
+						break;
+					}
+					if (fusion.isBranch()) {
+						next = regs[a2] == 0 ? c2 : b2;
+					} else {
+						next = pc + fusion.size();
+					}
+					if (counts != null) {
+						// the first line has been counted already
+						for (int i = 1; i < fusion.size(); i++) {
+							counts[pc + i]++;
+						}
+						if (fusion.isBranch()) {
+							profile.countBranch(pc + fusion.size() - 1,
+									regs[a2] != 0);
+						}
+					}
+					pc = next;
+					continue;
+				}
+				switch (OPCODES[opCode]) {
+				case add:
+					regs[c] = regs[a] + regs[b];
+					break;
+				case sub:
+					regs[c] = regs[a] - regs[b];
+					break;
+				case mult:
+					regs[c] = regs[a] * regs[b];
+					break;
+				case div:
+					regs[c] = regs[a] / regs[b];
+					break;
+				case addI:
+					regs[c] = regs[a] + b;
+					break;
+				case subI:
+					regs[c] = regs[a] - b;
+					break;
+				case rsubI:
+					regs[c] = b - regs[a];
+					break;
+				case multI:
+					regs[c] = regs[a] * b;
+					break;
+				case divI:
+					regs[c] = regs[a] / b;
+					break;
+				case rdivI:
+					regs[c] = b / regs[a];
+					break;
+				case lshift:
+					regs[c] = regs[a] << regs[b];
+					break;
+				case lshiftI:
+					regs[c] = regs[a] << b;
+					break;
+				case rshift:
+					regs[c] = regs[a] >>> regs[b];
+					break;
+				case rshiftI:
+					regs[c] = regs[a] >>> b;
+					break;
+				case and:
+					regs[c] = -1 * regs[a] * regs[b];
+					break;
+				case andI:
+					regs[c] = -1 * regs[a] * b;
+					break;
+				case or:
+					regs[c] = Math.max(-1, regs[a] + regs[b]);
+					break;
+				case orI:
+					regs[c] = Math.max(-1, regs[a] + b);
+					break;
+				case xor:
+					regs[c] = Math.max(-1, regs[a] ^ regs[b]);
+					break;
+				case xorI:
+					regs[c] = Math.max(-1, regs[a] ^ b);
+					break;
+				case load:
+					regs[b] = vm.load(regs[a]);
+					break;
+				case loadI:
+					regs[b] = a;
+					break;
+				case loadAI:
+					regs[c] = vm.load(regs[a] + b);
+					break;
+				case loadAO:
+					regs[c] = vm.load(regs[a] + regs[b]);
+					break;
+				case store:
+					vm.store(regs[a], regs[b]);
+					break;
+				case storeAI:
+					vm.store(regs[a], regs[b] + c);
+					break;
+				case storeAO:
+					vm.store(regs[a], regs[b] + regs[c]);
+					break;
+				case cload:
+					regs[b] = vm.loadC(regs[a]);
+					break;
+				case cloadAI:
+					regs[c] = vm.loadC(regs[a] + b);
+					break;
+				case cloadAO:
+					regs[c] = vm.loadC(regs[a] + regs[b]);
+					break;
+				case cstore:
+					vm.storeC(regs[a], regs[b]);
+					break;
+				case cstoreAI:
+					vm.storeC(regs[a], regs[b] + c);
+					break;
+				case cstoreAO:
+					vm.storeC(regs[a], regs[b] + regs[c]);
+					break;
+				case i2i:
+					regs[b] = regs[a];
+					break;
+				case i2c:
+				case c2i:
+				case c2c:
+					regs[b] = (byte) regs[a];
+					break;
+				case cmp_LT:
+					regs[c] = regs[a] < regs[b] ? TRUE : FALSE;
+					break;
+				case cmp_LE:
+					regs[c] = regs[a] <= regs[b] ? TRUE : FALSE;
+					break;
+				case cmp_EQ:
+					regs[c] = regs[a] == regs[b] ? TRUE : FALSE;
+					break;
+				case cmp_GE:
+					regs[c] = regs[a] >= regs[b] ? TRUE : FALSE;
+					break;
+				case cmp_GT:
+					regs[c] = regs[a] > regs[b] ? TRUE : FALSE;
+					break;
+				case cmp_NE:
+					regs[c] = regs[a] != regs[b] ? TRUE : FALSE;
+					break;
+				case cbr:
+					next = regs[a] == 0 ? c : b;
+					if (profile != null) {
+						profile.countBranch(pc, regs[a] != 0);
+					}
+					break;
+				case jumpI:
+					next = a;
+					if (loops && a <= pc) {
+						pc = a;
+						return;
+					}
+					break;
+				case jump:
+					next = regs[a];
+					if (next < 0) {
+						throw new IllegalArgumentException(
+								"Trying to jump to line " + next);
+					}
+					break;
+				case push:
+					sp = regs[Machine.SP_SLOT] - Machine.INT_SIZE;
+					regs[Machine.SP_SLOT] = sp;
+					vm.store(regs[a], sp);
+					break;
+				case pop:
+					sp = regs[Machine.SP_SLOT];
+					regs[Machine.SP_SLOT] = sp + Machine.INT_SIZE;
+					regs[a] = vm.load(sp);
+					break;
+				case cpush:
+					sp = regs[Machine.SP_SLOT] - vm.getCharSize();
+					regs[Machine.SP_SLOT] = sp;
+					vm.storeC(regs[a], sp);
+					break;
+				case cpop:
+					sp = regs[Machine.SP_SLOT];
+					regs[Machine.SP_SLOT] = sp + vm.getCharSize();
+					regs[a] = vm.loadC(sp);
+					break;
+				case in:
+					regs[b] = readInt(decoded.getText(pc));
+					break;
+				case out:
+					output(decoded.getText(pc), Integer.toString(regs[b]));
+					break;
+				case cin:
+					regs[Machine.SP_SLOT] = pushString(
+							regs[Machine.SP_SLOT],
+							readLine(decoded.getText(pc)));
+					break;
+				case cout:
+					StringBuilder text = new StringBuilder();
+					regs[Machine.SP_SLOT] = popString(
+							regs[Machine.SP_SLOT], text);
+					output(decoded.getText(pc), text.toString());
+					break;
+				case ccopy:
+					vm.copyC(regs[a], regs[c], regs[b]);
+					break;
+				case coutA:
+					output(decoded.getText(pc), vm.loadString(regs[b], regs[c]));
+					break;
+				default:
+					// nop, tbl, comment: do nothing
+				}
+				if (traceBuffer != null) {
+					traceBuffer.record(code, regs, pc);
+				}
+				pc = next;
+			}
+		} finally {
+			vm.setPC(pc);
+			this.steps = steps;
+		}
+	}
+
+	/** Resets the operation count at the start of a run. */
+	private void startSteps() {
+		this.steps = 0;
+		this.stepCheck = this.stepLimit < 0 ? Long.MAX_VALUE : 0;
+	}
+
+	/** Counts an operation that is about to be executed,
+	 * calling {@link #checkSteps(long)} when due. */
+	void countStep() {
+		if (this.steps >= this.stepCheck) {
+			checkSteps(this.steps);
+		}
+		this.steps++;
+	}
+
+	/** Throws an exception if a given number of operations executed in
+	 * the current run reaches the step limit, or if the current thread
+	 * has been interrupted while the number of steps is limited.
+	 * Engines call this method whenever their count reaches
+	 * {@link #stepCheck}, so the interrupt status is checked periodically.
+	 * @return the new value of {@link #stepCheck}
+	 */
+	long checkSteps(long steps) {
+		if (this.stepLimit < 0) {
+			this.stepCheck = Long.MAX_VALUE;
+		} else if (steps >= this.stepLimit) {
+			throw new StepLimitException(this.stepLimit);
+		} else if (Thread.interrupted()) {
+			throw new CancellationException("Simulation interrupted");
+		} else {
+			this.stepCheck = Math.min(this.stepLimit,
+					steps + INTERRUPT_CHECK_INTERVAL);
+		}
+		return this.stepCheck;
+	}
+
+	/** Executes the operation at a given line of a decoded program
+	 * through {@link #step()}, and returns the next line.
+	 * The values in the register array are copied to the VM
+	 * before the step and back again afterwards.
+	 * @param slots the VM register slots, indexed by array slot
+	 * @param regs the register array
+	 */
+	int slowStep(DecodedProgram decoded, int[] slots, int[] regs, int pc) {
+		storeRegs(decoded, slots, regs);
+		this.vm.setPC(pc);
+		step();
+		loadRegs(slots, regs);
+		return this.vm.getPC();
+	}
+
+	/** Copies register values from the VM into a register array.
+	 * @param slots the VM register slots, indexed by array slot
+	 */
+	private void loadRegs(int[] slots, int[] regs) {
+		for (int slot = 0; slot < regs.length; slot++) {
+			regs[slot] = this.vm.getReg(slots[slot]);
+		}
+	}
+
+	/** Copies the values in a register array back into the VM,
+	 * for all registers that are either assigned in the VM or
+	 * assigned by the decoded program.
+	 * @param slots the VM register slots, indexed by array slot
+	 */
+	private void storeRegs(DecodedProgram decoded, int[] slots, int[] regs) {
+		for (int slot = 0; slot < regs.length; slot++) {
+			if (decoded.isRegDef(slot) || this.vm.hasReg(slots[slot])) {
+				this.vm.setReg(slots[slot], regs[slot]);
+			}
 		}
 	}
 
@@ -101,7 +904,7 @@ public class Simulator {
 		Op o = this.prg.getOpAt(this.vm.getPC());
 		OPContext c = new OPContext(o);
 		Machine vm = this.vm;
-		if (DEBUG) {
+		if (this.debug) {
 			System.out.printf("Op %d: %s%n", vm.getPC(), o);
 			System.out.println(vm);
 		}
@@ -140,16 +943,16 @@ public class Simulator {
 			c.setReg(2, c.num(1) / c.reg(0));
 			break;
 		case lshift:
-			c.setReg(2, c.num(0) << c.reg(1));
+			c.setReg(2, c.reg(0) << c.reg(1));
 			break;
 		case lshiftI:
-			c.setReg(2, c.num(0) << c.num(1));
+			c.setReg(2, c.reg(0) << c.num(1));
 			break;
 		case rshift:
-			c.setReg(2, c.num(0) >>> c.reg(1));
+			c.setReg(2, c.reg(0) >>> c.reg(1));
 			break;
 		case rshiftI:
-			c.setReg(2, c.num(0) >>> c.num(1));
+			c.setReg(2, c.reg(0) >>> c.num(1));
 			break;
 		case and:
 			c.setReg(2, -1 * c.reg(0) * c.reg(1));
@@ -208,6 +1011,9 @@ public class Simulator {
 		case cstoreAO:
 			vm.storeC(c.reg(0), c.reg(1) + c.reg(2));
 			break;
+		case ccopy:
+			vm.copyC(c.reg(0), c.reg(2), c.reg(1));
+			break;
 		case i2i:
 			c.setReg(1, c.reg(0));
 			break;
@@ -267,45 +1073,23 @@ public class Simulator {
 			c.setReg(0, popC());
 			break;
 		case in:
-			String message = o.str(0).getText();
-			if (this.stdIn) {
-				this.out.print(message);
-			}
-			String in = this.in.nextLine();
-			int val = Integer.MAX_VALUE;
-			do {
-				try {
-					val = Integer.parseInt(in);
-				} catch (NumberFormatException e) {
-					// try again
-					if (this.stdIn) {
-						this.out.printf("Input '%s' should be a number%n", in);
-						this.out.print(message);
-						in = this.in.nextLine();
-					} else {
-						throw new IllegalArgumentException(String.format(
-								"Input '%s' should be a number%n", in));
-					}
-				}
-			} while (val == Integer.MAX_VALUE);
-			c.setReg(1, val);
+			c.setReg(1, readInt(o.str(0).getText()));
 			break;
 		case out:
 			this.out.print(o.str(0).getText());
 			this.out.println(c.reg(1));
 			break;
 		case cin:
-			message = o.str(0).getText();
-			if (this.stdIn) {
-				this.out.print(message);
-			}
-			in = this.in.nextLine();
-			pushString(in);
+			pushString(readLine(o.str(0).getText()));
 			break;
 		case cout:
 			this.out.print(o.str(0).getText());
 			this.out.println(popString());
 			break;
+		case coutA:
+			this.out.print(o.str(0).getText());
+			this.out.println(vm.loadString(c.reg(1), c.reg(2)));
+			break;
 		case comment:
 			// do nothing
 			break;
@@ -323,15 +1107,15 @@ public class Simulator {
 
 	/** Pushes a 4-byte integer onto the stack. */
 	private void push(int val) {
-		int sp = this.vm.getReg(Machine.SP) - 4;
-		this.vm.setReg(Machine.SP, sp);
+		int sp = this.vm.getReg(Machine.SP_SLOT) - Machine.INT_SIZE;
+		this.vm.setReg(Machine.SP_SLOT, sp);
 		this.vm.store(val, sp);
 	}
 
 	/** Pushes a character onto the stack. */
 	private void pushC(int val) {
-		int sp = this.vm.getReg(Machine.SP) - this.vm.getCharSize();
-		this.vm.setReg(Machine.SP, sp);
+		int sp = this.vm.getReg(Machine.SP_SLOT) - this.vm.getCharSize();
+		this.vm.setReg(Machine.SP_SLOT, sp);
 		this.vm.storeC(val, sp);
 	}
 
@@ -340,25 +1124,35 @@ public class Simulator {
 	 * by the chars of the string, with first char on top .
 	 */
 	private void pushString(String text) {
-		for (int i = text.length() - 1; i >= 0; i--) {
-			pushC(text.charAt(i));
-		}
-		push(text.length());
+		int sp = pushString(this.vm.getReg(Machine.SP_SLOT), text);
+		this.vm.setReg(Machine.SP_SLOT, sp);
+	}
+
+	/** Pushes a string onto a stack with a given top, 
+	 * and returns the new stack top.
+	 * @see #pushString(String)
+	 */
+	int pushString(int sp, String text) {
+		sp -= text.length() * this.vm.getCharSize();
+		this.vm.storeString(text, sp);
+		sp -= Machine.INT_SIZE;
+		this.vm.store(text.length(), sp);
+		return sp;
 	}
 
 	/** Pops a 4-byte integer from the stack. */
 	private int pop() {
-		int sp = this.vm.getReg(Machine.SP);
+		int sp = this.vm.getReg(Machine.SP_SLOT);
 		int result = this.vm.load(sp);
-		this.vm.setReg(Machine.SP, sp + 4);
+		this.vm.setReg(Machine.SP_SLOT, sp + Machine.INT_SIZE);
 		return result;
 	}
 
 	/** Pops a character from the stack. */
 	private int popC() {
-		int sp = this.vm.getReg(Machine.SP);
+		int sp = this.vm.getReg(Machine.SP_SLOT);
 		int result = this.vm.loadC(sp);
-		this.vm.setReg(Machine.SP, sp + this.vm.getCharSize());
+		this.vm.setReg(Machine.SP_SLOT, sp + this.vm.getCharSize());
 		return result;
 	}
 
@@ -371,13 +1165,102 @@ public class Simulator {
 	 */
 	private String popString() {
 		StringBuilder result = new StringBuilder();
-		int len = pop();
-		for (int i = 0; i < len; i++) {
-			result.append((char) popC());
-		}
+		int sp = popString(this.vm.getReg(Machine.SP_SLOT), result);
+		this.vm.setReg(Machine.SP_SLOT, sp);
 		return result.toString();
 	}
 
+	/** Pops a string from a stack with a given top,
+	 * appends it to a string builder, and returns the new stack top.
+	 * @see #popString()
+	 */
+	int popString(int sp, StringBuilder result) {
+		int len = this.vm.load(sp);
+		sp += Machine.INT_SIZE;
+		if (len > 0) {
+			result.append(this.vm.loadString(sp, len));
+			sp += len * this.vm.getCharSize();
+		}
+		return sp;
+	}
+
+	/** Prints a message followed by a value on a line of the output. */
+	void output(String message, String value) {
+		this.out.print(message);
+		this.out.println(value);
+	}
+
+	/** Prints a message (if the input is from stdin) and reads a line. */
+	String readLine(String message) {
+		if (this.stdIn) {
+			this.out.print(message);
+		}
+		return this.in.nextLine();
+	}
+
+	/** Prints a message (if the input is from stdin) and reads a number.
+	 * On stdin, the user is prompted until a number is given.
+	 * @throws IllegalArgumentException if the input is not from stdin
+	 * and is not a number
+	 */
+	int readInt(String message) {
+		String in = readLine(message);
+		int val = Integer.MAX_VALUE;
+		do {
+			try {
+				val = Integer.parseInt(in);
+			} catch (NumberFormatException e) {
+				// try again
+				if (this.stdIn) {
+					this.out.printf("Input '%s' should be a number%n", in);
+					in = readLine(message);
+				} else {
+					throw new IllegalArgumentException(String.format(
+							"Input '%s' should be a number%n", in));
+				}
+			}
+		} while (val == Integer.MAX_VALUE);
+		return val;
+	}
+
+	/** Number of operations after which a limited run checks for
+	 * interrupts. */
+	private static final int INTERRUPT_CHECK_INTERVAL = 0x400;
+
+	/** Exception thrown when a run exceeds the step limit.
+	 * @see Simulator#setStepLimit(long)
+	 */
+	public static class StepLimitException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		StepLimitException(long limit) {
+			super("Step limit of " + limit + " operations exceeded");
+		}
+	}
+
+	/** Engines for the execution of decoded programs. */
+	public static enum Engine {
+		/** Interpreter loop dispatching on the opcode of every operation. */
+		SWITCH,
+		/** Closure-compiled operation nodes; see {@link NodeProgram}. */
+		NODES,
+		/** Translation into a dynamically loaded class;
+		 * see {@link ClassCompiler}.
+		 * The class is generated as Java source and compiled by the
+		 * platform Java compiler, against the system class path.
+		 * Programs are run by {@link #SWITCH} instead if there is no
+		 * Java compiler (as on a JRE), if they are larger than
+		 * {@link ClassCompiler#MAX_SIZE}, or if the class fails to
+		 * compile, for instance because this package was loaded by
+		 * another class loader; the reason is reported on
+		 * {@link System#err}, and {@link Simulator#getRunEngine()}
+		 * tells which engine was used. */
+		CLASS,
+		/** Interpreter loop that compiles hot loops into traces;
+		 * see {@link Tracer}. */
+		TRACE;
+	}
+
 	/** Operation context.
 	 * This is a helper class for easy access to the underlying VM,
 	 * given a particular operation.
@@ -420,24 +1303,22 @@ public class Simulator {
 			Num num = this.op.num(numIx);
 			switch (num.getKind()) {
 			case LAB:
-				Label label = num.getLabel();
-				int line = getProgram().getLine(label);
-				if (line < 0) {
-					System.err.println("Label '" + label
+				if (!isResolved(numIx)) {
+					System.err.println("Label '" + num.getLabel()
 							+ "' does not occur in program");
+					return -1;
 				}
-				return line;
+				return value(numIx);
 			case LIT:
 				return num.getValue();
 			case SYMB:
 				Integer result = getVM().getNum(num);
+				if (result == null && isResolved(numIx)) {
+					result = value(numIx);
+				}
 				if (result == null) {
-					result = getProgram().getSymb(num);
-					if (result == null) {
-						System.err.println("Symbolic constant '"
-								+ num.getName()
-								+ "' not initialised in VM or program");
-					}
+					System.err.println("Symbolic constant '" + num.getName()
+							+ "' not initialised in VM or program");
 				}
 				return result;
 			default:
@@ -448,7 +1329,17 @@ public class Simulator {
 
 		/** Returns the instruction number associated with a given label. */
 		public int label(int ix) {
-			return getProgram().getLine(this.op.label(ix));
+			return isResolved(ix) ? value(ix) : -1;
+		}
+
+		/** Indicates if a given operand has been resolved by linking. */
+		private boolean isResolved(int ix) {
+			return getLinkedProgram().isResolved(this.op.getLine(), ix);
+		}
+
+		/** Returns the value of a given operand, as resolved by linking. */
+		private int value(int ix) {
+			return getLinkedProgram().getValue(this.op.getLine(), ix);
 		}
 	}
 }
@@ -0,0 +1,283 @@
+package iloc;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import iloc.eval.Machine;
+import iloc.model.LinkedProgram;
+import iloc.model.Op;
+import iloc.model.OpCode;
+import iloc.model.Operand;
+import iloc.model.Reg;
+
+/**
+ * Fixed-size ring buffer recording the most recently executed operations
+ * of a {@link Simulator}, as a low-overhead alternative to
+ * {@link Simulator#DEBUG}.
+ * For every recorded operation, the buffer holds the line, the opcode and
+ * the register or memory cell that the operation changed, together with
+ * its new value. All storage is allocated when the buffer is created.
+ * Recording can be restricted by filters on line ranges, opcodes and
+ * registers; an operation is only recorded if it passes all filters.
+ * @see Simulator#setTraceBuffer(TraceBuffer)
+ */
+public class TraceBuffer {
+	/** The default number of entries dumped when a run fails. */
+	public static final int DEFAULT_DUMP_SIZE = 20;
+	/** Change kind: the operation changed nothing. */
+	private static final byte NONE = 0;
+	/** Change kind: the operation assigned a register. */
+	private static final byte REG = 1;
+	/** Change kind: the operation stored a word in memory. */
+	private static final byte MEM = 2;
+	/** Change kind: the operation stored a character in memory. */
+	private static final byte CHAR = 3;
+	/** The line of every entry. */
+	private final int[] lines;
+	/** The opcode ordinal of every entry. */
+	private final int[] opCodes;
+	/** The change kind of every entry. */
+	private final byte[] kinds;
+	/** The register slot or memory address changed by every entry. */
+	private final int[] targets;
+	/** The new value of the changed register or memory cell. */
+	private final int[] values;
+	/** Total number of entries recorded so far. */
+	private long count;
+	/** Line ranges to be recorded, as pairs of first and last lines;
+	 * if empty, all lines are recorded. */
+	private final List<int[]> ranges = new ArrayList<>();
+	/** Opcodes to be recorded; if empty, all opcodes are recorded. */
+	private final Set<OpCode> opCodeFilter = EnumSet.noneOf(OpCode.class);
+	/** Names of registers to be recorded; if empty, all operations
+	 * are recorded regardless of their registers. */
+	private final Set<String> regFilter = new HashSet<>();
+	/** Number of entries dumped when a run fails. */
+	private int dumpSize = DEFAULT_DUMP_SIZE;
+	/** Stream to which entries are dumped when a run fails. */
+	private PrintStream err = System.err;
+	/** The decoded program of the current run. */
+	private DecodedProgram decoded;
+	/** Flags indicating which lines pass the filters in the current run. */
+	private boolean[] enabled;
+
+	/** Constructs a trace buffer with a given capacity. */
+	public TraceBuffer(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity should be positive");
+		}
+		this.lines = new int[capacity];
+		this.opCodes = new int[capacity];
+		this.kinds = new byte[capacity];
+		this.targets = new int[capacity];
+		this.values = new int[capacity];
+	}
+
+	/** Returns the maximum number of entries held by this buffer. */
+	public int getCapacity() {
+		return this.lines.length;
+	}
+
+	/** Returns the total number of entries recorded so far,
+	 * including the ones that have since been overwritten. */
+	public long getCount() {
+		return this.count;
+	}
+
+	/** Returns the number of entries currently held by this buffer. */
+	public int size() {
+		return (int) Math.min(this.count, this.lines.length);
+	}
+
+	/** Removes all entries from this buffer. */
+	public void clear() {
+		this.count = 0;
+	}
+
+	/** Restricts recording to operations with a line number in a given
+	 * range. Several ranges may be added. */
+	public void addRange(int first, int last) {
+		this.ranges.add(new int[] { first, last });
+	}
+
+	/** Restricts recording to operations with given opcodes.
+	 * An empty set removes the restriction. */
+	public void setOpCodes(Set<OpCode> opCodes) {
+		this.opCodeFilter.clear();
+		this.opCodeFilter.addAll(opCodes);
+	}
+
+	/** Restricts recording to operations that have one of a set of
+	 * registers as operand. An empty set removes the restriction. */
+	public void setRegisters(Set<String> names) {
+		this.regFilter.clear();
+		this.regFilter.addAll(names);
+	}
+
+	/** Changes the number of entries that are dumped when a run fails.
+	 * A value of {@code 0} disables dumping on failure. */
+	public void setDumpSize(int dumpSize) {
+		this.dumpSize = dumpSize;
+	}
+
+	/** Changes the stream to which entries are dumped when a run fails. */
+	public void setErr(PrintStream err) {
+		this.err = err;
+	}
+
+	/** Prepares the buffer for a run of a given decoded program,
+	 * by evaluating the filters for all lines. */
+	void start(DecodedProgram decoded) {
+		LinkedProgram program = decoded.getProgram();
+		this.decoded = decoded;
+		this.enabled = new boolean[decoded.size()];
+		for (int line = 0; line < this.enabled.length; line++) {
+			this.enabled[line] = accepts(program.getOpAt(line), line);
+		}
+	}
+
+	/** Indicates if the operation at a given line passes the filters. */
+	private boolean accepts(Op op, int line) {
+		boolean result = this.ranges.isEmpty();
+		for (int[] range : this.ranges) {
+			result |= range[0] <= line && line <= range[1];
+		}
+		if (!this.opCodeFilter.isEmpty()) {
+			result &= this.opCodeFilter.contains(op.getOpCode());
+		}
+		if (result && !this.regFilter.isEmpty()) {
+			boolean touched = false;
+			for (Operand arg : op.getArgs()) {
+				touched |= arg instanceof Reg
+						&& this.regFilter.contains(((Reg) arg).getName());
+			}
+			result = touched;
+		}
+		return result;
+	}
+
+	/**
+	 * Records the operation at a given line, after it has been executed.
+	 * @param code the bound code array of the program
+	 * @param regs the register array
+	 * @param line the line of the executed operation
+	 */
+	void record(int[] code, int[] regs, int line) {
+		if (!this.enabled[line]) {
+			return;
+		}
+		int ix = line * DecodedProgram.STRIDE;
+		OpCode opCode = this.decoded.getProgram().getOpAt(line).getOpCode();
+		int a = code[ix + 1];
+		int b = code[ix + 2];
+		int c = code[ix + 3];
+		byte kind = NONE;
+		int target = 0;
+		int value = 0;
+		switch (opCode) {
+		case store:
+		case cstore:
+			target = regs[b];
+			value = regs[a];
+			kind = opCode == OpCode.store ? MEM : CHAR;
+			break;
+		case storeAI:
+		case cstoreAI:
+			target = regs[b] + c;
+			value = regs[a];
+			kind = opCode == OpCode.storeAI ? MEM : CHAR;
+			break;
+		case storeAO:
+		case cstoreAO:
+			target = regs[b] + regs[c];
+			value = regs[a];
+			kind = opCode == OpCode.storeAO ? MEM : CHAR;
+			break;
+		case push:
+		case cpush:
+			target = regs[Machine.SP_SLOT];
+			value = regs[a];
+			kind = opCode == OpCode.push ? MEM : CHAR;
+			break;
+		default:
+			target = this.decoded.getDefSlot(line);
+			if (target >= 0) {
+				value = regs[target];
+				kind = REG;
+			}
+		}
+		int pos = (int) (this.count % this.lines.length);
+		this.lines[pos] = line;
+		this.opCodes[pos] = opCode.ordinal();
+		this.kinds[pos] = kind;
+		this.targets[pos] = target;
+		this.values[pos] = value;
+		this.count++;
+	}
+
+	/** Returns the most recent entries of this buffer,
+	 * in order of execution, as human-readable strings.
+	 * @param n the maximum number of entries returned
+	 */
+	public List<String> getLast(int n) {
+		int size = Math.min(n, size());
+		List<String> result = new ArrayList<>(size);
+		for (long i = this.count - size; i < this.count; i++) {
+			result.add(toString((int) (i % this.lines.length)));
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/** Writes the most recent entries of this buffer to a given stream.
+	 * @param n the maximum number of entries written
+	 */
+	public void dump(int n, PrintStream out) {
+		for (String entry : getLast(n)) {
+			out.println(entry);
+		}
+		out.flush();
+	}
+
+	/** Dumps the configured number of entries after a failed run. */
+	void dumpOnError(int line, RuntimeException exc) {
+		if (this.dumpSize > 0) {
+			this.err.printf("Error at line %d: %s%n", line, exc);
+			this.err.printf("Last %d of %d recorded operations:%n",
+					Math.min(this.dumpSize, size()), this.count);
+			dump(this.dumpSize, this.err);
+		}
+	}
+
+	/** Returns a string representation of the entry at a given position. */
+	private String toString(int pos) {
+		StringBuilder result = new StringBuilder();
+		result.append(String.format("%5d %-8s", this.lines[pos],
+				OPCODES[this.opCodes[pos]]));
+		switch (this.kinds[pos]) {
+		case REG:
+			result.append(String.format(" %s := %d",
+					this.decoded.getRegName(this.targets[pos]),
+					this.values[pos]));
+			break;
+		case MEM:
+			result.append(String.format(" mem[%d] := %d", this.targets[pos],
+					this.values[pos]));
+			break;
+		case CHAR:
+			result.append(String.format(" mem[%d] := '%c'", this.targets[pos],
+					(char) this.values[pos]));
+			break;
+		default:
+			// nothing changed
+		}
+		return result.toString();
+	}
+
+	/** All opcodes, indexed by ordinal. */
+	private static final OpCode[] OPCODES = OpCode.values();
+}
@@ -0,0 +1,262 @@
+package iloc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import iloc.NodeProgram.Node;
+import iloc.eval.Machine;
+import iloc.model.OpCode;
+
+/**
+ * Tiered execution of a decoded program.
+ * The program is interpreted by {@link Simulator#runSwitch}, which returns
+ * to this class at every backward {@link OpCode#jumpI}; the target of such
+ * a jump is the header of a loop, such as the ones generated for
+ * {@code while} statements.
+ * Once a loop header has been entered often enough, the operations
+ * executed in the next iteration are recorded and compiled into a trace:
+ * a straight-line array of operation nodes (see {@link NodeProgram})
+ * without jumps, in which every conditional branch is replaced by a guard
+ * that exits to the interpreter if the branch goes the other way.
+ * Subsequent entries of the loop header run the trace instead, by
+ * stepping through the array rather than following links between nodes.
+ * Unlike the nodes of a {@link NodeProgram}, traces depend on the
+ * branches taken during a single run, and are not cached.
+ */
+class Tracer {
+	/** Maximum number of operations in a trace. */
+	static final int MAX_TRACE_LENGTH = 1000;
+	/** The simulator in which the program is run. */
+	private final Simulator sim;
+	/** The decoded program. */
+	private final DecodedProgram decoded;
+	/** The bound code array of the program. */
+	private final int[] code;
+	/** The VM register slots, indexed by register array slot. */
+	private final int[] slots;
+	/** The register array. */
+	private final int[] regs;
+	/** The fusion counters of the run. */
+	private final int[] fused;
+	/** Number of entries of every loop header, indexed by line number. */
+	private final int[] counts;
+	/** The trace for every loop header, indexed by line number. */
+	private final Trace[] traces;
+	/** The run state passed to the nodes of the traces. */
+	private final NodeProgram.Context context;
+	/** Node factory for the traces; created lazily. */
+	private NodeProgram nodes;
+
+	Tracer(Simulator sim, DecodedProgram decoded, int[] code, int[] slots,
+			int[] regs, int[] fused) {
+		this.sim = sim;
+		this.decoded = decoded;
+		this.code = code;
+		this.slots = slots;
+		this.regs = regs;
+		this.fused = fused;
+		this.context = new NodeProgram.Context(sim, slots);
+		this.counts = new int[decoded.size()];
+		this.traces = new Trace[decoded.size()];
+	}
+
+	/** Runs the program from the current program counter of the VM,
+	 * until it falls off the end. */
+	void run() {
+		Machine vm = this.sim.getVM();
+		int size = this.decoded.size();
+		int threshold = this.sim.getTraceThreshold();
+		while (vm.getPC() < size) {
+			this.sim.runSwitch(this.decoded, this.code, this.slots,
+					this.regs, this.fused, true);
+			int header = vm.getPC();
+			if (header >= size) {
+				break;
+			}
+			Trace trace = this.traces[header];
+			if (trace != null) {
+				runTrace(trace);
+			} else if (++this.counts[header] == threshold) {
+				record(header);
+			}
+		}
+	}
+
+	/** Runs a trace until one of its guards fails, and sets the
+	 * program counter of the VM to the line at which the interpreter
+	 * should continue. */
+	private void runTrace(Trace trace) {
+		Node[] body = trace.body;
+		int[] regs = this.regs;
+		NodeProgram.Context context = this.context;
+		Simulator sim = this.sim;
+		Machine vm = sim.getVM();
+		long steps = sim.steps;
+		long check = sim.stepCheck;
+		int i = 0;
+		try {
+			while (true) {
+				if (steps >= check) {
+					check = sim.checkSteps(steps);
+				}
+				steps++;
+				Node exit = body[i].exec(regs, context);
+				if (exit != null) {
+					vm.setPC(exit.line);
+					return;
+				}
+				if (++i == body.length) {
+					if (!trace.loops) {
+						vm.setPC(trace.end);
+						return;
+					}
+					i = 0;
+				}
+			}
+		} catch (RuntimeException exc) {
+			// body[i] is the failing operation
+			vm.setPC(body[i].line);
+			throw exc;
+		} finally {
+			sim.steps = steps;
+		}
+	}
+
+	/**
+	 * Executes one iteration of the loop at a given header through
+	 * {@link #step(int, List)}, recording the nodes executed, and
+	 * compiles the result into a trace.
+	 * Recording stops when the loop header or the header of another trace
+	 * is reached; it is abandoned (and not retried) if the iteration
+	 * leaves the program, becomes too long, or reaches an operation that
+	 * cannot be traced, which is then left to the interpreter.
+	 * Afterwards, the program counter of the VM is set to the line
+	 * at which the interpreter should continue.
+	 */
+	private void record(int header) {
+		if (this.nodes == null) {
+			this.nodes = new NodeProgram(this.decoded, this.code);
+		}
+		List<Node> body = new ArrayList<>();
+		int size = this.decoded.size();
+		int pc = header;
+		boolean traceable = true;
+		try {
+			do {
+				traceable = isTraceable(pc) && body.size() < MAX_TRACE_LENGTH;
+				if (!traceable) {
+					break;
+				}
+				this.sim.countStep();
+				pc = step(pc, body);
+			} while (pc < size && pc != header && this.traces[pc] == null);
+		} finally {
+			// if step threw an exception, pc is the failing operation
+			this.sim.getVM().setPC(pc);
+		}
+		if (traceable && pc < size && !body.isEmpty()) {
+			this.traces[header] = new Trace(body.toArray(new Node[0]), pc,
+					pc == header);
+		}
+	}
+
+	/** Indicates if the operation at a given line can be part of a trace. */
+	private boolean isTraceable(int line) {
+		int opCode = this.code[line * DecodedProgram.STRIDE];
+		return opCode != DecodedProgram.SLOW
+				&& opCode != OpCode.jump.ordinal();
+	}
+
+	/**
+	 * Executes the operation at a given line directly on the register
+	 * array, and appends the corresponding node, if any, to a trace.
+	 * Jumps are left out, and conditional branches become guards.
+	 * @param line the line of a traceable operation
+	 * @param body the nodes of the trace recorded so far
+	 * @return the next line
+	 */
+	private int step(int line, List<Node> body) {
+		int[] code = this.code;
+		int ix = line * DecodedProgram.STRIDE;
+		switch (OPCODES[code[ix]]) {
+		case jumpI:
+			// straight-line code needs no jumps
+			return code[ix + 1];
+		case nop:
+		case comment:
+			return line + 1;
+		case cbr:
+			int ifTrue = code[ix + 2];
+			int ifFalse = code[ix + 3];
+			boolean taken = this.regs[code[ix + 1]] != 0;
+			if (ifTrue != ifFalse) {
+				body.add(new Guard(line, code[ix + 1], taken,
+						new Exit(taken ? ifFalse : ifTrue)));
+			}
+			return taken ? ifTrue : ifFalse;
+		default:
+			// the node is not linked, so it returns null
+			Node node = this.nodes.createNode(line);
+			node.exec(this.regs, this.context);
+			body.add(node);
+			return line + 1;
+		}
+	}
+
+	/** All opcodes, indexed by ordinal. */
+	private static final OpCode[] OPCODES = OpCode.values();
+
+	/** Straight-line code recorded from one iteration of a loop. */
+	static class Trace {
+		/** The operations and guards of the trace, in execution order.
+		 * The nodes are not linked: operations return {@code null},
+		 * and guards return an {@link Exit} if they fail. */
+		final Node[] body;
+		/** The line reached after the last node of the body. */
+		final int end;
+		/** Flag indicating that {@link #end} is the loop header,
+		 * so the body is repeated. */
+		final boolean loops;
+
+		Trace(Node[] body, int end, boolean loops) {
+			this.body = body;
+			this.end = end;
+			this.loops = loops;
+		}
+	}
+
+	/** Conditional branch that is expected to go a certain way. */
+	static class Guard extends Node {
+		/** The register array slot of the condition. */
+		private final int cond;
+		/** The expected value of the condition. */
+		private final boolean expected;
+		/** The node to exit to if the condition has the other value. */
+		private final Node exit;
+
+		Guard(int line, int cond, boolean expected, Node exit) {
+			super(line);
+			this.cond = cond;
+			this.expected = expected;
+			this.exit = exit;
+		}
+
+		@Override
+		Node exec(int[] regs, NodeProgram.Context context) {
+			return (regs[this.cond] != 0) == this.expected ? null : this.exit;
+		}
+	}
+
+	/** Exit from a trace to the interpreter at a given line;
+	 * returned by a failing {@link Guard}. */
+	static class Exit extends Node {
+		Exit(int line) {
+			super(line);
+		}
+
+		@Override
+		Node exec(int[] regs, NodeProgram.Context context) {
+			return null;
+		}
+	}
+}
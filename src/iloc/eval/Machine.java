@@ -1,6 +1,20 @@
 package iloc.eval;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import iloc.model.Num;
@@ -10,7 +24,7 @@ import iloc.model.Reg;
  * Virtual machine for ILOC program evaluation.
  * @author Arend Rensink
  */
-public class Machine {
+public class Machine implements AutoCloseable {
 	/** Size of an integer values (in bytes). */
 	public static final int INT_SIZE = 4;
 	/** Default size of a char value (in bytes).
@@ -26,12 +40,16 @@ public class Machine {
 	public static final String ARP = "r_arp";
 	/** The allocation pointer register (see {@link #ARP}). */
 	public static final Reg ARP_REG = new Reg(ARP);
+	/** The fixed register slot of the allocation pointer (see {@link #ARP}). */
+	public static final int ARP_SLOT = 0;
 	/** Name of the stack pointer register.
 	 * This is initialised to start at the top of memory. 
 	 */
 	public static final String SP = "sp";
 	/** The stack pointer register (see {@link #SP}). */
 	public static final Reg SP_REG = new Reg(SP);
+	/** The fixed register slot of the stack pointer (see {@link #SP}). */
+	public static final int SP_SLOT = 1;
 
 	/** The actual size of a char value in this machine.
 	 * Typically, either 1 (as per {@link #DEFAULT_CHAR_SIZE})
@@ -40,8 +58,14 @@ public class Machine {
 	 * {@link #storeC}.
 	 */
 	private int charSize;
-	/** Mapping from register names to register numbers. */
-	private final Map<String, Integer> registers;
+	/** Mapping from register names to register slots. */
+	private final Map<String, Integer> regSlots;
+	/** Register names, indexed by register slot. */
+	private final List<String> regNames;
+	/** Register values, indexed by register slot. */
+	private int[] regs;
+	/** Flags indicating which register slots have been assigned a value. */
+	private boolean[] regSet;
 	/** Mapping from symbolic constants to actual values. */
 	private final Map<Num, Integer> symbMap;
 	/** Memory of the machine. */
@@ -54,11 +78,32 @@ public class Machine {
 	/** Constructs a new, initially empty machine 
 	 * with default-sized memory. */
 	public Machine() {
+		this(false);
+	}
+
+	/** Constructs a new, initially empty machine
+	 * with default-sized memory.
+	 * @param offHeap if {@code true}, the memory is allocated outside
+	 * the Java heap; in that case, the machine should be closed after use
+	 * @see #close()
+	 */
+	public Machine(boolean offHeap) {
+		this(new Memory(offHeap));
+		clear();
+	}
+
+	/** Constructs a machine with a given memory and no registers
+	 * but {@link #ARP} and {@link #SP}, which are not initialised. */
+	private Machine(Memory memory) {
 		this.symbMap = new HashMap<>();
-		this.memory = new Memory();
-		this.registers = new HashMap<>();
+		this.memory = memory;
+		this.regSlots = new HashMap<>();
+		this.regNames = new ArrayList<>();
+		this.regs = new int[INIT_REG_COUNT];
+		this.regSet = new boolean[INIT_REG_COUNT];
+		getRegSlot(ARP);
+		getRegSlot(SP);
 		this.charSize = DEFAULT_CHAR_SIZE;
-		clear();
 	}
 
 	/** Reinitialises the machine memory to a certain size (in bytes).
@@ -67,7 +112,29 @@ public class Machine {
 	 */
 	public void setSize(int size) {
 		this.memory.setSize(size);
-		setReg(SP_REG, size);
+		setReg(SP_SLOT, size);
+	}
+
+	/** Returns the size of the machine memory (in bytes). */
+	public int getSize() {
+		return this.memory.size();
+	}
+
+	/** Indicates if the memory of this machine is allocated outside
+	 * the Java heap. */
+	public boolean isOffHeap() {
+		return this.memory.isDirect();
+	}
+
+	/** Releases the memory of this machine.
+	 * Off-heap memory is freed immediately, unless the machine
+	 * has been forked or a snapshot has been taken.
+	 * The memory is unusable until its size is set again.
+	 * @see #setSize(int)
+	 */
+	@Override
+	public void close() {
+		this.memory.close();
 	}
 
 	/** Sets the size used to store a char value. 
@@ -89,16 +156,16 @@ public class Machine {
 		return this.charSize;
 	}
 
-	/** Reserves a memory segment of given length.
+	/** Reserves a memory segment of given length, and sets it to 0.
+	 * Only the parts of the segment that were written before are actually
+	 * cleared.
 	 * @param length (in bytes) of the segment to be reserved
 	 * @return the base address of the allocated block
 	 * @see #alloc(String, int)
 	 */
 	public int alloc(int length) {
 		int result = this.reserved;
-		for (int i = 0; i < length; i++) {
-			this.memory.set(result + i, (byte) 0);
-		}
+		this.memory.clear(result, length);
 		this.reserved += length;
 		return result;
 	}
@@ -151,25 +218,78 @@ public class Machine {
 		setReg(reg, 0);
 	}
 
+	/** Returns the slot number of a register with a given name.
+	 * If the name is new, a fresh slot is added to the register file;
+	 * slot numbers remain stable for the lifetime of the machine.
+	 * The slots of {@link #ARP} and {@link #SP} are fixed at
+	 * {@link #ARP_SLOT} and {@link #SP_SLOT}.
+	 */
+	public int getRegSlot(String name) {
+		Integer result = this.regSlots.get(name);
+		if (result == null) {
+			result = this.regNames.size();
+			this.regSlots.put(name, result);
+			this.regNames.add(name);
+			if (result == this.regs.length) {
+				this.regs = Arrays.copyOf(this.regs, 2 * result);
+				this.regSet = Arrays.copyOf(this.regSet, 2 * result);
+			}
+		}
+		return result;
+	}
+
+	/** Returns the number of register slots in use. */
+	public int getRegCount() {
+		return this.regNames.size();
+	}
+
+	/** Returns the name of the register in a given slot. */
+	public String getRegName(int slot) {
+		return this.regNames.get(slot);
+	}
+
+	/** Sets the value of the register in a given slot. */
+	public void setReg(int slot, int val) {
+		this.regs[slot] = val;
+		this.regSet[slot] = true;
+	}
+
+	/** Returns the current value of the register in a given slot.
+	 * This is 0 if the register has not been assigned. */
+	public int getReg(int slot) {
+		return this.regs[slot];
+	}
+
+	/** Indicates if the register in a given slot has been assigned a value. */
+	public boolean hasReg(int slot) {
+		return this.regSet[slot];
+	}
+
 	/** Sets the value of a register with a given name to a given number. */
 	public void setReg(String reg, int val) {
-		this.registers.put(reg, val);
+		setReg(getRegSlot(reg), val);
 	}
 
 	/** Sets the value of a given register to a given number. */
 	public void setReg(Reg reg, int val) {
-		this.registers.put(reg.getName(), val);
+		setReg(reg.getName(), val);
+	}
+
+	/** Indicates if a register with a given name has been assigned a value. */
+	public boolean hasReg(String name) {
+		Integer slot = this.regSlots.get(name);
+		return slot != null && hasReg(slot);
 	}
 
 	/** Returns the current value in a register with a given name.
 	 * @throws IllegalArgumentException if no such register exists */
 	public int getReg(String name) {
-		Integer result = this.registers.get(name);
-		if (result == null) {
+		Integer slot = this.regSlots.get(name);
+		if (slot == null || !hasReg(slot)) {
 			throw new IllegalArgumentException("Unknown register '" + name
 					+ "'");
 		}
-		return result;
+		return getReg(slot);
 	}
 
 	/** Returns the current value in a given register. */
@@ -212,7 +332,7 @@ public class Machine {
 	 * at that location (most significant first).
 	 */
 	public int load(int loc) {
-		return load(loc, INT_SIZE);
+		return this.memory.getInt(loc);
 	}
 
 	/** Returns the char value at a given memory location.
@@ -224,7 +344,7 @@ public class Machine {
 	}
 
 	/** Returns the integer value starting at a given memory location,
-	 * consisting of 1 through 4 consecutive bytes.
+	 * consisting of 1 through 4 consecutive bytes, which are read one by one.
 	 * The value is computed from the successive bytes starting
 	 * at that location (most significant first).
 	 */
@@ -242,7 +362,7 @@ public class Machine {
 	 * at that location (most significant first).
 	 */
 	public void store(int val, int loc) {
-		store(val, loc, INT_SIZE);
+		this.memory.setInt(loc, val);
 	}
 
 	/** Stores a character in memory,
@@ -253,7 +373,8 @@ public class Machine {
 		store((char) val, loc, getCharSize());
 	}
 
-	/** Stores an integer value in memory, starting at a given location.
+	/** Stores an integer value in memory, starting at a given location,
+	 * one byte at a time.
 	 * The value is stored at the 1-4 successive bytes starting
 	 * at that location (most significant first).
 	 */
@@ -264,6 +385,63 @@ public class Machine {
 		}
 	}
 
+	/** Copies a block of characters in memory.
+	 * The number of bytes copied is the number of characters times
+	 * {@link #getCharSize()}.
+	 * @param from the start address of the source block
+	 * @param to the start address of the target block
+	 * @param count the number of characters
+	 */
+	public void copyC(int from, int to, int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Negative character count "
+					+ count);
+		}
+		this.memory.copy(from, to, count * getCharSize());
+	}
+
+	/** Returns the string consisting of a number of successive characters
+	 * in memory, starting at a given location.
+	 * Like {@link #loadC(int)}, only the least significant byte
+	 * of every character is used.
+	 * @param loc the start address of the characters
+	 * @param count the number of characters
+	 */
+	public String loadString(int loc, int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Negative character count "
+					+ count);
+		}
+		int charSize = getCharSize();
+		byte[] bytes = new byte[count * charSize];
+		this.memory.get(loc, bytes);
+		StringBuilder result = new StringBuilder(count);
+		for (int i = charSize - 1; i < bytes.length; i += charSize) {
+			result.append((char) (0xFF & bytes[i]));
+		}
+		return result.toString();
+	}
+
+	/** Stores a string as successive characters in memory,
+	 * starting at a given location.
+	 * Like {@link #storeC(int, int)}, every character is stored in
+	 * {@link #getCharSize()} bytes.
+	 * @param text the string to be stored
+	 * @param loc the start address of the characters
+	 */
+	public void storeString(String text, int loc) {
+		int charSize = getCharSize();
+		byte[] bytes = new byte[text.length() * charSize];
+		for (int i = 0; i < text.length(); i++) {
+			int val = text.charAt(i);
+			for (int j = (i + 1) * charSize - 1; j >= i * charSize; j--) {
+				bytes[j] = (byte) val;
+				val >>= BYTE_SIZE;
+			}
+		}
+		this.memory.set(loc, bytes);
+	}
+
 	/** Returns the current program counter value. */
 	public int getPC() {
 		return this.pc;
@@ -282,19 +460,256 @@ public class Machine {
 		this.pc = line;
 	}
 
-	/** Clears the registers, constants, memory and PC. */
+	/** Clears the registers, constants, memory, reserved memory and PC.
+	 * This takes time proportional to the memory that was used
+	 * since the last clear, rather than to the memory size. */
 	public void clear() {
-		this.registers.clear();
+		Arrays.fill(this.regs, 0);
+		Arrays.fill(this.regSet, false);
 		this.symbMap.clear();
 		this.memory.clear();
+		this.reserved = 0;
 		this.pc = 0;
-		setReg(ARP_REG, 0);
-		setReg(SP_REG, this.memory.size());
+		setReg(ARP_SLOT, 0);
+		setReg(SP_SLOT, this.memory.size());
+	}
+
+	/** Returns a snapshot of the complete state of this machine:
+	 * memory, registers, symbolic constants, PC and character size.
+	 * Memory pages are shared copy-on-write with the snapshot,
+	 * so taking a snapshot does not copy the memory.
+	 * @see #restore(Snapshot)
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/** Restores the state of this machine to a given snapshot.
+	 * The snapshot remains valid, and can be restored again later.
+	 * Registers that are unknown to the snapshot become unassigned.
+	 */
+	public void restore(Snapshot snapshot) {
+		this.memory.restore(snapshot.memory);
+		Arrays.fill(this.regs, 0);
+		Arrays.fill(this.regSet, false);
+		for (int i = 0; i < snapshot.regNames.length; i++) {
+			int slot = getRegSlot(snapshot.regNames[i]);
+			this.regs[slot] = snapshot.regs[i];
+			this.regSet[slot] = snapshot.regSet[i];
+		}
+		this.symbMap.clear();
+		this.symbMap.putAll(snapshot.symbMap);
+		this.reserved = snapshot.reserved;
+		this.pc = snapshot.pc;
+		this.charSize = snapshot.charSize;
+	}
+
+	/** Returns a child machine with the same state as this one.
+	 * The child has its own registers, symbolic constants and PC;
+	 * its memory pages are shared copy-on-write with this machine.
+	 */
+	public Machine fork() {
+		Machine result = new Machine(this.memory.fork());
+		for (String name : this.regNames) {
+			result.getRegSlot(name);
+		}
+		result.regs = this.regs.clone();
+		result.regSet = this.regSet.clone();
+		result.symbMap.putAll(this.symbMap);
+		result.reserved = this.reserved;
+		result.pc = this.pc;
+		result.charSize = this.charSize;
+		return result;
+	}
+
+	/**
+	 * Saves the state of this machine to an image file:
+	 * memory, registers, symbolic constants, PC and character size.
+	 * Only allocated memory pages are saved. The pages are aligned in
+	 * the file, so that {@link #open(Path)} can map them directly.
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(Path file) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(header);
+		out.writeInt(IMAGE_MAGIC);
+		out.writeInt(this.memory.size());
+		out.writeInt(this.reserved);
+		out.writeInt(this.pc);
+		out.writeInt(this.charSize);
+		out.writeInt(getRegCount());
+		for (int slot = 0; slot < getRegCount(); slot++) {
+			out.writeUTF(getRegName(slot));
+			out.writeBoolean(this.regSet[slot]);
+			out.writeInt(this.regs[slot]);
+		}
+		out.writeInt(this.symbMap.size());
+		for (Map.Entry<Num, Integer> e : this.symbMap.entrySet()) {
+			out.writeUTF(e.getKey().getName());
+			out.writeInt(e.getValue());
+		}
+		List<Integer> pageIxs = new ArrayList<>();
+		for (int p = 0; p < this.memory.getPageTableSize(); p++) {
+			if (this.memory.getPage(p) != null) {
+				pageIxs.add(p);
+			}
+		}
+		out.writeInt(pageIxs.size());
+		for (int p : pageIxs) {
+			out.writeInt(p);
+		}
+		out.flush();
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer length = ByteBuffer.allocate(INT_SIZE);
+			length.putInt(0, header.size());
+			writeFully(channel, length, 0);
+			writeFully(channel, ByteBuffer.wrap(header.toByteArray()),
+					INT_SIZE);
+			long position = getImageDataStart(header.size());
+			for (int p : pageIxs) {
+				writeFully(channel, this.memory.getPage(p), position);
+				position += Memory.PAGE_SIZE;
+			}
+		}
+	}
+
+	/**
+	 * Opens a machine image saved by {@link #save(Path)}.
+	 * The memory pages of the image are mapped from the file rather
+	 * than read; they are copied (page by page) only when modified.
+	 * Modifications are never written back to the file.
+	 * @throws IOException if the file cannot be read or is not
+	 * a machine image
+	 */
+	public static Machine open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			InputStream in = Channels.newInputStream(channel);
+			DataInputStream data = new DataInputStream(in);
+			int headerSize = data.readInt();
+			if (headerSize < 0 || data.readInt() != IMAGE_MAGIC) {
+				throw new IOException(file + " is not a machine image");
+			}
+			int size = data.readInt();
+			int reserved = data.readInt();
+			int pc = data.readInt();
+			int charSize = data.readInt();
+			String[] regNames = new String[data.readInt()];
+			int[] regs = new int[regNames.length];
+			boolean[] regSet = new boolean[regNames.length];
+			for (int i = 0; i < regNames.length; i++) {
+				regNames[i] = data.readUTF();
+				regSet[i] = data.readBoolean();
+				regs[i] = data.readInt();
+			}
+			Map<Num, Integer> symbMap = new HashMap<>();
+			int symbCount = data.readInt();
+			for (int i = 0; i < symbCount; i++) {
+				symbMap.put(new Num(data.readUTF()), data.readInt());
+			}
+			int[] pageIxs = new int[data.readInt()];
+			for (int i = 0; i < pageIxs.length; i++) {
+				pageIxs[i] = data.readInt();
+			}
+			ByteBuffer[] pages = new ByteBuffer[(size + Memory.PAGE_SIZE - 1)
+					/ Memory.PAGE_SIZE];
+			if (pageIxs.length > 0) {
+				ByteBuffer map = channel.map(MapMode.READ_ONLY,
+						getImageDataStart(headerSize), (long) pageIxs.length
+								* Memory.PAGE_SIZE);
+				for (int i = 0; i < pageIxs.length; i++) {
+					ByteBuffer page = map.duplicate();
+					page.position(i * Memory.PAGE_SIZE);
+					page.limit((i + 1) * Memory.PAGE_SIZE);
+					pages[pageIxs[i]] = page.slice();
+				}
+			}
+			Machine result = new Machine(Memory.wrap(size, pages));
+			for (int i = 0; i < regNames.length; i++) {
+				int slot = result.getRegSlot(regNames[i]);
+				result.regs[slot] = regs[i];
+				result.regSet[slot] = regSet[i];
+			}
+			result.symbMap.putAll(symbMap);
+			result.reserved = reserved;
+			result.pc = pc;
+			result.charSize = charSize;
+			return result;
+		}
+	}
+
+	/** Returns the file position of the first memory page in an image,
+	 * given the size of the image header. */
+	private static long getImageDataStart(int headerSize) {
+		int pageMask = Memory.PAGE_SIZE - 1;
+		return (INT_SIZE + headerSize + pageMask) & ~pageMask;
+	}
+
+	/** Writes the remainder of a buffer to a channel,
+	 * starting at a given position. */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
 	}
 
 	@Override
 	public String toString() {
+		StringBuilder registers = new StringBuilder("{");
+		for (int slot = 0; slot < getRegCount(); slot++) {
+			if (hasReg(slot)) {
+				if (registers.length() > 1) {
+					registers.append(", ");
+				}
+				registers.append(getRegName(slot));
+				registers.append('=');
+				registers.append(getReg(slot));
+			}
+		}
+		registers.append('}');
 		return String.format("Registers: %s%nConstants: %s%nMemory: %s%n",
-				this.registers, this.symbMap, this.memory);
+				registers, this.symbMap, this.memory);
+	}
+
+	/** Magic number identifying machine image files. */
+	private static final int IMAGE_MAGIC = 0x494C4F43;
+	/** Initial capacity of the register file. */
+	private static final int INIT_REG_COUNT = 16;
+
+	/** Immutable snapshot of the state of a machine.
+	 * @see Machine#snapshot()
+	 */
+	public static class Snapshot {
+		/** Snapshot of the memory. */
+		private final Memory.Snapshot memory;
+		/** The register names. */
+		private final String[] regNames;
+		/** The register values, in the order of {@link #regNames}. */
+		private final int[] regs;
+		/** The register assignment flags, in the order of {@link #regNames}. */
+		private final boolean[] regSet;
+		/** The symbolic constants. */
+		private final Map<Num, Integer> symbMap;
+		/** The counter of reserved memory cells. */
+		private final int reserved;
+		/** The program counter. */
+		private final int pc;
+		/** The character size. */
+		private final int charSize;
+
+		private Snapshot(Machine machine) {
+			int count = machine.getRegCount();
+			this.memory = machine.memory.snapshot();
+			this.regNames = machine.regNames.toArray(new String[count]);
+			this.regs = Arrays.copyOf(machine.regs, count);
+			this.regSet = Arrays.copyOf(machine.regSet, count);
+			this.symbMap = new HashMap<>(machine.symbMap);
+			this.reserved = machine.reserved;
+			this.pc = machine.pc;
+			this.charSize = machine.charSize;
+		}
 	}
 }
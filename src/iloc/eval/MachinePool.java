@@ -0,0 +1,85 @@
+package iloc.eval;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Pool of machines of a fixed memory size, for repeated simulation runs.
+ * Machines handed out by the pool are in the state of a freshly
+ * constructed machine of that size; returned machines are cleared,
+ * which only takes time proportional to the memory they used.
+ * The pool may be used concurrently from several threads.
+ */
+public class MachinePool {
+	/** The memory size of the pooled machines. */
+	private final int size;
+	/** Flag indicating that pooled machines use off-heap memory. */
+	private final boolean offHeap;
+	/** Maximum number of idle machines kept in the pool. */
+	private final int capacity;
+	/** The idle machines. */
+	private final ConcurrentLinkedDeque<Machine> idle = new ConcurrentLinkedDeque<>();
+
+	/** Constructs a pool of on-heap machines of a given memory size,
+	 * holding at most {@link #DEFAULT_CAPACITY} idle machines. */
+	public MachinePool(int size) {
+		this(size, false, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs a pool of machines.
+	 * @param size the memory size of the machines, in bytes
+	 * @param offHeap flag indicating if the machines use off-heap memory
+	 * @param capacity the maximum number of idle machines kept in the pool;
+	 * machines returned to a full pool are discarded
+	 */
+	public MachinePool(int size, boolean offHeap, int capacity) {
+		if (size < 0 || capacity < 0) {
+			throw new IllegalArgumentException(
+					"Size and capacity should be non-negative");
+		}
+		this.size = size;
+		this.offHeap = offHeap;
+		this.capacity = capacity;
+	}
+
+	/** Returns the memory size of the pooled machines. */
+	public int getSize() {
+		return this.size;
+	}
+
+	/** Returns the number of idle machines currently in the pool. */
+	public int getIdleCount() {
+		return this.idle.size();
+	}
+
+	/** Takes a reset machine from the pool,
+	 * or creates a new one if the pool is empty. */
+	public Machine acquire() {
+		Machine result = this.idle.pollFirst();
+		if (result == null) {
+			result = new Machine(this.offHeap);
+			result.setSize(this.size);
+		}
+		return result;
+	}
+
+	/** Resets a machine and returns it to the pool.
+	 * The machine should have been obtained from {@link #acquire()},
+	 * and should not be used by the caller afterwards. */
+	public void release(Machine machine) {
+		if (this.idle.size() >= this.capacity) {
+			machine.close();
+			return;
+		}
+		machine.clear();
+		machine.setCharSize(Machine.DEFAULT_CHAR_SIZE);
+		if (machine.getSize() != this.size) {
+			// the machine memory was resized
+			machine.setSize(this.size);
+		}
+		this.idle.addFirst(machine);
+	}
+
+	/** The default maximum number of idle machines. */
+	public static final int DEFAULT_CAPACITY = 64;
+}
@@ -1,46 +1,564 @@
 package iloc.eval;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-/** Simulated memory. */
+/** Simulated memory.
+ * The memory is divided into pages of {@link #PAGE_SIZE} bytes,
+ * which are only allocated when they are first written; until then,
+ * all their locations read as 0. This makes it possible to use a large
+ * memory of which only a few pages are actually used.
+ * Pages can be shared with snapshots and forked memories;
+ * a shared page is copied before it is modified (copy-on-write).
+ * Besides single bytes, the memory supports access to (big-endian)
+ * words of {@link #WORD_SIZE} bytes in a single operation.
+ * The memory keeps track of its allocated pages, so that clearing it
+ * takes time proportional to the used part rather than its size.
+ * Pages are either allocated on the Java heap or, for a direct memory,
+ * outside of it. The pages of a direct memory are slices of a few large
+ * direct buffers (slabs), which grow geometrically and are freed as soon
+ * as the memory is closed or resized, unless they may still be shared
+ * with a snapshot or forked memory, or the platform does not allow it
+ * (see {@link #canFree()}); released pages are reused.
+ * This keeps large memories out of the way of the garbage collector.
+ */
 public class Memory {
 	/** The default size of the memory, in number of bytes. */
 	public final static int DEFAULT_SIZE = 10000;
-	/** The memory array. */
-	private byte[] mem = new byte[DEFAULT_SIZE];
+	/** Number of address bits within a page. */
+	public final static int PAGE_BITS = 12;
+	/** The size of a memory page, in number of bytes. */
+	public final static int PAGE_SIZE = 1 << PAGE_BITS;
+	/** The size of a word, in number of bytes. */
+	public final static int WORD_SIZE = 4;
+	/** Mask for the address bits within a page. */
+	private final static int PAGE_MASK = PAGE_SIZE - 1;
+	/** Initial capacity of the list of allocated pages. */
+	private final static int INIT_ALLOCATED = 16;
+	/** Minimum number of pages in a slab. */
+	private final static int MIN_SLAB_PAGES = 4;
+	/** Maximum number of pages in a slab. */
+	private final static int MAX_SLAB_PAGES = 1 << 14;
+	/** Zero-filled page contents, used to reset reused pages. */
+	private final static byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+	/** The size of the memory, in number of bytes. */
+	private int size;
+	/** The page table; {@code null} entries stand for unallocated pages. */
+	private ByteBuffer[] pages;
+	/** Flags indicating which pages are shared, and should therefore
+	 * be copied before they are modified. */
+	private boolean[] shared;
+	/** Indices of the pages allocated since the page table was last
+	 * reinitialised. The list may contain duplicates and indices of
+	 * pages that have been released since. */
+	private int[] allocated;
+	/** Number of valid entries in {@link #allocated}. */
+	private int allocatedCount;
+	/** Flag indicating that pages are allocated outside the Java heap. */
+	private final boolean direct;
+	/** The slabs from which the pages of a direct memory are taken. */
+	private final List<ByteBuffer> slabs = new ArrayList<>();
+	/** Total number of pages in {@link #slabs}. */
+	private int slabPages;
+	/** Number of pages already taken from the last slab. */
+	private int slabUsed;
+	/** Released pages of a direct memory, available for reuse.
+	 * These are never shared. */
+	private final Deque<ByteBuffer> freePages = new ArrayDeque<>();
+	/** Flag indicating that pages of the slabs may be shared with
+	 * snapshots or forked memories, so that the slabs cannot be freed. */
+	private boolean slabsShared;
 
-	/** Reinitialises the memory to a certain size. */
+	/** Constructs a memory of default size, with pages on the Java heap. */
+	public Memory() {
+		this(false);
+	}
+
+	/** Constructs a memory of default size.
+	 * @param direct if {@code true}, pages are allocated as direct
+	 * buffers, outside the Java heap
+	 */
+	public Memory(boolean direct) {
+		this.direct = direct;
+		setSize(DEFAULT_SIZE);
+	}
+
+	/** Indicates if the pages of this memory are allocated
+	 * outside the Java heap. */
+	public boolean isDirect() {
+		return this.direct;
+	}
+
+	/** Reinitialises the memory to a certain size.
+	 * For a direct memory, this frees the slabs if possible.
+	 * @param size the size of the memory, in number of bytes;
+	 * up to and including {@link Integer#MAX_VALUE}
+	 * @throws IllegalArgumentException if the size is negative
+	 */
 	public void setSize(int size) {
-		this.mem = new byte[size];
+		if (size < 0) {
+			throw new IllegalArgumentException(String.format(
+					"Memory size %d should not be negative", size));
+		}
+		releaseSlabs();
+		// computed as a long, as size + PAGE_MASK may overflow
+		int count = (int) (((long) size + PAGE_MASK) >> PAGE_BITS);
+		this.size = size;
+		this.pages = new ByteBuffer[count];
+		this.shared = new boolean[count];
+		this.allocated = new int[Math.min(count, INIT_ALLOCATED)];
+		this.allocatedCount = 0;
 	}
 
 	/** Sets a location in memory to a given value. */
 	public void set(int loc, byte value) {
-		this.mem[loc] = value;
+		checkBounds(loc);
+		getWritablePage(loc >> PAGE_BITS).put(loc & PAGE_MASK, value);
 	}
 
-	/** 
+	/** Sets the word starting at a given location in memory
+	 * to a given value (most significant byte first). */
+	public void setInt(int loc, int value) {
+		checkBounds(loc);
+		checkBounds(loc + WORD_SIZE - 1);
+		int offset = loc & PAGE_MASK;
+		if (offset <= PAGE_SIZE - WORD_SIZE) {
+			getWritablePage(loc >> PAGE_BITS).putInt(offset, value);
+		} else {
+			// the word crosses a page boundary
+			for (int i = WORD_SIZE - 1; i >= 0; i--) {
+				set(loc + i, (byte) value);
+				value >>= Byte.SIZE;
+			}
+		}
+	}
+
+	/**
 	 * Returns the value at a given memory location.
-	 * The value is 0 if the location was never accessed before. 
+	 * The value is 0 if the location was never accessed before.
 	 */
 	public byte get(int loc) {
-		return this.mem[loc];
+		checkBounds(loc);
+		ByteBuffer page = this.pages[loc >> PAGE_BITS];
+		return page == null ? 0 : page.get(loc & PAGE_MASK);
+	}
+
+	/**
+	 * Returns the word starting at a given memory location
+	 * (most significant byte first).
+	 */
+	public int getInt(int loc) {
+		checkBounds(loc);
+		checkBounds(loc + WORD_SIZE - 1);
+		int offset = loc & PAGE_MASK;
+		if (offset <= PAGE_SIZE - WORD_SIZE) {
+			ByteBuffer page = this.pages[loc >> PAGE_BITS];
+			return page == null ? 0 : page.getInt(offset);
+		} else {
+			// the word crosses a page boundary
+			int result = 0;
+			for (int i = 0; i < WORD_SIZE; i++) {
+				result <<= Byte.SIZE;
+				result |= 0xFF & get(loc + i);
+			}
+			return result;
+		}
+	}
+
+	/** Reads a block of successive memory locations into an array.
+	 * @param loc the first location of the block
+	 * @param dst the array receiving the values; its length determines
+	 * the size of the block
+	 */
+	public void get(int loc, byte[] dst) {
+		if (dst.length == 0) {
+			return;
+		}
+		checkBounds(loc);
+		checkBounds(loc + dst.length - 1);
+		int done = 0;
+		while (done < dst.length) {
+			int from = (loc + done) & PAGE_MASK;
+			int count = Math.min(PAGE_SIZE - from, dst.length - done);
+			ByteBuffer page = this.pages[(loc + done) >> PAGE_BITS];
+			if (page == null) {
+				Arrays.fill(dst, done, done + count, (byte) 0);
+			} else if (page.hasArray()) {
+				System.arraycopy(page.array(), page.arrayOffset() + from, dst,
+						done, count);
+			} else {
+				ByteBuffer view = page.duplicate();
+				view.position(from);
+				view.get(dst, done, count);
+			}
+			done += count;
+		}
+	}
+
+	/** Writes an array into a block of successive memory locations.
+	 * @param loc the first location of the block
+	 * @param src the values to be written; its length determines
+	 * the size of the block
+	 */
+	public void set(int loc, byte[] src) {
+		if (src.length == 0) {
+			return;
+		}
+		checkBounds(loc);
+		checkBounds(loc + src.length - 1);
+		int done = 0;
+		while (done < src.length) {
+			int from = (loc + done) & PAGE_MASK;
+			int count = Math.min(PAGE_SIZE - from, src.length - done);
+			ByteBuffer page = getWritablePage((loc + done) >> PAGE_BITS);
+			if (page.hasArray()) {
+				System.arraycopy(src, done, page.array(), page.arrayOffset()
+						+ from, count);
+			} else {
+				ByteBuffer view = page.duplicate();
+				view.position(from);
+				view.put(src, done, count);
+			}
+			done += count;
+		}
+	}
+
+	/** Copies a block of memory locations to another location.
+	 * The blocks may overlap.
+	 * @param from the first location of the source block
+	 * @param to the first location of the target block
+	 * @param length the number of locations to be copied
+	 */
+	public void copy(int from, int to, int length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("Negative length " + length);
+		}
+		if (length == 0) {
+			return;
+		}
+		checkBounds(from);
+		checkBounds(from + length - 1);
+		checkBounds(to);
+		checkBounds(to + length - 1);
+		if (to <= from || to >= from + length) {
+			// copying front to back does not overwrite unread source bytes
+			int done = 0;
+			while (done < length) {
+				int count = Math.min(length - done, Math.min(PAGE_SIZE
+						- ((from + done) & PAGE_MASK), PAGE_SIZE
+						- ((to + done) & PAGE_MASK)));
+				copyInPages(from + done, to + done, count);
+				done += count;
+			}
+		} else {
+			// the target overlaps the end of the source: copy back to front
+			int left = length;
+			while (left > 0) {
+				int count = Math.min(left, Math.min(
+						((from + left - 1) & PAGE_MASK) + 1,
+						((to + left - 1) & PAGE_MASK) + 1));
+				left -= count;
+				copyInPages(from + left, to + left, count);
+			}
+		}
+	}
+
+	/** Copies a block of memory locations that lies within a single
+	 * source page to a block within a single target page.
+	 * The blocks may overlap. */
+	private void copyInPages(int from, int to, int count) {
+		if (this.pages[from >> PAGE_BITS] == null
+				&& this.pages[to >> PAGE_BITS] == null) {
+			// both blocks read as 0
+			return;
+		}
+		// get the target first, as this may replace a shared source page
+		ByteBuffer target = getWritablePage(to >> PAGE_BITS);
+		ByteBuffer source = this.pages[from >> PAGE_BITS];
+		int offset = to & PAGE_MASK;
+		if (source == null) {
+			ByteBuffer view = target.duplicate();
+			view.position(offset);
+			view.put(ZERO_PAGE, 0, count);
+		} else if (source.hasArray() && target.hasArray()) {
+			System.arraycopy(source.array(), source.arrayOffset()
+					+ (from & PAGE_MASK), target.array(), target.arrayOffset()
+					+ offset, count);
+		} else {
+			// bulk put behaves as if through an intermediate buffer
+			// if the source and target share memory
+			ByteBuffer view = source.duplicate();
+			view.position(from & PAGE_MASK);
+			view.limit((from & PAGE_MASK) + count);
+			ByteBuffer dest = target.duplicate();
+			dest.position(offset);
+			dest.put(view);
+		}
+	}
+
+	/** Throws an exception if a given location is outside the memory. */
+	private void checkBounds(int loc) throws ArrayIndexOutOfBoundsException {
+		if (loc < 0 || loc >= this.size) {
+			throw new ArrayIndexOutOfBoundsException(loc);
+		}
+	}
+
+	/** Returns the page with a given index, after allocating it
+	 * if it is unallocated, or copying it if it is shared. */
+	private ByteBuffer getWritablePage(int p) {
+		ByteBuffer result = this.pages[p];
+		if (result == null) {
+			this.pages[p] = result = newPage();
+			this.shared[p] = false;
+			addAllocated(p);
+		} else if (this.shared[p]) {
+			ByteBuffer copy = newPage();
+			copy.put(result.duplicate());
+			copy.clear();
+			this.pages[p] = result = copy;
+			this.shared[p] = false;
+		}
+		return result;
+	}
+
+	/** Adds a page index to the list of allocated pages. */
+	private void addAllocated(int p) {
+		if (this.allocatedCount == this.allocated.length) {
+			if (this.allocatedCount >= this.pages.length) {
+				// the list contains duplicates or released pages
+				rebuildAllocated();
+			}
+			if (this.allocatedCount == this.allocated.length) {
+				this.allocated = Arrays.copyOf(this.allocated,
+						Math.min(2 * this.allocatedCount + 1, this.pages.length));
+			}
+		}
+		this.allocated[this.allocatedCount++] = p;
+	}
+
+	/** Rebuilds the list of allocated pages from the page table. */
+	private void rebuildAllocated() {
+		this.allocatedCount = 0;
+		for (int p = 0; p < this.pages.length; p++) {
+			if (this.pages[p] != null) {
+				if (this.allocatedCount == this.allocated.length) {
+					this.allocated = Arrays.copyOf(this.allocated,
+							Math.min(2 * this.allocatedCount + 1,
+									this.pages.length));
+				}
+				this.allocated[this.allocatedCount++] = p;
+			}
+		}
+	}
+
+	/** Removes the page with a given index from the page table.
+	 * Unshared pages of a direct memory are kept for reuse. */
+	private void releasePage(int p) {
+		ByteBuffer page = this.pages[p];
+		if (page != null && this.direct && !this.shared[p]) {
+			this.freePages.push(page);
+		}
+		this.pages[p] = null;
+		this.shared[p] = false;
+	}
+
+	/** Allocates a fresh, zero-filled page. */
+	private ByteBuffer newPage() {
+		if (!this.direct) {
+			return ByteBuffer.allocate(PAGE_SIZE);
+		}
+		ByteBuffer result = this.freePages.poll();
+		if (result != null) {
+			result.clear();
+			result.put(ZERO_PAGE);
+			result.clear();
+			return result;
+		}
+		ByteBuffer slab = this.slabs.isEmpty() ? null : this.slabs
+				.get(this.slabs.size() - 1);
+		if (slab == null || this.slabUsed == slab.capacity() >> PAGE_BITS) {
+			// grow geometrically, but not beyond the page table
+			int count = Math.max(MIN_SLAB_PAGES, this.slabPages);
+			count = Math.min(count, Math.max(1, this.pages.length));
+			count = Math.min(count, MAX_SLAB_PAGES);
+			slab = ByteBuffer.allocateDirect(count << PAGE_BITS);
+			this.slabs.add(slab);
+			this.slabPages += count;
+			this.slabUsed = 0;
+		}
+		ByteBuffer view = slab.duplicate();
+		view.position(this.slabUsed << PAGE_BITS);
+		view.limit((this.slabUsed + 1) << PAGE_BITS);
+		this.slabUsed++;
+		return view.slice();
+	}
+
+	/** Discards the slabs of a direct memory, freeing them at once
+	 * unless their pages may be shared, in which case they are left
+	 * to the garbage collector.
+	 * The page table should be reinitialised afterwards. */
+	private void releaseSlabs() {
+		if (!this.slabsShared) {
+			for (ByteBuffer slab : this.slabs) {
+				free(slab);
+			}
+		}
+		this.slabs.clear();
+		this.slabPages = 0;
+		this.slabUsed = 0;
+		this.freePages.clear();
+		this.slabsShared = false;
 	}
 
 	/** Returns the size of the used memory. */
 	public int size() {
-		return this.mem.length;
+		return this.size;
 	}
 
-	/** Removes all values from the memory. */
+	/** Returns the number of pages that are currently allocated,
+	 * including pages shared with snapshots or other memories. */
+	public int getPageCount() {
+		int result = 0;
+		for (ByteBuffer page : this.pages) {
+			if (page != null) {
+				result++;
+			}
+		}
+		return result;
+	}
+
+	/** Removes all values from the memory, and releases all pages.
+	 * This only visits the pages that have been allocated. */
 	public void clear() {
-		Arrays.fill(this.mem, (byte) 0);
+		for (int i = 0; i < this.allocatedCount; i++) {
+			releasePage(this.allocated[i]);
+		}
+		this.allocatedCount = 0;
+	}
+
+	/** Sets a range of memory locations to 0.
+	 * Unallocated pages in the range are skipped, and pages that
+	 * fall completely within the range are released.
+	 * @param loc the first location of the range
+	 * @param length the number of locations in the range
+	 */
+	public void clear(int loc, int length) {
+		if (length <= 0) {
+			return;
+		}
+		checkBounds(loc);
+		checkBounds(loc + length - 1);
+		int end = loc + length;
+		while (loc < end) {
+			int p = loc >> PAGE_BITS;
+			int from = loc & PAGE_MASK;
+			int to = Math.min(PAGE_SIZE, from + end - loc);
+			if (this.pages[p] != null) {
+				if (from == 0 && to == PAGE_SIZE) {
+					releasePage(p);
+				} else {
+					ByteBuffer page = getWritablePage(p);
+					for (int i = from; i < to; i++) {
+						page.put(i, (byte) 0);
+					}
+				}
+			}
+			loc += to - from;
+		}
+	}
+
+	/** Returns the number of entries in the page table. */
+	int getPageTableSize() {
+		return this.pages.length;
+	}
+
+	/** Returns a read-only view of the page with a given index,
+	 * or {@code null} if that page is unallocated. */
+	ByteBuffer getPage(int p) {
+		ByteBuffer result = this.pages[p];
+		return result == null ? null : result.asReadOnlyBuffer();
+	}
+
+	/** Returns a memory consisting of given (possibly {@code null}) pages,
+	 * all of which are treated as shared, and hence never modified.
+	 * @param size the size of the memory, in number of bytes
+	 * @param pages the page table
+	 */
+	static Memory wrap(int size, ByteBuffer[] pages) {
+		return new Memory(size, pages, false);
+	}
+
+	/** Releases all pages and reduces the size of the memory to 0.
+	 * Any further access throws an exception, until the size is reset.
+	 * The slabs of a direct memory are freed immediately, unless
+	 * a snapshot has been taken or the memory has been forked:
+	 * pages shared with snapshots or forked memories remain valid there.
+	 */
+	public void close() {
+		setSize(0);
+	}
+
+	/** Returns an immutable snapshot of the current memory contents.
+	 * This takes time proportional to the number of pages,
+	 * but does not copy the pages themselves.
+	 * @see #restore(Snapshot)
+	 */
+	public Snapshot snapshot() {
+		Arrays.fill(this.shared, true);
+		this.slabsShared = true;
+		return new Snapshot(this.size, this.pages.clone());
+	}
+
+	/** Restores the memory contents to a given snapshot.
+	 * The snapshot remains valid, and can be restored again later. */
+	public void restore(Snapshot snapshot) {
+		this.size = snapshot.size;
+		this.pages = snapshot.pages.clone();
+		this.shared = new boolean[this.pages.length];
+		Arrays.fill(this.shared, true);
+		this.allocated = new int[Math.min(this.pages.length, INIT_ALLOCATED)];
+		rebuildAllocated();
+	}
+
+	/** Returns a new memory with the same contents as this one.
+	 * The pages are shared by both memories until they are modified. */
+	public Memory fork() {
+		Memory result = new Memory(this.size, this.pages.clone(), this.direct);
+		Arrays.fill(this.shared, true);
+		this.slabsShared = true;
+		return result;
+	}
+
+	/** Constructs a memory with all pages shared. */
+	private Memory(int size, ByteBuffer[] pages, boolean direct) {
+		this.direct = direct;
+		this.size = size;
+		this.pages = pages;
+		this.shared = new boolean[pages.length];
+		Arrays.fill(this.shared, true);
+		this.allocated = new int[Math.min(pages.length, INIT_ALLOCATED)];
+		rebuildAllocated();
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder result = new StringBuilder();
 		for (int i = 0; i < size(); i++) {
+			if (this.pages[i >> PAGE_BITS] == null) {
+				// skip the rest of the unallocated page
+				i |= PAGE_MASK;
+				if (i == Integer.MAX_VALUE) {
+					break;
+				}
+				continue;
+			}
 			if (get(i) == 0) {
 				continue;
 			}
@@ -53,4 +571,77 @@ public class Memory {
 		}
 		return result.toString();
 	}
+
+	/** Indicates if the platform allows the slabs of direct memories
+	 * to be freed immediately. If not, released slabs are left to the
+	 * garbage collector, which may free them much later.
+	 */
+	public static boolean canFree() {
+		return INVOKE_CLEANER != null;
+	}
+
+	/** Frees the native memory of a direct buffer, if the platform
+	 * allows this; otherwise it is left to the garbage collector,
+	 * which is reported on {@link System#err} the first time.
+	 * The buffer must not be used afterwards. */
+	private static void free(ByteBuffer buffer) {
+		Exception failure = null;
+		if (INVOKE_CLEANER != null) {
+			try {
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+				return;
+			} catch (ReflectiveOperationException | RuntimeException exc) {
+				failure = exc;
+			}
+		}
+		if (!FREE_REPORTED.getAndSet(true)) {
+			System.err.println("Direct memory cannot be freed immediately, "
+					+ "and is left to the garbage collector"
+					+ (failure == null ? "" : ": " + failure));
+		}
+	}
+
+	/** Flag indicating that the failure to free direct memory
+	 * has been reported. */
+	private static final AtomicBoolean FREE_REPORTED = new AtomicBoolean();
+
+	/** The {@code sun.misc.Unsafe} instance, if accessible. */
+	private static final Object UNSAFE;
+	/** The {@code invokeCleaner} method of {@code sun.misc.Unsafe},
+	 * if accessible. */
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+					ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException exc) {
+			// not available on this platform
+			unsafe = null;
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	/** Immutable snapshot of the contents of a memory.
+	 * @see Memory#snapshot()
+	 */
+	public static class Snapshot {
+		/** The size of the memory. */
+		private final int size;
+		/** The memory pages, which are never modified. */
+		private final ByteBuffer[] pages;
+
+		private Snapshot(int size, ByteBuffer[] pages) {
+			this.size = size;
+			this.pages = pages;
+		}
+	}
 }
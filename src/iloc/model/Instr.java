@@ -13,6 +13,8 @@ public abstract class Instr implements Iterable<Op> {
 	private Label label;
 	/** The program in which this instruction occurs. */
 	private Program prog;
+	/** Flag indicating that this instruction can no longer be modified. */
+	private boolean frozen;
 	/** Returns the number of operations in this instruction. */
 	public abstract int size();
 
@@ -51,6 +53,7 @@ public abstract class Instr implements Iterable<Op> {
 	/** Sets the optional label of this instruction.
 	 */
 	public void setLabel(Label label) {
+		checkModifiable();
 		if (label == null) {
 			throw new IllegalArgumentException("Label may not be null");
 		}
@@ -74,6 +77,26 @@ public abstract class Instr implements Iterable<Op> {
 		this.prog = prog;
 	}
 
+	/** Makes this instruction unmodifiable. */
+	void freeze() {
+		this.frozen = true;
+	}
+
+	/** Throws an exception if this instruction has been frozen.
+	 * @throws IllegalStateException if this instruction is part
+	 * of a {@link LinkedProgram}
+	 */
+	void checkModifiable() throws IllegalStateException {
+		if (this.frozen) {
+			throw new IllegalStateException(
+					"Instruction is part of a linked program");
+		}
+	}
+
+	/** Returns an unfrozen copy of this instruction, without line number
+	 * or program. */
+	abstract Instr copy();
+
 	/** Returns the string representation of the optional label. */
 	String toLabelString() {
 		if (hasLabel()) {
@@ -0,0 +1,202 @@
+package iloc.model;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import iloc.model.Operand.Type;
+import iloc.parse.FormatException;
+
+/**
+ * Immutable, linked form of an ILOC program, obtained through
+ * {@link Program#link()}.
+ * Linking takes a frozen copy of the program, which can no longer be
+ * modified, and resolves all label operands, label-valued numeric
+ * operands and symbolic constants that have a value in the program
+ * into absolute values, once and for all.
+ * Since a linked program cannot change, it can safely be shared
+ * between threads and cached.
+ */
+public final class LinkedProgram {
+	/** Maximum number of operands of an operation. */
+	private static final int MAX_ARGS = 3;
+	/** The frozen copy of the program. */
+	private final Program program;
+	/** The resolved operand values, {@link #MAX_ARGS} per line. */
+	private final int[] values;
+	/** Flags indicating which operand values are resolved,
+	 * {@link #MAX_ARGS} per line. */
+	private final boolean[] resolved;
+	/** Lazily computed pretty-printed form of this program. */
+	private volatile String prettyPrint;
+
+	/** Constructs the linked form of a frozen program. */
+	LinkedProgram(Program program) {
+		assert program.isFrozen();
+		this.program = program;
+		int size = program.size();
+		this.values = new int[size * MAX_ARGS];
+		this.resolved = new boolean[size * MAX_ARGS];
+		for (int line = 0; line < size; line++) {
+			Op op = program.getOpAt(line);
+			assert op.getArgCount() <= MAX_ARGS;
+			for (int i = 0; i < op.getArgCount(); i++) {
+				Integer value = resolve(op.arg(i));
+				if (value != null) {
+					this.values[line * MAX_ARGS + i] = value;
+					this.resolved[line * MAX_ARGS + i] = true;
+				}
+			}
+		}
+	}
+
+	/** Returns the value of a given operand in the program,
+	 * or {@code null} if it has no (numeric) value. */
+	private Integer resolve(Operand arg) {
+		Integer result = null;
+		if (arg.getType() == Type.LABEL) {
+			result = toValue(this.program.getLine((Label) arg));
+		} else if (arg.getType() == Type.NUM) {
+			Num num = (Num) arg;
+			switch (num.getKind()) {
+			case LAB:
+				result = toValue(this.program.getLine(num.getLabel()));
+				break;
+			case LIT:
+				result = num.getValue();
+				break;
+			case SYMB:
+				result = this.program.getSymb(num);
+				break;
+			}
+		}
+		return result;
+	}
+
+	/** Converts a line number to a value, or {@code null} if the line
+	 * number indicates an undefined label. */
+	private Integer toValue(int line) {
+		return line < 0 ? null : line;
+	}
+
+	/** Returns the frozen program underlying this linked form.
+	 * Any attempt to modify the result results in an
+	 * {@link IllegalStateException}. */
+	public Program getProgram() {
+		return this.program;
+	}
+
+	/** Returns the size of the program, in number of operations. */
+	public int size() {
+		return this.program.size();
+	}
+
+	/** Returns the list of instructions of this program. */
+	public List<Instr> getInstr() {
+		return this.program.getInstr();
+	}
+
+	/** Returns the flattened list of operations in this program. */
+	public List<Op> getOps() {
+		return this.program.getOps();
+	}
+
+	/** Returns the operation at a given line number. */
+	public Op getOpAt(int line) {
+		return this.program.getOpAt(line);
+	}
+
+	/**
+	 * Returns the location at which a given label is defined, if any.
+	 * @return the location of an instruction with the label, or {@code -1}
+	 * if the label is undefined
+	 */
+	public int getLine(Label label) {
+		return this.program.getLine(label);
+	}
+
+	/** Returns the value with which a given symbol has been
+	 * initialised in the program, if any. */
+	public Integer getSymb(Num symb) {
+		return this.program.getSymb(symb);
+	}
+
+	/** Returns the value with which a given named symbol has been
+	 * initialised in the program, if any.
+	 * @param name name of the symbol, without '@'-prefix
+	 */
+	public Integer getSymb(String name) {
+		return this.program.getSymb(name);
+	}
+
+	/**
+	 * Indicates if a given operand of the operation at a given line
+	 * has a resolved value.
+	 * This is the case for literal numbers, labels and label-valued numbers
+	 * with a defined label, and symbolic constants that have a value
+	 * in the program.
+	 * @param line the line of the operation
+	 * @param ix the index of the operand
+	 */
+	public boolean isResolved(int line, int ix) {
+		return this.resolved[line * MAX_ARGS + ix];
+	}
+
+	/**
+	 * Returns the resolved value of a given operand of the operation
+	 * at a given line.
+	 * For labels and label-valued numbers, this is the line number
+	 * of the label.
+	 * @param line the line of the operation
+	 * @param ix the index of the operand
+	 * @throws IllegalArgumentException if the operand is not resolved
+	 * @see #isResolved(int, int)
+	 */
+	public int getValue(int line, int ix) {
+		if (!isResolved(line, ix)) {
+			throw new IllegalArgumentException(String.format(
+					"Operand %d of line %d is unresolved", ix, line));
+		}
+		return this.values[line * MAX_ARGS + ix];
+	}
+
+	/**
+	 * Checks for internal consistency, in particular whether
+	 * all used labels are defined.
+	 * @see Program#check()
+	 */
+	public void check() throws FormatException {
+		this.program.check();
+	}
+
+	/**
+	 * Returns a mapping from registers to line numbers
+	 * in which they appear.
+	 */
+	public Map<String, Set<Integer>> getRegLines() {
+		return this.program.getRegLines();
+	}
+
+	/**
+	 * Returns a mapping from (symbolic) variables to line numbers
+	 * in which they appear.
+	 */
+	public Map<String, Set<Integer>> getSymbLines() {
+		return this.program.getSymbLines();
+	}
+
+	/** Returns a string consisting of this program in a nice layout.
+	 * The result is computed once and then cached. */
+	public String prettyPrint() {
+		String result = this.prettyPrint;
+		if (result == null) {
+			this.prettyPrint = result = this.program.prettyPrint();
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return this.program.toString();
+	}
+}
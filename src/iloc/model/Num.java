@@ -44,6 +44,31 @@ public class Num extends Operand {
 		this.name = null;
 	}
 
+	/** Returns the canonical literal numeric operand with a given value.
+	 * Values from {@link #MIN_CACHED} to {@link #MAX_CACHED} are taken
+	 * from a table shared by all programs; other values are created
+	 * afresh, or can be interned in an {@link OperandTable}. */
+	public static Num of(int value) {
+		if (value >= MIN_CACHED && value <= MAX_CACHED) {
+			return SMALL[value - MIN_CACHED];
+		}
+		return new Num(value);
+	}
+
+	/** Smallest literal value for which {@link #of(int)} returns a
+	 * canonical operand. */
+	public static final int MIN_CACHED = -128;
+	/** Largest literal value for which {@link #of(int)} returns a
+	 * canonical operand. */
+	public static final int MAX_CACHED = 1023;
+	/** Canonical literal operands, from {@link #MIN_CACHED} onwards. */
+	private static final Num[] SMALL = new Num[MAX_CACHED - MIN_CACHED + 1];
+	static {
+		for (int i = 0; i < SMALL.length; i++) {
+			SMALL[i] = new Num(MIN_CACHED + i);
+		}
+	}
+
 	/** Returns the kind of this numeric operand. */
 	public NumKind getKind() {
 		return this.kind;
@@ -2,7 +2,6 @@ package iloc.model;
 
 import static iloc.model.OpClaz.COMMENT;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
@@ -19,11 +18,13 @@ public class Op extends Instr {
 	private final static String COMMENT_SEP = "// ";
 	/** Operand separator. */
 	private final static String OP_SEP = ",";
+	/** Shared argument array of operations without arguments. */
+	private final static Operand[] NO_ARGS = new Operand[0];
 
 	/** The operation code. */
 	private final OpCode opCode;
-	/** The list of arguments of this operation. */
-	private final List<Operand> args;
+	/** The arguments of this operation. */
+	private final Operand[] args;
 	/** The optional comment for this operation. */
 	private String comment;
 
@@ -68,7 +69,8 @@ public class Op extends Instr {
 								this.opCode, i, expected, arg.getType()));
 			}
 		}
-		this.args = new ArrayList<>(args);
+		this.args = argsCount == 0 ? NO_ARGS : args
+				.toArray(new Operand[argsCount]);
 	}
 
 	/** Returns the class of operation (normal or control flow). */
@@ -81,29 +83,39 @@ public class Op extends Instr {
 		return this.opCode;
 	}
 
-	/** Returns the list of all (source + target) arguments. */
+	/** Returns the (unmodifiable) list of all (source + target) arguments. */
 	public List<Operand> getArgs() {
-		return this.args;
+		return Collections.unmodifiableList(Arrays.asList(this.args));
+	}
+
+	/** Returns the number of (source + target) arguments. */
+	public int getArgCount() {
+		return this.args.length;
+	}
+
+	/** Returns a given (source or target) argument. */
+	public Operand arg(int i) {
+		return this.args[i];
 	}
 
 	/** Convenience method to retrieve a given argument as {@link Reg}. */
 	public Reg reg(int i) {
-		return (Reg) this.args.get(i);
+		return (Reg) this.args[i];
 	}
 
 	/** Convenience method to retrieve a given argument as {@link Str}. */
 	public Str str(int i) {
-		return (Str) this.args.get(i);
+		return (Str) this.args[i];
 	}
 
 	/** Convenience method to retrieve a given argument as {@link Num}. */
 	public Num num(int i) {
-		return (Num) this.args.get(i);
+		return (Num) this.args[i];
 	}
 
 	/** Convenience method to retrieve a given operand as {@link Label}. */
 	public Label label(int i) {
-		return (Label) this.args.get(i);
+		return (Label) this.args[i];
 	}
 
 	/** Indicates if this operation has a comment. */
@@ -118,6 +130,7 @@ public class Op extends Instr {
 
 	/** Sets a comment for this operation. */
 	public void setComment(String comment) {
+		checkModifiable();
 		this.comment = comment;
 	}
 
@@ -126,6 +139,13 @@ public class Op extends Instr {
 		return 1;
 	}
 
+	@Override
+	Op copy() {
+		Op result = new Op(getLabel(), getOpCode(), this.args);
+		result.comment = this.comment;
+		return result;
+	}
+
 	@Override
 	public Iterator<Op> iterator() {
 		return Collections.singleton(this).iterator();
@@ -210,7 +230,7 @@ public class Op extends Instr {
 		StringBuilder result = new StringBuilder();
 		boolean first = true;
 		for (int i = 0; i < getOpCode().getSourceCount(); i++) {
-			Operand o = getArgs().get(i);
+			Operand o = this.args[i];
 			if (first) {
 				first = false;
 			} else {
@@ -227,7 +247,7 @@ public class Op extends Instr {
 		boolean first = true;
 		for (int i = getOpCode().getSourceCount(); i < getOpCode()
 				.getSigSize(); i++) {
-			Operand o = getArgs().get(i);
+			Operand o = this.args[i];
 			if (first) {
 				first = false;
 			} else {
@@ -246,7 +266,7 @@ public class Op extends Instr {
 		result = prime * result
 				+ ((this.comment == null) ? 0 : this.comment.hashCode());
 		result = prime * result + this.opCode.hashCode();
-		result = prime * result + this.args.hashCode();
+		result = prime * result + Arrays.hashCode(this.args);
 		return result;
 	}
 
@@ -269,7 +289,7 @@ public class Op extends Instr {
 		if (this.opCode != other.opCode) {
 			return false;
 		}
-		if (!this.args.equals(other.args)) {
+		if (!Arrays.equals(this.args, other.args)) {
 			return false;
 		}
 		return true;
@@ -98,6 +98,9 @@ public enum OpCode {
 	cstoreAI(1, REG, REG, NUM),
 	/** Character store (reg0 => mem(reg1 + reg2)). */
 	cstoreAO(1, REG, REG, REG),
+	/** Character block copy (reg1 chars from mem(reg0) => mem(reg2)).
+	 * Not official ILOC. */
+	ccopy(2, REG, REG, REG),
 
 	// Copy operations
 	/** Integer-to-integer copy (reg0 => reg1). */
@@ -161,6 +164,9 @@ public enum OpCode {
 	 * The string is represented as length + chars (first char on top).
 	 * Not official ILOC. */
 	cout(1, STR),
+	/** String output from memory (str0 + reg2 chars at mem(reg1) => stdout).
+	 * Not official ILOC. */
+	coutA(3, STR, REG, REG),
 	/** Stand-alone program comment; effect = nop.
 	 * Not official ILOC. */
 	comment(COMMENT, 0);
@@ -16,6 +16,7 @@ public class OpList extends Instr {
 
 	/** Adds an operation to this list. */
 	public void addOp(Op op) {
+		checkModifiable();
 		assert !hasLine() : "Line numer set; do not add new operations";
 		this.opList.add(op);
 	}
@@ -35,6 +36,26 @@ public class OpList extends Instr {
 		return getOps().iterator();
 	}
 
+	@Override
+	void freeze() {
+		super.freeze();
+		for (Op op : this) {
+			op.freeze();
+		}
+	}
+
+	@Override
+	OpList copy() {
+		OpList result = new OpList();
+		if (hasLabel()) {
+			result.setLabel(getLabel());
+		}
+		for (Op op : this) {
+			result.addOp(op.copy());
+		}
+		return result;
+	}
+
 	@Override
 	public void setLine(int line) {
 		super.setLine(line);
@@ -0,0 +1,81 @@
+package iloc.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Table of canonical operands, used while constructing a single program.
+ * Every parser, reader or generator run creates its own table, so that
+ * the operands of a program are shared within that program, while the
+ * table itself is discarded once the program is complete.
+ * Tables are not thread-safe.
+ * @see Num#of(int)
+ */
+public final class OperandTable {
+	/** The canonical registers, by name. */
+	private final Map<String, Reg> regs = new HashMap<>();
+	/** The canonical labels, by value. */
+	private final Map<String, Label> labels = new HashMap<>();
+	/** The canonical literal operands outside the range of
+	 * {@link Num#of(int)}, by value. */
+	private final Map<Integer, Num> nums = new HashMap<>();
+	/** The canonical symbolic numeric operands, by name. */
+	private final Map<String, Num> symbs = new HashMap<>();
+	/** The canonical label-based numeric operands, by label value. */
+	private final Map<String, Num> labelNums = new HashMap<>();
+
+	/** Returns the canonical register with a given name. */
+	public Reg reg(String name) {
+		Reg result = this.regs.get(name);
+		if (result == null) {
+			result = new Reg(name);
+			this.regs.put(name, result);
+		}
+		return result;
+	}
+
+	/** Returns the canonical label with a given label text. */
+	public Label label(String value) {
+		Label result = this.labels.get(value);
+		if (result == null) {
+			result = new Label(value);
+			this.labels.put(value, result);
+		}
+		return result;
+	}
+
+	/** Returns the canonical literal numeric operand with a given value. */
+	public Num num(int value) {
+		if (value >= Num.MIN_CACHED && value <= Num.MAX_CACHED) {
+			return Num.of(value);
+		}
+		Num result = this.nums.get(value);
+		if (result == null) {
+			result = new Num(value);
+			this.nums.put(value, result);
+		}
+		return result;
+	}
+
+	/** Returns the canonical symbolic numeric operand with a given name.
+	 * @param name symbolic name, without '@'-prefix
+	 */
+	public Num symb(String name) {
+		Num result = this.symbs.get(name);
+		if (result == null) {
+			result = new Num(name);
+			this.symbs.put(name, result);
+		}
+		return result;
+	}
+
+	/** Returns the canonical numeric operand based on the label
+	 * with a given label text. */
+	public Num labelNum(String value) {
+		Num result = this.labelNums.get(value);
+		if (result == null) {
+			result = new Num(label(value));
+			this.labelNums.put(value, result);
+		}
+		return result;
+	}
+}
@@ -1,5 +1,7 @@
 package iloc.model;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -16,6 +18,17 @@ import iloc.parse.FormatException;
  * @author Arend Rensink
  */
 public class Program {
+	/** Name of the symbolic constant holding the size (in bytes) of the
+	 * frame used by the program, if known; the frame starts at address 0.
+	 * @see #STACK_SIZE
+	 */
+	public static final String FRAME_SIZE = "frameSize";
+	/** Name of the symbolic constant holding the maximum number of bytes
+	 * pushed onto the stack by the program, if known, not counting
+	 * strings read by {@link OpCode#cin}.
+	 * @see #FRAME_SIZE
+	 */
+	public static final String STACK_SIZE = "stackSize";
 	/** Indexed list of all instructions in the program. */
 	private final List<Instr> instrList;
 	/**
@@ -30,6 +43,20 @@ public class Program {
 	/** (Partial) mapping from symbolic constants used in the program
 	 * to corresponding numeric values. */
 	private final Map<Num, Integer> symbMap;
+	/** Width of the widest symbolic constant name, for the layout. */
+	private int symbWidth;
+	/** Width of the widest instruction label, for the layout. */
+	private int labelWidth;
+	/** Width of the widest sources part of a single operation,
+	 * for the layout. */
+	private int sourceWidth;
+	/** Width of the widest targets part of a single operation,
+	 * for the layout. */
+	private int targetWidth;
+	/** Flag indicating that this program can no longer be modified. */
+	private boolean frozen;
+	/** The linked form of this program, if it is up to date. */
+	private LinkedProgram linked;
 
 	/** Creates a program with an initially empty instruction list. */
 	public Program() {
@@ -43,6 +70,8 @@ public class Program {
 	 * @throws IllegalArgumentException if the instruction has a known label 
 	 */
 	public void addInstr(Instr instr) {
+		checkModifiable();
+		this.linked = null;
 		instr.setProgram(this);
 		instr.setLine(this.opList.size());
 		if (instr.hasLabel()) {
@@ -52,10 +81,19 @@ public class Program {
 		for (Op op : instr) {
 			this.opList.add(op);
 		}
+		if (instr instanceof Op && ((Op) instr).getOpCode() != OpCode.out) {
+			Op op = (Op) instr;
+			this.sourceWidth = Math.max(this.sourceWidth, op.toSourceString()
+					.length());
+			this.targetWidth = Math.max(this.targetWidth, op.toTargetString()
+					.length());
+		}
 	}
 
 	/** Registers the label of a given instruction. */
 	void registerLabel(Instr instr) {
+		checkModifiable();
+		this.linked = null;
 		Label label = instr.getLabel();
 		Integer loc = this.labelMap.get(label);
 		if (loc != null) {
@@ -63,6 +101,8 @@ public class Program {
 					"Label %s already occurred at location %d", label, loc));
 		}
 		this.labelMap.put(label, instr.getLine());
+		this.labelWidth = Math.max(this.labelWidth, instr.toLabelString()
+				.length());
 	}
 
 	/** Returns the current list of instructions of this program. */
@@ -100,11 +140,14 @@ public class Program {
 	 * @param name constant name, without preceding '@'
 	 */
 	public void setSymb(Num symb, int value) {
+		checkModifiable();
 		if (this.symbMap.containsKey(symb)) {
 			throw new IllegalArgumentException("Constant '" + symb
 					+ "' already assigned");
 		}
 		this.symbMap.put(symb, value);
+		this.symbWidth = Math.max(this.symbWidth, symb.getName().length());
+		this.linked = null;
 	}
 
 	/** 
@@ -115,6 +158,12 @@ public class Program {
 		return this.symbMap.get(symb);
 	}
 
+	/** Returns the mapping from symbolic constants to the values with
+	 * which they have been initialised, in order of initialisation. */
+	public Map<Num, Integer> getSymbMap() {
+		return Collections.unmodifiableMap(this.symbMap);
+	}
+
 	/** 
 	 * Returns the value with which a given named symbol has been
 	 * initialised, if any.
@@ -124,6 +173,47 @@ public class Program {
 		return getSymb(new Num(name));
 	}
 
+	/**
+	 * Returns the linked form of this program, which is an immutable
+	 * snapshot of its current state.
+	 * The result is cached until this program is modified.
+	 * Operations that are modified after linking (for instance by
+	 * changing their comments) do not affect the linked form.
+	 */
+	public LinkedProgram link() {
+		LinkedProgram result = this.linked;
+		if (result == null) {
+			Program copy = new Program();
+			for (Instr instr : this.instrList) {
+				copy.addInstr(instr.copy());
+			}
+			copy.symbMap.putAll(this.symbMap);
+			copy.symbWidth = this.symbWidth;
+			for (Instr instr : copy.instrList) {
+				instr.freeze();
+			}
+			copy.frozen = true;
+			this.linked = result = new LinkedProgram(copy);
+		}
+		return result;
+	}
+
+	/** Indicates if this program is the frozen copy underlying
+	 * a {@link LinkedProgram}, and can therefore not be modified. */
+	public boolean isFrozen() {
+		return this.frozen;
+	}
+
+	/** Throws an exception if this program has been frozen.
+	 * @throws IllegalStateException if this program underlies
+	 * a {@link LinkedProgram}
+	 */
+	private void checkModifiable() throws IllegalStateException {
+		if (this.frozen) {
+			throw new IllegalStateException("Program is linked");
+		}
+	}
+
 	/**
 	 * Checks for internal consistency, in particular whether
 	 * all used labels are defined.
@@ -237,34 +327,36 @@ public class Program {
 	/** Returns a string consisting of this program in a nice layout.
 	 */
 	public String prettyPrint() {
-		StringBuilder result = new StringBuilder();
-		// first print the symbolic declaration map
-		int idSize = 0;
-		for (Num symb : this.symbMap.keySet()) {
-			idSize = Math.max(idSize, symb.getName().length());
-		}
-		for (Map.Entry<Num, Integer> symbEntry : this.symbMap.entrySet()) {
-			result.append(String.format("%-" + idSize + "s <- %d%n", symbEntry
-					.getKey().getName(), symbEntry.getValue()));
-		}
-		if (idSize > 0) {
-			result.append('\n');
-		}
-		// then print the instructions
-		int labelSize = 0;
-		int sourceSize = 0;
-		int targetSize = 0;
-		for (Instr i : getInstr()) {
-			labelSize = Math.max(labelSize, i.toLabelString().length());
-			if (i instanceof Op && ((Op) i).getOpCode() != OpCode.out) {
-				Op op = (Op) i;
-				sourceSize = Math.max(sourceSize, op.toSourceString().length());
-				targetSize = Math.max(targetSize, op.toTargetString().length());
-			}
-		}
-		for (Instr i : getInstr()) {
-			result.append(i.prettyPrint(labelSize, sourceSize, targetSize));
+		StringWriter result = new StringWriter();
+		try {
+			new ProgramWriter(result).write(this);
+		} catch (IOException exc) {
+			// a string writer does not throw exceptions
+			throw new IllegalStateException(exc);
 		}
 		return result.toString();
 	}
+
+	/** Returns the width of the widest symbolic constant name. */
+	int getSymbWidth() {
+		return this.symbWidth;
+	}
+
+	/** Returns the width of the widest instruction label,
+	 * including the label separator. */
+	int getLabelWidth() {
+		return this.labelWidth;
+	}
+
+	/** Returns the width of the widest sources part of a
+	 * single operation, not counting {@link OpCode#out}. */
+	int getSourceWidth() {
+		return this.sourceWidth;
+	}
+
+	/** Returns the width of the widest targets part of a
+	 * single operation, not counting {@link OpCode#out}. */
+	int getTargetWidth() {
+		return this.targetWidth;
+	}
 }
@@ -0,0 +1,66 @@
+package iloc.model;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Writer of programs in the layout of {@link Program#prettyPrint()},
+ * one instruction at a time.
+ * The column widths are taken from the program, which maintains them
+ * while instructions are added; hence the program text is never built
+ * in memory as a whole.
+ */
+public class ProgramWriter implements Closeable, Flushable {
+	/** The underlying writer. */
+	private final Writer out;
+
+	/** Constructs a program writer on top of a given writer. */
+	public ProgramWriter(Writer out) {
+		this.out = out;
+	}
+
+	/** Constructs a program writer on top of a given output stream,
+	 * using the UTF-8 encoding. */
+	public ProgramWriter(OutputStream out) {
+		this(new BufferedWriter(new OutputStreamWriter(out,
+				StandardCharsets.UTF_8)));
+	}
+
+	/** Writes a program: first its symbolic constant declarations,
+	 * then its instructions. */
+	public void write(Program program) throws IOException {
+		int symbWidth = program.getSymbWidth();
+		for (Map.Entry<Num, Integer> symbEntry : program.getSymbMap()
+				.entrySet()) {
+			this.out.write(String.format("%-" + symbWidth + "s <- %d%n",
+					symbEntry.getKey().getName(), symbEntry.getValue()));
+		}
+		if (symbWidth > 0) {
+			this.out.write('\n');
+		}
+		int labelWidth = program.getLabelWidth();
+		int sourceWidth = program.getSourceWidth();
+		int targetWidth = program.getTargetWidth();
+		for (Instr instr : program.getInstr()) {
+			this.out.write(instr.prettyPrint(labelWidth, sourceWidth,
+					targetWidth));
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.out.close();
+	}
+}
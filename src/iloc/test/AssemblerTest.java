@@ -1,17 +1,37 @@
 package iloc.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
+import org.antlr.v4.runtime.ANTLRInputStream;
 import org.junit.Test;
 
 import iloc.Assembler;
+import iloc.BinaryFormat;
+import iloc.model.Label;
+import iloc.model.Num;
+import iloc.model.Op;
+import iloc.model.OpCode;
+import iloc.model.OperandTable;
 import iloc.model.Program;
+import iloc.model.ProgramWriter;
+import iloc.model.Reg;
 import iloc.parse.FormatException;
 
 @SuppressWarnings("javadoc")
@@ -41,6 +61,193 @@ public class AssemblerTest {
 		assertEquals(ints(0, 15), p.getSymbLines().get("a"));
 	}
 
+	@Test
+	public void testAssembleAll() throws FormatException, IOException {
+		String[] names = { "fig1-3", "fig1-3-init", "fig1-3-stack", "string",
+				"string4" };
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			for (String name : names) {
+				files.add(new File(BASE_DIR + name + ".iloc"));
+			}
+		}
+		Map<File, Program> result = Assembler.instance().assembleAll(files);
+		assertEquals(names.length, result.size());
+		for (Map.Entry<File, Program> e : result.entrySet()) {
+			assertEquals(Assembler.instance().assemble(e.getKey()), e.getValue());
+		}
+	}
+
+	@Test
+	public void testFastParse() throws IOException {
+		for (String name : new String[] { "fig1-3", "fig1-3-init",
+				"fig1-3-stack", "string", "string4" }) {
+			byte[] bytes = Files.readAllBytes(new File(BASE_DIR + name
+					+ ".iloc").toPath());
+			testFastParse(new String(bytes));
+		}
+		// correct programs
+		testFastParse("a <- 4 // size\n\nb <- -2\nl: [\n nop; // x\n\n"
+				+ " loadI #l => r_1 ]\r\n// comment\n"
+				+ "  storeAI r_1 => r_arp,@a\n"
+				+ "out \"say \\\"hi\\\" \",r_1\n\n");
+		testFastParse("jumpI -> end\nend: out \"a\\\", r_2\n");
+		testFastParse("jumpI -> end-1\nend-1: cbr r_1 -> end-1,end-1");
+		// incorrect programs
+		testFastParse("\nnop");
+		testFastParse("nop\nx <- 3");
+		testFastParse("addI r_1,r_2 => r_3");
+		testFastParse("addI r_1,2 -> r_3");
+		testFastParse("i2i r_1 => r_2,r_3");
+		testFastParse("l: nop\nl: nop");
+		testFastParse("foo r_1");
+		testFastParse("loadI 99999999999 => r_1");
+		testFastParse("jumpI -> nowhere");
+		testFastParse("out \"unterminated, r_1");
+		testFastParse("[ nop nop ]");
+		testFastParse("i2i r_1=>r_2");
+		testFastParse("i2i r_1->r_2");
+	}
+
+	@Test
+	public void testParallelParse() {
+		// large enough to be split into chunks
+		StringBuilder program = new StringBuilder("a <- 4\n");
+		for (int i = 0; i < 15000; i++) {
+			program.append("l" + i + ": [ loadI " + i + " => r_1\n"
+					+ "  out \"[ // \\\"\", r_1 // [\n"
+					+ "]\n\r\n// ]\n"
+					+ "cbr r_1 -> l" + (i / 2) + ",end\n");
+		}
+		program.append("end: storeAI r_1 => r_arp,@a");
+		testFastParse(program.toString());
+		// duplicate label far from the original
+		program.append("\nl0: nop");
+		testFastParse(program.toString());
+	}
+
+	@Test
+	public void testBinary() throws IOException {
+		for (String name : new String[] { "fig1-3", "fig1-3-init",
+				"fig1-3-stack", "string", "string4" }) {
+			Program p = parse(name);
+			Path file = Files.createTempFile(name, BinaryFormat.EXTENSION);
+			try {
+				BinaryFormat.write(p, file);
+				Program read = BinaryFormat.read(file);
+				assertEquals(p, read);
+				assertEquals(p.prettyPrint(), read.prettyPrint());
+				// registers read back are shared within the program
+				Map<Reg, Reg> regs = new HashMap<>();
+				for (int line = 0; line < read.size(); line++) {
+					Op op = read.getOpAt(line);
+					for (int i = 0; i < op.getArgCount(); i++) {
+						if (op.arg(i) instanceof Reg) {
+							Reg reg = (Reg) op.arg(i);
+							regs.putIfAbsent(reg, reg);
+							assertSame(regs.get(reg), reg);
+						}
+					}
+				}
+				Program mapped = BinaryFormat.map(file);
+				assertEquals(p.prettyPrint(), mapped.prettyPrint());
+				if (SHOW) {
+					System.out.printf("%s: %d bytes binary, %d bytes text%n",
+							name, Files.size(file), p.prettyPrint().length());
+				}
+			} finally {
+				Files.delete(file);
+			}
+		}
+		try {
+			BinaryFormat.read(ByteBuffer.wrap("nop".getBytes()));
+			fail("Text should not be readable as binary program");
+		} catch (IOException exc) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testProgramWriter() throws FormatException, IOException {
+		Program p = new Program();
+		p.setSymb(new Num("size"), 4);
+		p.addInstr(new Op(OpCode.loadI, new Num(1), new Reg("r_1")));
+		Op last = new Op(OpCode.storeAI, new Reg("r_1"), new Reg("r_arp"),
+				new Num("size"));
+		p.addInstr(last);
+		// the layout widens for labels set after the instruction was added
+		last.setLabel(new Label("end"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ProgramWriter writer = new ProgramWriter(out)) {
+			writer.write(p);
+		}
+		String text = out.toString("UTF-8");
+		if (SHOW) {
+			System.out.print(text);
+		}
+		assertEquals(p.prettyPrint(), text);
+		String[] lines = text.split("\n");
+		assertTrue(lines[2].startsWith("     loadI"));
+		assertTrue(lines[3].startsWith("end: storeAI"));
+		assertEquals(p, Assembler.instance().assemble(text));
+	}
+
+	@Test
+	public void testInterning() throws FormatException {
+		OperandTable table = new OperandTable();
+		assertSame(table.reg("r_1"), table.reg("r_1"));
+		assertSame(table.label("l"), table.label("l"));
+		assertSame(table.num(4), table.num(4));
+		assertSame(table.num(100000), table.num(100000));
+		assertSame(table.symb("a"), table.symb("a"));
+		assertSame(table.labelNum("l"), table.labelNum("l"));
+		assertSame(table.label("l"), table.labelNum("l").getLabel());
+		assertSame(Num.of(4), table.num(4));
+		assertEquals(new Num(100000), Num.of(100000));
+		// tables are independent, but their operands are equal
+		OperandTable other = new OperandTable();
+		assertNotSame(table.reg("r_1"), other.reg("r_1"));
+		assertEquals(table.reg("r_1"), other.reg("r_1"));
+		String text = "loadI 100000 => r_1\naddI r_1,100000 => r_1\n";
+		for (Program p : new Program[] { Assembler.instance().assemble(text),
+				Assembler.instance().assemble(new ANTLRInputStream(text)) }) {
+			Op load = p.getOpAt(0);
+			Op add = p.getOpAt(1);
+			assertSame(load.reg(1), add.reg(0));
+			assertSame(load.num(0), add.num(1));
+			assertEquals(3, add.getArgCount());
+			try {
+				add.getArgs().set(0, new Reg("r_2"));
+				fail("Arguments should not be modifiable");
+			} catch (UnsupportedOperationException exc) {
+				// expected
+			}
+		}
+	}
+
+	/** Compares the result of assembling a program with the result
+	 * of the ANTLR-based parser. */
+	private void testFastParse(String program) {
+		String expected;
+		try {
+			expected = Assembler.instance()
+					.assemble(new ANTLRInputStream(program)).prettyPrint();
+		} catch (FormatException | RuntimeException exc) {
+			expected = exc.toString();
+		}
+		String actual;
+		try {
+			actual = Assembler.instance().assemble(program).prettyPrint();
+		} catch (FormatException | RuntimeException exc) {
+			actual = exc.toString();
+		}
+		if (SHOW) {
+			System.out.println(actual.length() < 1000 ? actual : actual
+					.substring(0, 1000));
+		}
+		assertEquals(expected, actual);
+	}
+
 	private HashSet<Integer> ints(Integer... vals) {
 		return new HashSet<>(Arrays.asList(vals));
 	}
@@ -0,0 +1,288 @@
+package iloc.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import iloc.eval.Machine;
+import iloc.eval.MachinePool;
+import iloc.eval.Memory;
+
+@SuppressWarnings("javadoc")
+public class MachineTest {
+	@Test
+	public void testSnapshot() {
+		Machine c = new Machine();
+		int a = c.init("a", 1, 2, 3);
+		c.setReg("r_x", 7);
+		c.setPC(4);
+		Machine.Snapshot snapshot = c.snapshot();
+		c.store(42, a);
+		c.setReg("r_x", 8);
+		c.setReg("r_y", 9);
+		c.setNum("b", 100);
+		c.setPC(5);
+		if (SHOW) {
+			System.out.println(c);
+		}
+		c.restore(snapshot);
+		if (SHOW) {
+			System.out.println(c);
+		}
+		assertEquals(1, c.load(a));
+		assertEquals(7, c.getReg("r_x"));
+		assertFalse(c.hasReg("r_y"));
+		assertEquals(null, c.getNum("b"));
+		assertEquals(4, c.getPC());
+		// the snapshot can be restored repeatedly
+		c.store(43, a);
+		c.restore(snapshot);
+		assertEquals(1, c.load(a));
+	}
+
+	@Test
+	public void testFork() {
+		Machine parent = new Machine();
+		int a = parent.init("a", 1, 2, 3);
+		parent.setReg("r_x", 7);
+		Machine child = parent.fork();
+		assertEquals(parent.toString(), child.toString());
+		child.store(42, a);
+		child.setReg("r_x", 8);
+		parent.store(43, a + Machine.INT_SIZE);
+		assertEquals(1, parent.load(a));
+		assertEquals(42, child.load(a));
+		assertEquals(43, parent.load(a + Machine.INT_SIZE));
+		assertEquals(2, child.load(a + Machine.INT_SIZE));
+		assertEquals(7, parent.getReg("r_x"));
+		assertEquals(8, child.getReg("r_x"));
+		assertEquals(a, (int) child.getNum("a"));
+	}
+
+	@Test
+	public void testSparseMemory() {
+		int size = 500 * 1024 * 1024;
+		Memory memory = new Memory();
+		memory.setSize(size);
+		assertEquals(0, memory.getPageCount());
+		assertEquals(0, memory.get(size / 2));
+		memory.set(0, (byte) 1);
+		memory.set(size - 1, (byte) 2);
+		assertEquals(2, memory.getPageCount());
+		assertEquals("0:01, " + (size - 1) + ":02", memory.toString());
+		Memory.Snapshot snapshot = memory.snapshot();
+		memory.set(size / 2, (byte) 3);
+		assertEquals(3, memory.getPageCount());
+		memory.restore(snapshot);
+		assertEquals(0, memory.get(size / 2));
+		assertEquals(2, memory.get(size - 1));
+		memory.clear();
+		assertEquals(0, memory.getPageCount());
+		// the machine stack starts at the top of a large memory
+		Machine c = new Machine();
+		c.setSize(size);
+		c.setReg("r_x", 42);
+		c.store(c.getReg("r_x"), c.getReg(Machine.SP) - Machine.INT_SIZE);
+		assertEquals(42, c.load(size - Machine.INT_SIZE));
+		// the largest size does not overflow the page count
+		memory.setSize(Integer.MAX_VALUE);
+		memory.set(Integer.MAX_VALUE - 1, (byte) 4);
+		assertEquals(4, memory.get(Integer.MAX_VALUE - 1));
+		assertEquals((Integer.MAX_VALUE - 1) + ":04", memory.toString());
+		try {
+			memory.setSize(-1);
+			fail("Negative sizes should be rejected");
+		} catch (IllegalArgumentException exc) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testWords() {
+		Memory memory = new Memory();
+		memory.setSize(3 * Memory.PAGE_SIZE);
+		// aligned, unaligned and page-crossing words
+		int[] locs = { 0, 5, Memory.PAGE_SIZE - 2, 2 * Memory.PAGE_SIZE - 1 };
+		for (int loc : locs) {
+			memory.setInt(loc, 0x12345678);
+			assertEquals(0x12345678, memory.getInt(loc));
+			assertEquals(0x12, memory.get(loc));
+			assertEquals(0x78, memory.get(loc + 3));
+		}
+		// the word at the end of a snapshot page is copied
+		Memory.Snapshot snapshot = memory.snapshot();
+		memory.setInt(Memory.PAGE_SIZE - 2, -1);
+		assertEquals(-1, memory.getInt(Memory.PAGE_SIZE - 2));
+		memory.restore(snapshot);
+		assertEquals(0x12345678, memory.getInt(Memory.PAGE_SIZE - 2));
+		try {
+			memory.getInt(3 * Memory.PAGE_SIZE - 2);
+			fail("Word beyond the memory should not be readable");
+		} catch (ArrayIndexOutOfBoundsException exc) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testOffHeap() {
+		Machine c = new Machine(true);
+		assertTrue(c.isOffHeap());
+		c.setSize(100 * 1024 * 1024);
+		int a = c.init("a", 1, 2, 3);
+		Machine child = c.fork();
+		c.store(42, a);
+		assertEquals(42, c.load(a));
+		assertEquals(1, child.load(a));
+		c.close();
+		try {
+			c.load(a);
+			fail("Closed machine should not be accessible");
+		} catch (ArrayIndexOutOfBoundsException exc) {
+			// expected
+		}
+		// the child's pages are unaffected
+		assertEquals(2, child.load(a + Machine.INT_SIZE));
+		child.close();
+		// released pages are reused, and read as 0 again
+		Machine d = new Machine(true);
+		d.setSize(64 * Memory.PAGE_SIZE);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0, d.load(i * Memory.PAGE_SIZE));
+			for (int p = 0; p < 64; p++) {
+				d.store(i + 1, p * Memory.PAGE_SIZE);
+			}
+			d.clear();
+		}
+		d.close();
+		d.setSize(Memory.PAGE_SIZE);
+		d.store(5, 0);
+		assertEquals(5, d.load(0));
+		d.close();
+	}
+
+	@Test
+	public void testImage() throws IOException {
+		Machine c = new Machine();
+		c.setSize(1024 * 1024);
+		int a = c.init("a", 1, 2, 3);
+		int b = c.alloc("b", 2 * Memory.PAGE_SIZE);
+		c.store(4, b + Memory.PAGE_SIZE);
+		c.setReg("r_x", 7);
+		c.setPC(3);
+		Path file = Files.createTempFile("machine", ".img");
+		try {
+			c.save(file);
+			Machine image = Machine.open(file);
+			assertEquals(3, image.getPC());
+			assertEquals(c.getCharSize(), image.getCharSize());
+			assertEquals(c.getRegCount(), image.getRegCount());
+			for (int slot = 0; slot < c.getRegCount(); slot++) {
+				String name = c.getRegName(slot);
+				assertEquals(c.hasReg(name), image.hasReg(name));
+				if (c.hasReg(name)) {
+					assertEquals(c.getReg(name), image.getReg(name));
+				}
+			}
+			assertEquals(c.getNum("a"), image.getNum("a"));
+			assertEquals(c.getNum("b"), image.getNum("b"));
+			assertEquals(c.getSize(), image.getSize());
+			for (int loc = 0; loc < c.getSize(); loc += Machine.INT_SIZE) {
+				assertEquals(c.load(loc), image.load(loc));
+			}
+			assertEquals(4, image.load(b + Memory.PAGE_SIZE));
+			// reserved memory is restored
+			assertEquals(c.alloc(4), image.alloc(4));
+			// modifications do not affect the image file
+			image.store(42, a);
+			assertEquals(42, image.load(a));
+			assertEquals(1, Machine.open(file).load(a));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testClearRange() {
+		Memory memory = new Memory();
+		memory.setSize(4 * Memory.PAGE_SIZE);
+		for (int p = 0; p < 3; p++) {
+			memory.setInt(p * Memory.PAGE_SIZE + 8, p + 1);
+		}
+		assertEquals(3, memory.getPageCount());
+		// clears the tail of page 0, all of page 1 and the head of page 2
+		memory.clear(12, 2 * Memory.PAGE_SIZE);
+		assertEquals(1, memory.getInt(8));
+		assertEquals(0, memory.getInt(Memory.PAGE_SIZE + 8));
+		assertEquals(0, memory.getInt(2 * Memory.PAGE_SIZE + 8));
+		assertEquals(2, memory.getPageCount());
+		memory.clear();
+		assertEquals(0, memory.getPageCount());
+	}
+
+	@Test
+	public void testCopy() {
+		for (boolean direct : new boolean[] { false, true }) {
+			Memory memory = new Memory(direct);
+			int size = 4 * Memory.PAGE_SIZE;
+			memory.setSize(size);
+			byte[] expected = new byte[size];
+			for (int i = 0; i < 2 * Memory.PAGE_SIZE; i++) {
+				memory.set(i, (byte) i);
+				expected[i] = (byte) i;
+			}
+			Memory.Snapshot snapshot = memory.snapshot();
+			// overlapping copies in both directions, across page boundaries
+			int[][] copies = { { 100, 300, 5000 }, { 300, 100, 5000 },
+					{ 10, 3 * Memory.PAGE_SIZE - 5, 20 },
+					{ 3 * Memory.PAGE_SIZE, 0, 8 } };
+			for (int[] copy : copies) {
+				memory.copy(copy[0], copy[1], copy[2]);
+				System.arraycopy(expected, copy[0], expected, copy[1], copy[2]);
+			}
+			byte[] actual = new byte[size];
+			memory.get(0, actual);
+			assertArrayEquals(expected, actual);
+			// the snapshot is unaffected
+			memory.restore(snapshot);
+			assertEquals((byte) 100, memory.get(100));
+			memory.close();
+		}
+	}
+
+	@Test
+	public void testPool() {
+		MachinePool pool = new MachinePool(Memory.PAGE_SIZE * 10);
+		Machine c = pool.acquire();
+		int a = c.init("a", 1, 2, 3);
+		c.setReg("r_x", 7);
+		c.setPC(5);
+		pool.release(c);
+		assertEquals(1, pool.getIdleCount());
+		Machine d = pool.acquire();
+		assertSame(c, d);
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(new Machine().getPC(), d.getPC());
+		assertFalse(d.hasReg("r_x"));
+		assertEquals(null, d.getNum("a"));
+		assertEquals(0, d.load(a));
+		assertEquals(Memory.PAGE_SIZE * 10, d.getReg(Machine.SP));
+		// reserved memory starts afresh
+		assertEquals(a, d.alloc("b", 4));
+		// a resized machine is restored to the pool size
+		d.setSize(Memory.PAGE_SIZE);
+		pool.release(d);
+		d = pool.acquire();
+		assertEquals(Memory.PAGE_SIZE * 10, d.getSize());
+	}
+
+	private final static boolean SHOW = true;
+}
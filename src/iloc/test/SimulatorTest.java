@@ -1,18 +1,38 @@
 package iloc.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.Test;
 
 import iloc.Assembler;
+import iloc.BatchSimulator;
+import iloc.ClassCompiler;
+import iloc.DecodedProgram;
+import iloc.SimulationService;
 import iloc.Simulator;
+import iloc.TraceBuffer;
 import iloc.eval.Machine;
+import iloc.model.LinkedProgram;
+import iloc.model.Num;
+import iloc.model.OpCode;
 import iloc.model.Program;
 import iloc.parse.FormatException;
 
@@ -94,6 +114,317 @@ public class SimulatorTest {
 		assertEquals("Doubled: abcabc", out.toString().trim());
 	}
 
+	@Test(timeout = 1000)
+	public void testDecoded() {
+		Program p = parse("fig1-3-stack");
+		Machine stepped = new Machine();
+		Machine decoded = new Machine();
+		for (Machine c : new Machine[] { stepped, decoded }) {
+			c.init("a", 2);
+			c.init("b", 3);
+			c.init("c", 4);
+			c.init("d", 5);
+		}
+		Simulator sim = new Simulator(p, stepped);
+		while (stepped.getPC() < p.size()) {
+			sim.step();
+		}
+		new Simulator(p, decoded).run(DecodedProgram.decode(p));
+		assertEquals(stepped.toString(), decoded.toString());
+	}
+
+	@Test
+	public void testUndefinedReg() throws FormatException {
+		Program p = Assembler.instance().assemble(
+				"loadI 1 => r_1\nadd r_1,r_x => r_2\n");
+		for (Simulator.Engine engine : Simulator.Engine.values()) {
+			Simulator sim = new Simulator(p);
+			sim.setEngine(engine);
+			try {
+				sim.run();
+				fail("Reading an undefined register should fail");
+			} catch (IllegalArgumentException exc) {
+				// expected
+			}
+			assertEquals(1, sim.getVM().getPC());
+			// defining the register in the VM makes the program correct
+			sim = new Simulator(p);
+			sim.setEngine(engine);
+			sim.getVM().setReg("r_x", 2);
+			sim.run();
+			assertEquals(3, sim.getVM().getReg("r_2"));
+		}
+	}
+
+	@Test
+	public void testClassFallback() throws FormatException {
+		Program small = Assembler.instance().assemble("loadI 1 => r_1\n");
+		Simulator sim = new Simulator(small);
+		sim.setEngine(Simulator.Engine.CLASS);
+		assertNull(sim.getRunEngine());
+		sim.run();
+		if (javax.tools.ToolProvider.getSystemJavaCompiler() != null) {
+			assertEquals(Simulator.Engine.CLASS, sim.getRunEngine());
+		}
+		// too large to be compiled
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i <= ClassCompiler.MAX_SIZE; i++) {
+			text.append("addI r_1,1 => r_1\n");
+		}
+		Program large = Assembler.instance().assemble(text.toString());
+		sim = new Simulator(large);
+		sim.setEngine(Simulator.Engine.CLASS);
+		sim.getVM().setReg("r_1", 0);
+		sim.run();
+		assertEquals(Simulator.Engine.SWITCH, sim.getRunEngine());
+		assertEquals(ClassCompiler.MAX_SIZE + 1, sim.getVM().getReg("r_1"));
+	}
+
+	@Test(timeout = 10000)
+	public void testStepLimit() throws FormatException {
+		Program loop = Assembler.instance().assemble(
+				"loop: addI r_1,1 => r_1\njumpI -> loop\n");
+		for (Simulator.Engine engine : Simulator.Engine.values()) {
+			Simulator sim = new Simulator(loop);
+			sim.setDebug(false);
+			sim.setEngine(engine);
+			sim.setStepLimit(10000);
+			sim.getVM().setReg("r_1", 0);
+			try {
+				sim.run();
+				fail("The loop should exceed the step limit");
+			} catch (Simulator.StepLimitException exc) {
+				// expected
+			}
+			// limited runs are not downgraded to another engine
+			if (engine != Simulator.Engine.CLASS
+					|| javax.tools.ToolProvider.getSystemJavaCompiler() != null) {
+				assertEquals(engine, sim.getRunEngine());
+			}
+			int count = sim.getVM().getReg("r_1");
+			assertTrue(count >= 5000 && count <= 10000);
+			// an interrupt stops a run with an unbounded limit
+			sim.setStepLimit(Long.MAX_VALUE);
+			sim.getVM().setPC(0);
+			Thread.currentThread().interrupt();
+			try {
+				sim.run();
+				fail("The loop should be interrupted");
+			} catch (CancellationException exc) {
+				// expected
+			} finally {
+				Thread.interrupted();
+			}
+		}
+	}
+
+	@Test
+	public void testLink() {
+		Program p = parse("fig1-3-init");
+		LinkedProgram linked = p.link();
+		assertSame(linked, p.link());
+		assertEquals(p, linked.getProgram());
+		assertEquals(p.prettyPrint(), linked.prettyPrint());
+		assertTrue(linked.getProgram().isFrozen());
+		Simulator sim = new Simulator(p);
+		assertSame(linked, sim.getLinkedProgram());
+		assertSame(linked.getProgram(), sim.getProgram());
+		try {
+			linked.getProgram().setSymb(new Num("x"), 1);
+			fail("Linked program should be frozen");
+		} catch (IllegalStateException exc) {
+			// expected
+		}
+		try {
+			linked.getOpAt(0).setComment("changed");
+			fail("Linked operation should be frozen");
+		} catch (IllegalStateException exc) {
+			// expected
+		}
+		try {
+			linked.getOpAt(0).getArgs().clear();
+			fail("Linked operands should be frozen");
+		} catch (UnsupportedOperationException exc) {
+			// expected
+		}
+		// modifying the original program results in a new linked program
+		p.setSymb(new Num("x"), 1);
+		assertNotSame(linked, p.link());
+		assertEquals(1, (int) p.link().getSymb("x"));
+		assertNull(linked.getSymb("x"));
+	}
+
+	@Test
+	public void testTraceBuffer() {
+		Program p = parse("fig1-3");
+		Machine c = new Machine();
+		int a = c.init("a", 2);
+		c.init("b", 3);
+		c.init("c", 4);
+		c.init("d", 5);
+		Simulator sim = new Simulator(p, c);
+		TraceBuffer trace = new TraceBuffer(3);
+		sim.setTraceBuffer(trace);
+		sim.run();
+		if (SHOW) {
+			trace.dump(3, System.out);
+		}
+		assertEquals(p.size(), trace.getCount());
+		assertEquals(3, trace.size());
+		List<String> last = trace.getLast(1);
+		assertTrue(last.get(0).endsWith("mem[" + a + "] := 240"));
+		// filter on stores only
+		c = new Machine();
+		c.init("a", 2);
+		c.init("b", 3);
+		c.init("c", 4);
+		c.init("d", 5);
+		sim = new Simulator(p, c);
+		trace = new TraceBuffer(10);
+		trace.setOpCodes(EnumSet.of(OpCode.storeAI));
+		sim.setTraceBuffer(trace);
+		sim.run();
+		assertEquals(1, trace.getCount());
+	}
+
+	@Test
+	public void testTraceBufferDump() throws FormatException {
+		Program p = Assembler.instance().assemble(
+				"loadI 0 => r_0\nloadI 1 => r_1\ndiv r_1,r_0 => r_2\n");
+		Simulator sim = new Simulator(p);
+		TraceBuffer trace = new TraceBuffer(10);
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		trace.setErr(new PrintStream(err));
+		sim.setTraceBuffer(trace);
+		try {
+			sim.run();
+			fail("Division by zero should fail");
+		} catch (ArithmeticException exc) {
+			// expected
+		}
+		if (SHOW) {
+			System.out.println(err);
+		}
+		assertEquals(2, sim.getVM().getPC());
+		assertTrue(err.toString().contains("r_1 := 1"));
+	}
+
+	@Test
+	public void testBlockString() throws FormatException {
+		Program p = Assembler.instance().assemble(
+				"cin \"\"\npop => r_len\ni2i sp => r_src\n"
+						+ "subI sp,100 => r_dst\nccopy r_src,r_len => r_dst\n"
+						+ "coutA \"Copied: \", r_dst, r_len\n");
+		for (Simulator.Engine engine : Simulator.Engine.values()) {
+			for (int charSize : new int[] { 1, 4 }) {
+				Simulator sim = new Simulator(p);
+				sim.setEngine(engine);
+				sim.getVM().setCharSize(charSize);
+				sim.setIn(new ByteArrayInputStream("abc".getBytes()));
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				sim.setOut(out);
+				sim.run();
+				assertEquals("Copied: abc", out.toString().trim());
+			}
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testService() throws Exception {
+		Program p = parse("string");
+		Program loop = Assembler.instance().assemble("loop: jumpI -> loop\n");
+		try (SimulationService service = new SimulationService(4)) {
+			List<Future<SimulationService.Result>> results = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				results.add(service.submit(p, ("abc" + i).getBytes()));
+			}
+			for (int i = 0; i < 20; i++) {
+				SimulationService.Result result = results.get(i).get();
+				assertTrue(result.isSuccess());
+				assertEquals("Doubled: abc" + i + "abc" + i, result.getOutput()
+						.trim());
+			}
+			service.setStepLimit(1000);
+			SimulationService.Result limited = service.submit(loop,
+					new byte[0]).get();
+			assertTrue(limited.getError() instanceof Simulator.StepLimitException);
+			service.setStepLimit(-1);
+			service.setTimeout(100, TimeUnit.MILLISECONDS);
+			SimulationService.Result timed = service.submit(loop, new byte[0])
+					.get();
+			assertTrue(timed.getError() instanceof TimeoutException);
+			// the timeout does not affect jobs that finish in time
+			assertTrue(service.submit(p, "x".getBytes()).get().isSuccess());
+		}
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		// gcd by repeated subtraction; lanes diverge on every comparison
+		Program p = Assembler.instance().assemble(""
+				+ "      in \"a? \" => r_a\n"
+				+ "      in \"b? \" => r_b\n"
+				+ "      divI r_a,1 => r_x\n"
+				+ "      div r_a,r_b => r_x\n"
+				+ "loop: cmp_NE r_a,r_b => r_c\n"
+				+ "      cbr r_c -> body,end\n"
+				+ "body: cmp_GT r_a,r_b => r_c\n"
+				+ "      cbr r_c -> big,small\n"
+				+ "big:  sub r_a,r_b => r_a\n"
+				+ "      jumpI -> loop\n"
+				+ "small: sub r_b,r_a => r_b\n"
+				+ "      jumpI -> loop\n"
+				+ "end:  out \"gcd: \",r_a\n");
+		List<byte[]> inputs = new ArrayList<>();
+		for (int i = 0; i < 300; i++) {
+			inputs.add(((i % 37 + 1) + "\n" + (i % 23) + "\n").getBytes());
+		}
+		BatchSimulator batch = new BatchSimulator(p);
+		List<SimulationService.Result> parallel = batch.run(inputs);
+		batch.setLockstep(true);
+		List<SimulationService.Result> lockstep = batch.run(inputs);
+		assertEquals(inputs.size(), lockstep.size());
+		for (int i = 0; i < inputs.size(); i++) {
+			SimulationService.Result result = lockstep.get(i);
+			assertEquals(parallel.get(i).toString(), result.toString());
+			assertEquals(parallel.get(i).getPC(), result.getPC());
+			if (i % 23 == 0) {
+				// division by zero
+				assertTrue(result.getError() instanceof ArithmeticException);
+				assertEquals(3, result.getPC());
+			} else {
+				assertEquals("gcd: " + gcd(i % 37 + 1, i % 23), result.getOutput()
+						.trim());
+			}
+		}
+	}
+
+	@Test
+	public void testBatchManyRegs() throws Exception {
+		// more registers than a fresh machine has room for
+		StringBuilder text = new StringBuilder("in \"\" => r_0\n");
+		for (int i = 1; i < 20; i++) {
+			text.append("addI r_" + (i - 1) + ",1 => r_" + i + "\n");
+		}
+		text.append("out \"v: \",r_19\n");
+		Program p = Assembler.instance().assemble(text.toString());
+		List<byte[]> inputs = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			inputs.add((i + "\n").getBytes());
+		}
+		BatchSimulator batch = new BatchSimulator(p);
+		batch.setLockstep(true);
+		List<SimulationService.Result> results = batch.run(inputs);
+		for (int i = 0; i < inputs.size(); i++) {
+			assertTrue(results.get(i).isSuccess());
+			assertEquals("v: " + (i + 19), results.get(i).getOutput().trim());
+		}
+	}
+
+	private int gcd(int a, int b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
 	Program parse(String filename) {
 		File file = new File(filename + ".iloc");
 		if (!file.exists()) {
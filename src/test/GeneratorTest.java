@@ -11,6 +11,7 @@ import org.junit.Test;
 
 import checker.ParseException;
 import iloc.Simulator;
+import iloc.eval.Machine;
 import iloc.model.Program;
 import compiler.TempNameCompiler;
 
@@ -155,6 +156,60 @@ public class GeneratorTest {
 		}
 	}
 
+	@Test
+	public void memorySize(){
+		System.out.println("----Testing Memory Size----");
+		Program prog;
+		try{
+			prog = compile("assDecl");
+			int frameSize = prog.getSymb(Program.FRAME_SIZE);
+			int stackSize = prog.getSymb(Program.STACK_SIZE);
+			System.out.println("frame: " + frameSize + ", stack: " + stackSize);
+			assertTrue("Frame size fault", frameSize > 0);
+			assertEquals(frameSize + stackSize, Simulator.getMemorySize(prog.link()));
+			Simulator sim = new Simulator(prog);
+			assertEquals(frameSize + stackSize, sim.getVM().getReg(Machine.SP));
+			// program still runs in its exactly sized memory
+			assertTrue("Run fault", sim(prog, "").contains("d: derp"));
+		} catch (IOException e) {
+			fail("Read/Write fault");
+		} catch (ParseException e) {
+			System.err.println("Errors: ");
+			for(String msg : e.getMessages()){
+				System.err.println(msg);
+			}
+			fail("An error occured, see command line for more information.");
+		}
+	}
+
+	@Test
+	public void readChars(){
+		System.out.println("----Testing Read Chars----");
+		Program prog;
+		try{
+			prog = compile("readChars");
+			System.out.println(prog.prettyPrint());
+			Simulator sim = new Simulator(prog);
+			int top = sim.getVM().getReg(Machine.SP);
+			sim.setIn(new ByteArrayInputStream("abc\nxyz\nq\n".getBytes()));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			sim.setOut(out);
+			sim.run();
+			System.out.println(out);
+			assertTrue("Read char fault", out.toString().contains("c: q"));
+			// the rest of every input line is popped as well
+			assertEquals(top, sim.getVM().getReg(Machine.SP));
+		} catch (IOException e) {
+			fail("Read/Write fault");
+		} catch (ParseException e) {
+			System.err.println("Errors: ");
+			for(String msg : e.getMessages()){
+				System.err.println(msg);
+			}
+			fail("An error occured, see command line for more information.");
+		}
+	}
+
 	private Program compile(String filename) throws IOException, ParseException {
 		return this.compiler.compile(new File(BASE_DIR, filename + EXT));
 	}
@@ -1,13 +1,18 @@
 package test;
 
 import static org.junit.Assert.*;
+import iloc.Fusion;
+import iloc.Profile;
 import iloc.Simulator;
+import iloc.Simulator.Engine;
+import iloc.model.OpCode;
 import iloc.model.Program;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.EnumSet;
 
 import org.junit.Test;
 
@@ -61,13 +66,159 @@ public class ProgramsTest {
 		}
 	}
 
+	@Test
+	public void engines() {
+		System.out.println("----Comparing engines----");
+		Program prog;
+		try {
+			prog = compile("fib");
+			String expected = null;
+			for (Engine engine : Engine.values()) {
+				// warm up before timing
+				sim(prog, "100000", engine);
+				long start = System.nanoTime();
+				String out = sim(prog, "1000000", engine);
+				long time = (System.nanoTime() - start) / 1000000;
+				System.out.printf("%s: %d ms%n", engine, time);
+				if (expected == null) {
+					expected = out;
+				}
+				assertEquals(expected, out);
+			}
+		} catch (IOException e) {
+			fail("Read/Write fault");
+		} catch (ParseException e) {
+			System.err.println("Errors: ");
+			for (String msg : e.getMessages()) {
+				System.err.println(msg);
+			}
+			fail("An error occured, see command line for more information.");
+		}
+	}
+
+	@Test
+	public void trace() {
+		System.out.println("----Testing traces----");
+		String[][] runs = { { "gcd", "100\n170" }, { "fib", "20" } };
+		try {
+			for (String[] run : runs) {
+				Program prog = compile(run[0]);
+				String expected = sim(prog, run[1], Engine.SWITCH);
+				for (int threshold : new int[] { 1, 2, 5 }) {
+					String out = sim(prog, run[1], Engine.TRACE, threshold);
+					System.out.printf("%s, threshold %d: %s", run[0],
+							threshold, out);
+					assertEquals(expected, out);
+				}
+			}
+		} catch (IOException e) {
+			fail("Read/Write fault");
+		} catch (ParseException e) {
+			System.err.println("Errors: ");
+			for (String msg : e.getMessages()) {
+				System.err.println(msg);
+			}
+			fail("An error occured, see command line for more information.");
+		}
+	}
+
+	@Test
+	public void fusions() {
+		System.out.println("----Testing fusions----");
+		Program prog;
+		try {
+			prog = compile("fib");
+			Simulator plain = simulator(prog, "20");
+			plain.setFusions(EnumSet.noneOf(Fusion.class));
+			String expected = run(plain);
+			Simulator fused = simulator(prog, "20");
+			fused.setFusions(EnumSet.allOf(Fusion.class));
+			assertEquals(expected, run(fused));
+			System.out.println(fused.getFusionSavings());
+			assertTrue(plain.getFusionSavings().isEmpty());
+			assertFalse(fused.getFusionSavings().isEmpty());
+		} catch (IOException e) {
+			fail("Read/Write fault");
+		} catch (ParseException e) {
+			System.err.println("Errors: ");
+			for (String msg : e.getMessages()) {
+				System.err.println(msg);
+			}
+			fail("An error occured, see command line for more information.");
+		}
+	}
+
+	@Test
+	public void profile() {
+		System.out.println("----Testing profile----");
+		Program prog;
+		try {
+			prog = compile("gcd");
+			Simulator sim = simulator(prog, "100\n170");
+			sim.setProfiling(true);
+			run(sim);
+			Profile profile = sim.getProfile();
+			System.out.println(profile.report());
+			System.out.println(profile.dump());
+			long total = 0;
+			for (long count : profile.getOpCodeCounts().values()) {
+				total += count;
+			}
+			assertEquals(profile.getTotal(), total);
+			assertEquals(1, profile.getCount(0));
+			for (int line = 0; line < prog.size(); line++) {
+				if (prog.getOpAt(line).getOpCode() == OpCode.cbr) {
+					assertEquals(profile.getCount(line),
+							profile.getTaken(line) + profile.getNotTaken(line));
+				}
+			}
+			// profiling the fused code gives the same counts
+			Simulator plain = simulator(prog, "100\n170");
+			plain.setFusions(EnumSet.noneOf(Fusion.class));
+			plain.setProfiling(true);
+			run(plain);
+			assertEquals(plain.getProfile().dump(), profile.dump());
+			assertTrue(plain.getProfile().getFusionSavings().isEmpty());
+			assertFalse(profile.getFusionSavings().isEmpty());
+			assertEquals(sim.getFusionSavings(), profile.getFusionSavings());
+		} catch (IOException e) {
+			fail("Read/Write fault");
+		} catch (ParseException e) {
+			System.err.println("Errors: ");
+			for (String msg : e.getMessages()) {
+				System.err.println(msg);
+			}
+			fail("An error occured, see command line for more information.");
+		}
+	}
+
 	private Program compile(String filename) throws IOException, ParseException {
 		return this.compiler.compile(new File(BASE_DIR, filename + EXT));
 	}
 
 	private String sim(Program prog, String input) {
+		return sim(prog, input, Simulator.DEFAULT_ENGINE);
+	}
+
+	private String sim(Program prog, String input, Engine engine) {
+		return sim(prog, input, engine, Simulator.DEFAULT_TRACE_THRESHOLD);
+	}
+
+	private String sim(Program prog, String input, Engine engine,
+			int traceThreshold) {
+		Simulator sim = simulator(prog, input);
+		sim.setEngine(engine);
+		sim.setTraceThreshold(traceThreshold);
+		return run(sim);
+	}
+
+	private Simulator simulator(Program prog, String input) {
 		Simulator sim = new Simulator(prog);
 		sim.setIn(new ByteArrayInputStream(input.getBytes()));
+		return sim;
+	}
+
+	private String run(Simulator sim) {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		sim.setOut(out);
 		sim.run();